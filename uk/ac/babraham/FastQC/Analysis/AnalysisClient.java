@@ -0,0 +1,102 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Submits a set of files to a running AnalysisServer and waits for them to
+ * finish, printing what the server tells us.  The fastqc wrapper has its
+ * own client which avoids starting a JVM at all, but this is handy for
+ * testing.
+ * 
+ * Usage: java -Dfastqc.server_port=port [-Dfastqc.output_dir=dir] uk.ac.babraham.FastQC.Analysis.AnalysisClient file1 file2...
+ * 
+ * The token which the server wrote to the home directory is sent first.
+ * Passing PING or SHUTDOWN as the only argument sends that command instead.
+ * The exit code is 0 if every file worked, 1 if any failed and 2 if we
+ * couldn't talk to the server.
+ */
+public class AnalysisClient {
+
+	public static void main (String [] args) {
+		
+		if (args.length == 0) {
+			System.err.println("Usage: AnalysisClient [files] or AnalysisClient PING|SHUTDOWN");
+			System.exit(2);
+		}
+		
+		try {
+			int port = AnalysisServer.getConfiguredPort();
+			String token = AnalysisServer.readToken(port);
+			
+			Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			
+			out.println("TOKEN\t"+token);
+			
+			if (args.length == 1 && (args[0].equals("PING") || args[0].equals("SHUTDOWN"))) {
+				out.println(args[0]);
+			}
+			else {
+				if (System.getProperty("fastqc.output_dir") != null) {
+					out.println("OUTDIR\t"+new File(System.getProperty("fastqc.output_dir")).getAbsolutePath());
+				}
+				
+				// The server won't be running in our directory
+				for (int f=0;f<args.length;f++) {
+					out.println("FILE\t"+new File(args[f]).getAbsolutePath());
+				}
+				out.println("RUN");
+			}
+			out.flush();
+			
+			// Tells the server we've nothing more to send
+			socket.shutdownOutput();
+			
+			int exitCode = 2;
+			String line;
+			while ((line = in.readLine()) != null) {
+				System.out.println(line);
+				if (line.startsWith("DONE\t")) {
+					exitCode = line.equals("DONE\t0") ? 0 : 1;
+				}
+				else if (line.equals("PONG") || line.equals("BYE")) {
+					exitCode = 0;
+				}
+			}
+			socket.close();
+			System.exit(exitCode);
+		}
+		catch (IOException e) {
+			System.err.println("Couldn't talk to the FastQC server: "+e.getMessage());
+			System.exit(2);
+		}
+	}
+	
+}
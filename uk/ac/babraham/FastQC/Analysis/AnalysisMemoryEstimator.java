@@ -0,0 +1,181 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.itadaki.bzip2.BZip2InputStream;
+
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.babraham.FastQC.Utilities.ParallelGZIPInputStream;
+
+/**
+ * Makes a rough guess at the most heap an analysis will need, so that the
+ * AnalysisQueue doesn't start more analyses at once than will fit.
+ * 
+ * Most of the memory goes on structures which grow with the read length
+ * (the per position counts and the kmer position arrays) or with the
+ * number of distinct reads up to the overrepresented sequence cutoff, so
+ * we estimate those from the file size and the length of the first few
+ * reads and add a fixed overhead for everything else.  Gzipped and BAM
+ * files also hold the buffers used to inflate them in parallel.
+ */
+class AnalysisMemoryEstimator {
+
+	private static final long FIXED_OVERHEAD = 16L*1024*1024;
+	
+	// What we use when we can't peek at the reads
+	private static final int DEFAULT_READ_LENGTH = 150;
+	
+	private static final int PEEK_SIZE = 64*1024;
+	
+	// Heap used per base position by the per base modules
+	private static final long BYTES_PER_POSITION = 2048;
+	
+	// This matches the cutoff in OverRepresentedSeqs
+	private static final long MAX_TRACKED_SEQUENCES = 200000;
+	
+	// Heap per tracked sequence in the overrepresented sequence table,
+	// on top of the packed sequence itself
+	private static final long BYTES_PER_TRACKED_SEQUENCE = 32;
+	
+	public static long estimate (SequenceFile sequenceFile) {
+		
+		File file = sequenceFile.getFile();
+		if (file == null) return FIXED_OVERHEAD;
+		
+		String name = file.getName().toLowerCase();
+		
+		int readLength = DEFAULT_READ_LENGTH;
+		
+		// How much larger the text of the reads is than the file
+		double expansion = 1;
+		
+		long decompression = 0;
+		
+		if (name.endsWith(".bam")) {
+			expansion = 3;
+			decompression = ParallelGZIPInputStream.bufferMemory();
+		}
+		else if (name.endsWith(".sam")) {
+			expansion = 1;
+		}
+		else {
+			if (name.endsWith(".gz")) {
+				expansion = 4;
+				decompression = ParallelGZIPInputStream.bufferMemory();
+			}
+			else if (name.endsWith(".bz2")) expansion = 5;
+
+			int peekedLength = peekReadLength(file);
+			if (peekedLength > 0) readLength = peekedLength;
+		}
+		
+		// A FastQ record is roughly twice the read length plus the headers
+		long readCount = (long)((file.length()*expansion)/((readLength*2)+40));
+		
+		long trackedSequences = Math.min(readCount, MAX_TRACKED_SEQUENCES);
+		
+		// Long reads are truncated before they go into the table
+		int keyLength = readLength > 75 ? 50 : readLength;
+		long overrepresented = trackedSequences*(BYTES_PER_TRACKED_SEQUENCE+keyLength);
+		
+		long perPosition = readLength*BYTES_PER_POSITION;
+		
+		// Every kmer has a count and a row of position counts
+		int kmerSize = 5;
+		if (System.getProperty("fastqc.kmer_size") != null) {
+			try {
+				kmerSize = Integer.parseInt(System.getProperty("fastqc.kmer_size"));
+			}
+			catch (NumberFormatException nfe) {}
+		}
+		long kmers = (1L << (kmerSize*2))*(readLength+1)*8;
+		
+		return FIXED_OVERHEAD+overrepresented+perPosition+kmers+decompression;
+	}
+	
+	/**
+	 * Finds the longest sequence line in the first records of a FastQ file.
+	 * 
+	 * @return The length, or 0 if we couldn't read any records
+	 */
+	private static int peekReadLength (File file) {
+		
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".gz")) {
+				in = new GZIPInputStream(in);
+			}
+			else if (name.endsWith(".bz2")) {
+				in = new BZip2InputStream(in, false);
+			}
+			
+			byte [] buffer = new byte[PEEK_SIZE];
+			int length = 0;
+			while (length < buffer.length) {
+				int read = in.read(buffer, length, buffer.length-length);
+				if (read < 0) break;
+				length += read;
+			}
+			
+			// We only count sequence lines which are complete
+			int longest = 0;
+			int line = 0;
+			int lineStart = 0;
+			for (int i=0;i<length;i++) {
+				if (buffer[i] == '\n') {
+					if (line % 4 == 1) {
+						int lineLength = i-lineStart;
+						if (lineLength > 0 && buffer[i-1] == '\r') --lineLength;
+						if (lineLength > longest) longest = lineLength;
+					}
+					++line;
+					lineStart = i+1;
+				}
+			}
+			
+			// A single read longer than what we peeked at
+			if (longest == 0 && line <= 1) {
+				longest = length;
+			}
+			
+			return longest;
+		}
+		catch (IOException e) {
+			return 0;
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {}
+			}
+		}
+	}
+	
+}
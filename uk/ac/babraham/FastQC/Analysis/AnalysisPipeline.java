@@ -0,0 +1,735 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Modules.QCModuleAggreg;
+import uk.ac.babraham.FastQC.Sequence.MappedFileSplitter;
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.babraham.FastQC.Sequence.SequenceFormatException;
+
+/**
+ * Runs an analysis as a set of pipelined stages.  A reader thread does all
+ * of the decompression and parsing of the sequence file and passes batches
+ * of sequences through bounded queues to one or more module threads.  Each
+ * module thread runs its own subset of the modules so no module is ever
+ * used by more than one thread.
+ *
+ * Alternatively the analysis can be sharded.  In this case every module
+ * thread gets its own complete set of modules and takes whichever batch is
+ * next in a shared queue.  At the end the results from the extra shards are
+ * merged into the original modules using QCModuleAggreg.mergeResult.  This
+ * lets a single large file use as many cores as you like, but the modules
+ * which sample the data see a different sample from a single threaded run:
+ *
+ * OverRepresentedSeqs (and so DuplicationLevel) stops adding new sequences
+ * separately in each shard once that shard has seen OBSERVATION_CUTOFF
+ * distinct sequences, so the merged table can hold up to shards times as
+ * many sequences and the duplication extrapolation is based on the sum of
+ * the counts at which each shard stopped.  Even below the cutoff the
+ * extrapolation uses the point at which each shard last saw a new sequence
+ * so the total duplicate percentage can differ slightly.
+ *
+ * KmerContent can be set to look at only one sequence in every
+ * fastqc.kmer_sampling (by default it looks at all of them).  As long as
+ * the batch size is a multiple of this every shard picks the same
+ * sequences as a single threaded run would, otherwise each shard samples
+ * a different set.  The positional enrichment for a kmer only
+ * covers the length of the first read it was seen in (or further if it's
+ * seen further along a read), so with reads of different lengths this can
+ * differ too.
+ *
+ * PerSequenceGCContent adds up fractional counts, so the distribution can
+ * differ in the last decimal place because of the order of the additions.
+ *
+ * All of the other modules give exactly the same results as a single
+ * threaded run.  ShardedAnalysisCheck in the Benchmark package compares the
+ * two for a given file.
+ *
+ * With a single reader thread the parsing can still hold things up.  For
+ * uncompressed FastQ and SAM files the analysis can instead be mapped: the
+ * file is cut into byte ranges which start on record boundaries (see
+ * MappedFileSplitter) and each shard memory maps and parses whichever range
+ * is next itself, so there's no reader thread at all.  The same caveats
+ * apply as for sharding, with each shard seeing a set of ranges rather than
+ * a set of batches.
+ *
+ * The pipeline is configured with the following properties:
+ *
+ * fastqc.pipeline - set to false to run everything in a single thread
+ * fastqc.pipeline_batch_size - the number of sequences in each batch (1000)
+ * fastqc.pipeline_queue_depth - the number of batches queued for each module thread (8)
+ * fastqc.pipeline_module_threads - the number of module threads (1)
+ * fastqc.pipeline_shards - the number of shards to split the analysis into (1)
+ * fastqc.pipeline_stats - set to true to report how long each stage spent working and waiting
+ * fastqc.pipeline_mapped - set to true to map and split uncompressed files, in which case the
+ *                          number of shards defaults to the number of processors
+ *
+ * Stopping early once the results converge (see ConvergenceMonitor) needs
+ * all of the modules to have seen the same sequences when they're checked,
+ * so it's only used with a single module thread and no sharding.
+ */
+class AnalysisPipeline {
+
+	private AnalysisRunner runner;
+	private SequenceFile file;
+	private QCModule [] modules;
+
+	private int batchSize;
+	private int queueDepth;
+	private int moduleThreadCount;
+	private int shardCount;
+	private boolean mapped;
+	
+	// Mapped files are cut into more ranges than there are shards so that
+	// a shard which gets slow ranges doesn't hold up the others.
+	private static final int RANGES_PER_SHARD = 4;
+	
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int DEFAULT_QUEUE_DEPTH = 8;
+
+	private List<ArrayBlockingQueue<Batch>> queues = new ArrayList<ArrayBlockingQueue<Batch>>();
+	private List<Stage> stages = new ArrayList<Stage>();
+
+	// Set if any stage fails so the others can stop early
+	private volatile Exception failure = null;
+
+	// Set once the results have converged so the reader can stop early
+	private volatile boolean stopped = false;
+	private ConvergenceMonitor convergence = null;
+
+	public static boolean isEnabled () {
+		return !"false".equals(System.getProperty("fastqc.pipeline"));
+	}
+
+	public AnalysisPipeline (AnalysisRunner runner, SequenceFile file, QCModule [] modules) {
+		this.runner = runner;
+		this.file = file;
+		this.modules = modules;
+
+		batchSize = getIntProperty("fastqc.pipeline_batch_size", DEFAULT_BATCH_SIZE, true);
+		queueDepth = getIntProperty("fastqc.pipeline_queue_depth", DEFAULT_QUEUE_DEPTH, true);
+		moduleThreadCount = Math.min(getIntProperty("fastqc.pipeline_module_threads", 1, true), modules.length);
+		
+		mapped = Boolean.getBoolean("fastqc.pipeline_mapped") && MappedFileSplitter.canSplit(file);
+		shardCount = getIntProperty("fastqc.pipeline_shards", defaultShardCount(mapped), true);
+		
+		if (ConvergenceMonitor.isEnabled()) {
+			if (shardCount == 1 && moduleThreadCount == 1 && !mapped) {
+				convergence = new ConvergenceMonitor(modules);
+			}
+			else {
+				System.err.println("Not checking for convergence in "+file.name()+" since the analysis is split across threads");
+			}
+		}
+	}
+
+	/**
+	 * Works out the most sequences the pipeline can hold at once with the
+	 * current settings.  Each queue holds queue depth batches, and on top of
+	 * those the reader is filling one batch and each shard can be working on
+	 * another.  Shards share a single queue which is that much deeper, and
+	 * the module threads all see the same batches.  We don't know whether a
+	 * file can be mapped until we see it, so if mapping is turned on we
+	 * allow for the number of shards it would use.
+	 */
+	static int maxSequencesInFlight () {
+		long batchSize = getIntProperty("fastqc.pipeline_batch_size", DEFAULT_BATCH_SIZE, false);
+		long queueDepth = getIntProperty("fastqc.pipeline_queue_depth", DEFAULT_QUEUE_DEPTH, false);
+		long shards = getIntProperty("fastqc.pipeline_shards", defaultShardCount(Boolean.getBoolean("fastqc.pipeline_mapped")), false);
+		return (int)Math.min(Integer.MAX_VALUE, batchSize*((queueDepth+1)*shards+1));
+	}
+	
+	private static int defaultShardCount (boolean mapped) {
+		return mapped ? Runtime.getRuntime().availableProcessors() : 1;
+	}
+
+	/**
+	 * @param warn Whether to say so if the value isn't valid.  We only warn
+	 * when setting up a pipeline so the same warning doesn't keep appearing.
+	 */
+	private static int getIntProperty (String name, int defaultValue, boolean warn) {
+		if (System.getProperty(name) == null) return defaultValue;
+		try {
+			int value = Integer.parseInt(System.getProperty(name));
+			if (value > 0) return value;
+			if (warn) System.err.println("Value for "+name+" must be > 0");
+		}
+		catch (NumberFormatException nfe) {
+			if (warn) System.err.println("Value for "+name+" '"+System.getProperty(name)+"' wasn't a number");
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Runs the analysis.  The calling thread acts as the first of the module
+	 * threads and is the one which sends progress updates to the runner.
+	 *
+	 * @return true if the analysis completed, false if it failed, in which
+	 * case the runner has already been told about the exception.
+	 */
+	public boolean run () {
+
+		List<QCModule []> moduleSets = null;
+
+		if (shardCount > 1) {
+			moduleSets = createShards();
+		}
+		
+		if (mapped) {
+			if (moduleSets == null) {
+				shardCount = 1;
+				moduleSets = new ArrayList<QCModule []>();
+				moduleSets.add(modules);
+			}
+			return runMapped(moduleSets);
+		}
+
+		if (moduleSets != null) {
+			// All of the shards share a single queue
+			moduleThreadCount = shardCount;
+			queues.add(new ArrayBlockingQueue<Batch>(queueDepth*shardCount));
+		}
+		else {
+			shardCount = 1;
+			moduleSets = splitModules();
+			for (int t=0;t<moduleThreadCount;t++) {
+				queues.add(new ArrayBlockingQueue<Batch>(queueDepth));
+			}
+		}
+
+		final Stage readerStage = new Stage("Reader");
+		stages.add(readerStage);
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readSequences(readerStage);
+			}
+		}, "Sequence reader");
+		reader.setDaemon(true);
+
+		List<Thread> moduleThreads = new ArrayList<Thread>();
+		List<ModuleRunner> moduleRunners = new ArrayList<ModuleRunner>();
+		for (int t=0;t<moduleThreadCount;t++) {
+			Stage stage = new Stage((shardCount > 1 ? "Shard " : "Modules ")+(t+1));
+			stages.add(stage);
+			ModuleRunner moduleRunner = new ModuleRunner(queues.get(t % queues.size()), moduleSets.get(t), stage, t==0);
+			moduleRunners.add(moduleRunner);
+			if (t > 0) {
+				Thread thread = new Thread(moduleRunner, "Module runner "+(t+1));
+				thread.setDaemon(true);
+				moduleThreads.add(thread);
+			}
+		}
+
+		reader.start();
+		for (Thread thread : moduleThreads) {
+			thread.start();
+		}
+
+		moduleRunners.get(0).run();
+
+		try {
+			reader.join();
+			for (Thread thread : moduleThreads) {
+				thread.join();
+			}
+		}
+		catch (InterruptedException e) {
+			if (failure == null) failure = e;
+		}
+
+		if (Boolean.getBoolean("fastqc.pipeline_stats")) {
+			System.err.println("Pipeline stage times for "+file.name());
+			for (Stage stage : stages) {
+				System.err.println("  "+stage);
+			}
+		}
+
+		if (failure == null) {
+			for (int t=1;t<shardCount;t++) {
+				mergeShard(moduleSets.get(t));
+			}
+		}
+
+		if (failure != null) {
+			runner.exceptionReceived(failure);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the analysis with each shard reading ranges of the file itself.
+	 */
+	private boolean runMapped (List<QCModule []> moduleSets) {
+		
+		MappedFileSplitter splitter;
+		try {
+			// The ranges each open the file themselves, so we don't need the
+			// stream the file was opened with, or what its parser read ahead.
+			// AnalysisRunner closes it again at the end, which SequenceFile
+			// allows.
+			file.close();
+			splitter = new MappedFileSplitter(file, shardCount*RANGES_PER_SHARD);
+		}
+		catch (IOException e) {
+			runner.exceptionReceived(e);
+			return false;
+		}
+		
+		RangeProgress progress = new RangeProgress(splitter);
+		
+		List<Thread> threads = new ArrayList<Thread>();
+		List<RangeRunner> rangeRunners = new ArrayList<RangeRunner>();
+		for (int t=0;t<shardCount;t++) {
+			Stage stage = new Stage("Shard "+(t+1));
+			stages.add(stage);
+			RangeRunner rangeRunner = new RangeRunner(splitter, progress, moduleSets.get(t), stage, t==0);
+			rangeRunners.add(rangeRunner);
+			if (t > 0) {
+				Thread thread = new Thread(rangeRunner, "Range runner "+(t+1));
+				thread.setDaemon(true);
+				threads.add(thread);
+			}
+		}
+		
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		
+		rangeRunners.get(0).run();
+		
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		catch (InterruptedException e) {
+			if (failure == null) failure = e;
+		}
+		
+		if (Boolean.getBoolean("fastqc.pipeline_stats")) {
+			System.err.println("Pipeline stage times for "+file.name()+" split into "+splitter.rangeCount()+" ranges");
+			for (Stage stage : stages) {
+				System.err.println("  "+stage);
+			}
+		}
+		
+		if (failure == null) {
+			for (int t=1;t<shardCount;t++) {
+				mergeShard(moduleSets.get(t));
+			}
+		}
+		
+		if (failure != null) {
+			runner.exceptionReceived(failure);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deals the modules out to the module threads in turn.
+	 */
+	private List<QCModule []> splitModules () {
+		List<List<QCModule>> moduleLists = new ArrayList<List<QCModule>>();
+		for (int t=0;t<moduleThreadCount;t++) {
+			moduleLists.add(new ArrayList<QCModule>());
+		}
+		for (int m=0;m<modules.length;m++) {
+			moduleLists.get(m % moduleThreadCount).add(modules[m]);
+		}
+
+		List<QCModule []> moduleSets = new ArrayList<QCModule []>();
+		for (List<QCModule> moduleList : moduleLists) {
+			moduleSets.add(moduleList.toArray(new QCModule[0]));
+		}
+		return moduleSets;
+	}
+
+	/**
+	 * Makes a complete set of modules for each shard.  The first shard uses
+	 * the modules we were given and the others use new copies of the standard
+	 * modules which are merged back in at the end.
+	 *
+	 * @return The module sets, or null if the modules we were given can't be
+	 * sharded, in which case we just use the normal pipeline.
+	 */
+	private List<QCModule []> createShards () {
+
+		List<QCModule []> moduleSets = new ArrayList<QCModule []>();
+		moduleSets.add(modules);
+
+		for (int t=1;t<shardCount;t++) {
+			QCModule [] shardModules = ModuleFactory.getStandardModuleList();
+			
+			if (shardModules.length != modules.length) {
+				System.err.println("Can't shard the analysis of "+file.name()+" since it isn't using the standard modules");
+				return null;
+			}
+			
+			for (int m=0;m<modules.length;m++) {
+				if (!(modules[m] instanceof QCModuleAggreg) || shardModules[m].getClass() != modules[m].getClass()) {
+					System.err.println("Can't shard the analysis of "+file.name()+" since "+modules[m].name()+" can't be merged");
+					return null;
+				}
+			}
+			moduleSets.add(shardModules);
+		}
+
+		return moduleSets;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void mergeShard (QCModule [] shardModules) {
+		for (int m=0;m<modules.length;m++) {
+			((QCModuleAggreg)modules[m]).mergeResult(shardModules[m]);
+		}
+	}
+
+	/**
+	 * Gets the busy and idle times for each stage of the last run.
+	 */
+	public Stage [] getStages () {
+		return stages.toArray(new Stage[0]);
+	}
+
+	/**
+	 * Reads batches of sequences from the file and sends every batch to all
+	 * of the module threads.  The last batch is always sent, even if there
+	 * was an error, so the module threads know when to stop.
+	 */
+	private void readSequences (Stage stage) {
+
+		int seqCount = 0;
+		Batch batch = new Batch(batchSize);
+
+		try {
+			long start = System.nanoTime();
+			while (failure == null && !stopped && file.hasNext()) {
+				++seqCount;
+				batch.sequences.add(file.next());
+
+				if (batch.sequences.size() == batchSize) {
+					batch.sequenceCount = seqCount;
+					batch.percentComplete = file.getPercentComplete();
+					stage.busy(start);
+					sendBatch(batch, stage);
+					batch = new Batch(batchSize);
+					start = System.nanoTime();
+				}
+			}
+			stage.busy(start);
+		}
+		catch (SequenceFormatException e) {
+			batch.exception = e;
+		}
+		catch (RuntimeException e) {
+			batch.exception = e;
+		}
+
+		batch.sequenceCount = seqCount;
+		batch.percentComplete = 100;
+		batch.last = true;
+		sendBatch(batch, stage);
+
+		// When the shards share a queue each of them needs its own marker
+		// to say that we've finished
+		for (int t=1;t<shardCount;t++) {
+			Batch marker = new Batch(0);
+			marker.sequenceCount = seqCount;
+			marker.percentComplete = 100;
+			marker.last = true;
+			sendBatch(marker, stage);
+		}
+	}
+
+	private void sendBatch (Batch batch, Stage stage) {
+		long start = System.nanoTime();
+		batch.users = new AtomicInteger(queues.size());
+		for (ArrayBlockingQueue<Batch> queue : queues) {
+			while (true) {
+				try {
+					queue.put(batch);
+					break;
+				}
+				catch (InterruptedException e) {
+					// Keep trying - the module threads are waiting for this
+				}
+			}
+		}
+		stage.idle(start);
+	}
+
+	private class ModuleRunner implements Runnable {
+
+		private ArrayBlockingQueue<Batch> queue;
+		private QCModule [] modules;
+		private Stage stage;
+		private boolean sendsUpdates;
+
+		public ModuleRunner (ArrayBlockingQueue<Batch> queue, QCModule [] modules, Stage stage, boolean sendsUpdates) {
+			this.queue = queue;
+			this.modules = modules;
+			this.stage = stage;
+			this.sendsUpdates = sendsUpdates;
+		}
+
+		public void run () {
+
+			while (true) {
+				long start = System.nanoTime();
+				Batch batch;
+				try {
+					batch = queue.take();
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+				stage.idle(start);
+
+				// Once anything has failed, or the results have converged,
+				// we just drain the queue so the reader can finish.
+				if (failure == null && !stopped) {
+					start = System.nanoTime();
+					try {
+						processBatch(batch);
+						if (convergence != null && !batch.last && convergence.check(batch.sequenceCount)) {
+							stopped = true;
+						}
+					}
+					catch (RuntimeException e) {
+						failure = e;
+					}
+					stage.busy(start);
+				}
+
+				batch.finishedWith();
+
+				if (batch.last) {
+					if (batch.exception != null && failure == null) {
+						failure = batch.exception;
+					}
+					return;
+				}
+
+				if (sendsUpdates && failure == null && !stopped) {
+					runner.progressUpdated(batch.sequenceCount, batch.percentComplete);
+				}
+			}
+		}
+
+		private void processBatch (Batch batch) {
+			for (int s=0;s<batch.sequences.size();s++) {
+				Sequence seq = batch.sequences.get(s);
+				for (int m=0;m<modules.length;m++) {
+					if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+					modules[m].processSequence(seq);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands out the ranges of a mapped file and keeps track of how much of
+	 * it the shards have got through between them.
+	 */
+	private static class RangeProgress {
+		
+		private MappedFileSplitter splitter;
+		private long totalBytes = 0;
+		private AtomicInteger nextRange = new AtomicInteger(0);
+		private AtomicLong bytesRead = new AtomicLong(0);
+		private AtomicInteger sequenceCount = new AtomicInteger(0);
+		
+		public RangeProgress (MappedFileSplitter splitter) {
+			this.splitter = splitter;
+			for (int r=0;r<splitter.rangeCount();r++) {
+				totalBytes += splitter.rangeLength(r);
+			}
+		}
+		
+		/**
+		 * @return The next range to read, or -1 if there are none left
+		 */
+		public int nextRange () {
+			int range = nextRange.getAndIncrement();
+			if (range >= splitter.rangeCount()) return -1;
+			return range;
+		}
+		
+		public void add (int sequences, long bytes) {
+			sequenceCount.addAndGet(sequences);
+			bytesRead.addAndGet(bytes);
+		}
+		
+		public int sequenceCount () {
+			return sequenceCount.get();
+		}
+		
+		public int percentComplete () {
+			if (totalBytes == 0) return 100;
+			return (int)((100*bytesRead.get())/totalBytes);
+		}
+	}
+	
+	private class RangeRunner implements Runnable {
+		
+		private MappedFileSplitter splitter;
+		private RangeProgress progress;
+		private QCModule [] modules;
+		private Stage stage;
+		private boolean sendsUpdates;
+		
+		public RangeRunner (MappedFileSplitter splitter, RangeProgress progress, QCModule [] modules, Stage stage, boolean sendsUpdates) {
+			this.splitter = splitter;
+			this.progress = progress;
+			this.modules = modules;
+			this.stage = stage;
+			this.sendsUpdates = sendsUpdates;
+		}
+		
+		public void run () {
+			try {
+				int range;
+				while (failure == null && (range = progress.nextRange()) >= 0) {
+					long start = System.nanoTime();
+					readRange(range);
+					stage.busy(start);
+				}
+			}
+			catch (Exception e) {
+				if (failure == null) failure = e;
+			}
+		}
+		
+		private void readRange (int range) throws IOException, SequenceFormatException {
+			
+			SequenceFile rangeFile = splitter.openRange(range);
+			long rangeLength = splitter.rangeLength(range);
+			long bytesReported = 0;
+			int sequences = 0;
+			
+			try {
+				while (failure == null && rangeFile.hasNext()) {
+					Sequence seq = rangeFile.next();
+					for (int m=0;m<modules.length;m++) {
+						if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+						modules[m].processSequence(seq);
+					}
+					seq.release();
+					
+					if (++sequences == batchSize) {
+						long bytes = (rangeLength*rangeFile.getPercentComplete())/100;
+						progress.add(sequences, bytes-bytesReported);
+						bytesReported = bytes;
+						sequences = 0;
+						
+						if (sendsUpdates) {
+							runner.progressUpdated(progress.sequenceCount(), progress.percentComplete());
+						}
+					}
+				}
+			}
+			finally {
+				// Another range may have failed and stopped us part way
+				rangeFile.close();
+			}
+			
+			progress.add(sequences, rangeLength-bytesReported);
+		}
+	}
+
+	private static class Batch {
+		private ArrayList<Sequence> sequences;
+		private int sequenceCount;
+		private int percentComplete;
+		private boolean last = false;
+		private Exception exception = null;
+		
+		// The number of module threads which still need to see this batch
+		private AtomicInteger users;
+
+		public Batch (int size) {
+			sequences = new ArrayList<Sequence>(size);
+		}
+		
+		/**
+		 * Called by each module thread once it's done with the batch.  The
+		 * last one hands the sequences back to the reader to reuse.
+		 */
+		private void finishedWith () {
+			if (users.decrementAndGet() > 0) return;
+			for (int s=0;s<sequences.size();s++) {
+				sequences.get(s).release();
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of how long a stage of the pipeline spent doing work and
+	 * how long it spent waiting for another stage.
+	 */
+	public static class Stage {
+
+		private String name;
+		private long busyNanos = 0;
+		private long idleNanos = 0;
+
+		public Stage (String name) {
+			this.name = name;
+		}
+
+		private void busy (long since) {
+			busyNanos += System.nanoTime()-since;
+		}
+
+		private void idle (long since) {
+			idleNanos += System.nanoTime()-since;
+		}
+
+		public String name () {
+			return name;
+		}
+
+		public long busyMillis () {
+			return busyNanos/1000000;
+		}
+
+		public long idleMillis () {
+			return idleNanos/1000000;
+		}
+
+		public String toString () {
+			return name+": busy "+busyMillis()+"ms, idle "+idleMillis()+"ms";
+		}
+	}
+
+}
@@ -19,19 +19,67 @@
  */
 package uk.ac.babraham.FastQC.Analysis;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import uk.ac.babraham.FastQC.Modules.QCModule;
-import uk.ac.babraham.FastQC.Sequence.SequenceFile;
-
-public class AnalysisQueue implements Runnable, AnalysisListener{
+/**
+ * Runs queued analyses on a fixed number of threads (set by fastqc.threads).
+ * As soon as one analysis finishes the next one is started.
+ * 
+ * Runs with a higher priority go first.  Within a priority runs normally go
+ * in the order they were added, but setting fastqc.queue_order=smallest_first
+ * runs the smallest files first, which gets through a large number of small
+ * files more quickly at the expense of the larger ones.
+ * 
+ * We also keep the estimated heap needed by the running analyses within a
+ * budget, set in MB by fastqc.memory_budget (by default 80% of the maximum
+ * heap, and 0 turns this off).  If the next run won't fit then smaller runs
+ * further down the queue which do fit are started in its place, but only a
+ * limited number of times so that large runs don't wait forever.  A run
+ * which is larger than the whole budget is started once nothing else is
+ * running.
+ * 
+ * The ordering is all done here rather than by the executor.  Runs wait in
+ * our own sorted set and are only handed to the executor, whose queue is a
+ * plain first come first served one, once a thread and enough of the
+ * budget are free for them.
+ */
+public class AnalysisQueue {
 
 	private static AnalysisQueue instance = new AnalysisQueue();
 	
-	private LinkedList<AnalysisRunner>queue = new LinkedList<AnalysisRunner>();
+	// How many times a run can be overtaken by smaller ones before we stop
+	// starting anything else until it fits
+	private static final int MAX_OVERTAKES = 8;
 	
 	private int availableSlots = 1;
-	private int usedSlots = 0;
+	private boolean smallestFirst = false;
+	private long memoryBudget = 0;
+	
+	private ThreadPoolExecutor executor;
+	
+	// Everything below is protected by synchronizing on the queue
+	private TreeSet<QueuedRun> pending = new TreeSet<QueuedRun>();
+	private int activeRuns = 0;
+	private long admittedMemory = 0;
+	private boolean shutdown = false;
+	private long completedRuns = 0;
+	private long cancelledRuns = 0;
+	private long startedRuns = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	
+	// Used to keep runs with the same priority in the order they were added
+	private AtomicLong nextSequenceNumber = new AtomicLong(0);
 	
 	public static AnalysisQueue getInstance () {
 		return instance;
@@ -55,44 +103,311 @@ public class AnalysisQueue implements Runnable, AnalysisListener{
 			
 		}
 		
-		Thread t = new Thread(this);
-		t.start();
+		if (System.getProperty("fastqc.queue_order") != null) {
+			if (System.getProperty("fastqc.queue_order").equals("smallest_first")) {
+				smallestFirst = true;
+			}
+			else if (!System.getProperty("fastqc.queue_order").equals("fifo")) {
+				System.err.println("Queue order '"+System.getProperty("fastqc.queue_order")+"' wasn't fifo or smallest_first, using fifo");
+			}
+		}
+		
+		memoryBudget = (long)(Runtime.getRuntime().maxMemory()*0.8);
+		if (System.getProperty("fastqc.memory_budget") != null) {
+			try {
+				memoryBudget = Long.parseLong(System.getProperty("fastqc.memory_budget"))*1024*1024;
+			}
+			catch (NumberFormatException nfe) {
+				System.err.println("Memory budget '"+System.getProperty("fastqc.memory_budget")+"' wasn't a number");
+			}
+		}
+		
+		executor = new ThreadPoolExecutor(availableSlots, availableSlots, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "AnalysisQueue-"+threadCount.incrementAndGet());
+			}
+		});
+		
+		// Idle threads go away so they don't keep the JVM alive
+		executor.allowCoreThreadTimeOut(true);
 	}
 	
 	public void addToQueue (AnalysisRunner runner) {
-		queue.add(runner);
+		addToQueue(runner, 0);
 	}
-
-	public void run() {
-
-		while (true) {
-//			System.err.println("Status available="+availableSlots+" used="+usedSlots+" queue="+queue.size());
-			if (availableSlots > usedSlots && queue.size() > 0) {
-				++usedSlots;
-				AnalysisRunner currentRun = queue.getFirst();
-				queue.removeFirst();
-				currentRun.addAnalysisListener(this);
-				Thread t = new Thread(currentRun);
-				t.start();
+	
+	/**
+	 * Adds a run to the queue.  Runs with higher priorities are started
+	 * before those with lower ones.
+	 */
+	public void addToQueue (AnalysisRunner runner, int priority) {
+		
+		// Estimating can mean reading the start of the file so we do it
+		// before we take the lock
+		QueuedRun run = new QueuedRun(runner, priority);
+		
+		synchronized (this) {
+			if (!shutdown) {
+				pending.add(run);
+				dispatch();
+				return;
 			}
+		}
+		
+		runner.exceptionReceived(new IllegalStateException("The analysis queue has been shut down"));
+	}
+	
+	/**
+	 * Starts as many pending runs as we have threads and memory for.
+	 */
+	private synchronized void dispatch () {
+		
+		while (activeRuns < availableSlots && !pending.isEmpty()) {
 			
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {}
+			QueuedRun next = pending.first();
+			
+			if (!fits(next)) {
+				
+				if (next.overtakes >= MAX_OVERTAKES) return;
+				
+				// Look for something smaller we can start instead
+				QueuedRun backfill = null;
+				Iterator<QueuedRun> i = pending.iterator();
+				while (i.hasNext()) {
+					QueuedRun run = i.next();
+					if (fits(run)) {
+						backfill = run;
+						break;
+					}
+				}
+				
+				if (backfill == null) return;
+				
+				++next.overtakes;
+				next = backfill;
+			}
+			
+			pending.remove(next);
+			
+			++activeRuns;
+			++startedRuns;
+			admittedMemory += next.memory;
+			
+			long wait = System.nanoTime()-next.queuedTime;
+			totalWaitNanos += wait;
+			if (wait > maxWaitNanos) maxWaitNanos = wait;
+			
+			executor.execute(next);
 		}
 	}
-
-	public void analysisComplete(SequenceFile file, QCModule[] results) {
-		--usedSlots;
+	
+	private boolean fits (QueuedRun run) {
+		if (memoryBudget <= 0 || activeRuns == 0) return true;
+		return admittedMemory+run.memory <= memoryBudget;
+	}
+	
+	private synchronized void runFinished (QueuedRun run) {
+		--activeRuns;
+		++completedRuns;
+		admittedMemory -= run.memory;
+		dispatch();
+		
+		if (isTerminated()) {
+			executor.shutdown();
+			notifyAll();
+		}
+	}
+	
+	private boolean isTerminated () {
+		return shutdown && pending.isEmpty() && activeRuns == 0;
+	}
+	
+	/**
+	 * Removes a run from the queue if it hasn't started yet.  Its listeners
+	 * are sent a CancellationException.
+	 * 
+	 * @return true if the run was removed, false if it had already started
+	 * or wasn't in the queue
+	 */
+	public boolean cancel (AnalysisRunner runner) {
+		QueuedRun cancelled = null;
+		
+		synchronized (this) {
+			Iterator<QueuedRun> i = pending.iterator();
+			while (i.hasNext()) {
+				QueuedRun run = i.next();
+				if (run.runner == runner) {
+					i.remove();
+					++cancelledRuns;
+					cancelled = run;
+					break;
+				}
+			}
+			
+			if (cancelled == null) return false;
+			
+			if (isTerminated()) {
+				executor.shutdown();
+				notifyAll();
+			}
+		}
+		
+		cancelled(cancelled.runner);
+		return true;
+	}
+	
+	private void cancelled (AnalysisRunner runner) {
+		runner.exceptionReceived(new CancellationException("Analysis of "+runner.getFile().name()+" was cancelled"));
+	}
+	
+	/**
+	 * Stops accepting new runs.  Everything already queued is still run.
+	 */
+	public synchronized void shutdown () {
+		shutdown = true;
+		if (isTerminated()) {
+			executor.shutdown();
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Stops accepting new runs and cancels everything which hasn't started.
+	 * Runs which are in progress are left to finish.
+	 * 
+	 * @return The runs which were cancelled
+	 */
+	public List<AnalysisRunner> shutdownNow () {
+		List<AnalysisRunner> cancelled = new ArrayList<AnalysisRunner>();
+		
+		synchronized (this) {
+			shutdown = true;
+			Iterator<QueuedRun> i = pending.iterator();
+			while (i.hasNext()) {
+				cancelled.add(i.next().runner);
+			}
+			pending.clear();
+			cancelledRuns += cancelled.size();
+			
+			if (isTerminated()) {
+				executor.shutdown();
+				notifyAll();
+			}
+		}
+		
+		for (int i=0;i<cancelled.size();i++) {
+			cancelled(cancelled.get(i));
+		}
+		return cancelled;
+	}
+	
+	/**
+	 * Waits for all runs to finish after a shutdown.
+	 * 
+	 * @return true if everything finished, false if we timed out
+	 */
+	public synchronized boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+		long end = System.nanoTime()+unit.toNanos(timeout);
+		while (!isTerminated()) {
+			long remaining = end-System.nanoTime();
+			if (remaining <= 0) return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+	
+	public synchronized int getQueueDepth () {
+		return pending.size();
+	}
+	
+	public synchronized int getActiveCount () {
+		return activeRuns;
+	}
+	
+	public synchronized long getCompletedCount () {
+		return completedRuns;
 	}
 
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
-
-	public void analysisExceptionReceived(SequenceFile file, Exception e) {
-		--usedSlots;
+	public synchronized long getCancelledCount () {
+		return cancelledRuns;
+	}
+	
+	/**
+	 * @return The estimated heap needed by the running analyses, in bytes.
+	 */
+	public synchronized long getAdmittedMemory () {
+		return admittedMemory;
+	}
+	
+	/**
+	 * @return The heap budget for running analyses in bytes, or 0 if there
+	 * isn't one.
+	 */
+	public long getMemoryBudget () {
+		return memoryBudget;
+	}
+	
+	/**
+	 * @return The mean time runs spent in the queue before starting, in
+	 * milliseconds.
+	 */
+	public synchronized double getMeanWaitMillis () {
+		if (startedRuns == 0) return 0;
+		return (totalWaitNanos/1000000d)/startedRuns;
 	}
 
-	public void analysisStarted(SequenceFile file) {}
+	/**
+	 * @return The longest time a run has spent in the queue before starting,
+	 * in milliseconds.
+	 */
+	public synchronized double getMaxWaitMillis () {
+		return maxWaitNanos/1000000d;
+	}
 	
+	private class QueuedRun implements Runnable, Comparable<QueuedRun> {
+		
+		private AnalysisRunner runner;
+		private int priority;
+		private long size;
+		private long memory;
+		private long sequenceNumber;
+		private long queuedTime;
+		private int overtakes = 0;
+		
+		public QueuedRun (AnalysisRunner runner, int priority) {
+			this.runner = runner;
+			this.priority = priority;
+			sequenceNumber = nextSequenceNumber.getAndIncrement();
+			queuedTime = System.nanoTime();
+			if (smallestFirst && runner.getFile().getFile() != null) {
+				size = runner.getFile().getFile().length();
+			}
+			if (memoryBudget > 0) {
+				memory = AnalysisMemoryEstimator.estimate(runner.getFile());
+			}
+		}
+
+		public void run() {
+			try {
+				runner.run();
+			}
+			catch (RuntimeException e) {
+				// Make sure whoever is waiting for this run hears that it's
+				// finished
+				runner.exceptionReceived(e);
+			}
+			finally {
+				runFinished(this);
+			}
+		}
+
+		public int compareTo(QueuedRun o) {
+			if (priority != o.priority) return priority > o.priority ? -1 : 1;
+			if (size != o.size) return size < o.size ? -1 : 1;
+			if (sequenceNumber != o.sequenceNumber) return sequenceNumber < o.sequenceNumber ? -1 : 1;
+			return 0;
+		}
+	}
 	
 }
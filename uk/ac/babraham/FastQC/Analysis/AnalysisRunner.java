@@ -19,6 +19,7 @@
  */
 package uk.ac.babraham.FastQC.Analysis;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -34,6 +35,15 @@ public class AnalysisRunner implements Runnable {
 	private QCModule [] modules;
 	private List<AnalysisListener> listeners = new ArrayList<AnalysisListener>();
 	private int percentComplete = 0;
+	private ProgressNotifier progress = null;
+	
+	// Working out how far through the file we are isn't free, so in the
+	// single threaded analysis we only look every this many sequences.
+	private static final int PROGRESS_INTERVAL = 1000;
+	
+	// How many sequences the readers between them can hold ahead of the
+	// one being analysed in the single threaded analysis
+	private static final int SEQUENTIAL_SEQUENCES_IN_FLIGHT = 16;
 	
 	public AnalysisRunner (SequenceFile file) {
 		this.file = file;
@@ -53,56 +63,97 @@ public class AnalysisRunner implements Runnable {
 
 	
 	public void startAnalysis (QCModule [] modules) {
+		startAnalysis(modules, 0);
+	}
+	
+	/**
+	 * Queues the analysis.  Analyses with a higher priority are started
+	 * before those with a lower one.
+	 */
+	public void startAnalysis (QCModule [] modules, int priority) {
 		this.modules = modules;
 		for (int i=0;i<modules.length;i++) {
 			modules[i].reset();
 		}
-		AnalysisQueue.getInstance().addToQueue(this);
+		AnalysisQueue.getInstance().addToQueue(this, priority);
+	}
+	
+	SequenceFile getFile () {
+		return file;
+	}
+	
+	/**
+	 * Says how many sequences from one file an analysis can be holding at
+	 * once with the current settings, so that a reader knows how many are
+	 * worth keeping for reuse.  Without the pipeline we only work on one at
+	 * a time, but readers can read a few ahead of that.
+	 */
+	public static int maxSequencesInFlight () {
+		if (AnalysisPipeline.isEnabled()) {
+			return AnalysisPipeline.maxSequencesInFlight();
+		}
+		return SEQUENTIAL_SEQUENCES_IN_FLIGHT;
 	}
 
 	public void run() {
 
+		progress = new ProgressNotifier(file, listeners);
+		
 		Iterator<AnalysisListener> i = listeners.iterator();
 		while (i.hasNext()) {
 			i.next().analysisStarted(file);
 		}
 
 		
-		int seqCount = 0;
-		while (file.hasNext()) {
-			++seqCount;
-			Sequence seq;
-			try {
-				seq = file.next();
+		// However the analysis ends, including when it stops early, we let
+		// go of the file before writing the report
+		try {
+			if (AnalysisPipeline.isEnabled()) {
+				if (!new AnalysisPipeline(this, file, modules).run()) return;
 			}
-			catch (SequenceFormatException e) {
-				i = listeners.iterator();
-				while (i.hasNext()) {
-					i.next().analysisExceptionReceived(file,e);
+			else {
+				ConvergenceMonitor convergence = null;
+				if (ConvergenceMonitor.isEnabled()) {
+					convergence = new ConvergenceMonitor(modules);
 				}
-				return;
-			}
-			
-			for (int m=0;m<modules.length;m++) {
-				if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
-				modules[m].processSequence(seq);
-			}
-			
-			if (file.getPercentComplete() == percentComplete+5) {
 			
-				percentComplete = (int)file.getPercentComplete();
+				int seqCount = 0;
+				while (file.hasNext()) {
+					++seqCount;
+					Sequence seq;
+					try {
+						seq = file.next();
+					}
+					catch (SequenceFormatException e) {
+						exceptionReceived(e);
+						return;
+					}
 				
-				i = listeners.iterator();
-					while (i.hasNext()) {
-						i.next().analysisUpdated(file,seqCount,percentComplete);
+					for (int m=0;m<modules.length;m++) {
+						if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+						modules[m].processSequence(seq);
 					}
-					try {
-						Thread.sleep(10);
-					} 
-					catch (InterruptedException e) {}
+					seq.release();
+				
+					if (seqCount % PROGRESS_INTERVAL == 0) {
+						progressUpdated(seqCount, file.getPercentComplete());
+					}
+				
+					if (convergence != null && file.hasNext() && convergence.check(seqCount)) break;
+				}
+			}
+		}
+		finally {
+			try {
+				file.close();
+			}
+			catch (IOException e) {
+				// We've finished with the file anyway
 			}
 		}
 		
+		progress.finish();
+		
 		i = listeners.iterator();
 		while (i.hasNext()) {
 			i.next().analysisComplete(file,modules);
@@ -110,4 +161,29 @@ public class AnalysisRunner implements Runnable {
 
 	}
 	
+	/**
+	 * Tells the listeners how far we've got each time we pass another 5%.
+	 * Progress is only checked every so often, so we can skip over the
+	 * exact 5% steps, but we always report a multiple of 5.  The listeners hear about it on another thread so we
+	 * can get straight on with the analysis.
+	 */
+	void progressUpdated (int seqCount, int percent) {
+		if (percent < percentComplete+5) return;
+		
+		percentComplete = percent-(percent%5);
+		
+		progress.update(seqCount, percentComplete);
+	}
+	
+	void exceptionReceived (Exception e) {
+		if (progress != null) {
+			progress.finish();
+		}
+		
+		Iterator<AnalysisListener> i = listeners.iterator();
+		while (i.hasNext()) {
+			i.next().analysisExceptionReceived(file,e);
+		}
+	}
+	
 }
@@ -0,0 +1,416 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.babraham.FastQC.Sequence.Contaminant.ContaminentFinder;
+
+/**
+ * Keeps FastQC running so that lots of small submissions don't each have
+ * to pay for starting the JVM, loading the contaminants and warming up.
+ * 
+ * The server only listens on the loopback interface, but other users on
+ * the same machine can still reach that, so when it starts the server
+ * writes a random token to a file in the home directory which only its
+ * owner can read.  A client has to send that token before anything else,
+ * and any connection which doesn't is dropped.
+ * 
+ * Each connection submits one job using a simple line based protocol,
+ * with fields separated by tabs:
+ * 
+ * <pre>
+ * client: TOKEN	token
+ * client: OUTDIR	/path/to/output     (optional)
+ * client: FILE	/path/to/file.fastq  (one or more)
+ * client: RUN
+ * server: STARTED	name
+ * server: PROGRESS	name	percent
+ * server: COMPLETE	name
+ * server: FAILED	name	message
+ * server: DONE	number of failures
+ * </pre>
+ * 
+ * A client can also send PING, to which the server replies PONG, or
+ * SHUTDOWN, which stops the server once any running jobs have finished.
+ * Every file gets a COMPLETE or FAILED line, including files which couldn't
+ * be opened at all.
+ * 
+ * Jobs from different connections share the AnalysisQueue, so the usual
+ * thread and memory limits apply across all of them.  A small fixed pool
+ * of threads reads the requests, but once a job has been queued its
+ * thread goes back to the pool and the events for the job are sent from
+ * the analyses themselves, so the number of jobs is only limited by the
+ * queue and PING and SHUTDOWN never wait behind a running job.  A client
+ * has to send its whole request within a time limit so that idle
+ * connections can't hold on to the pool.
+ */
+public class AnalysisServer {
+
+	public static final int DEFAULT_PORT = 14115;
+	
+	private static final int CONNECTION_THREADS = 4;
+	
+	// How long a new connection has to send its token and request
+	private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+	
+	private ServerSocket serverSocket;
+	private volatile boolean running = true;
+	
+	private File tokenFile;
+	private byte [] token;
+	
+	private ExecutorService connectionPool;
+	
+	public AnalysisServer (int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		try {
+			writeToken();
+		}
+		catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return The file holding the token for a server on the given port.
+	 * There's one per port so that several servers can run side by side.
+	 */
+	public static File getTokenFile (int port) {
+		return new File(System.getProperty("user.home"), ".fastqc_server_"+port);
+	}
+	
+	/**
+	 * Reads the token written by a server on the given port.
+	 */
+	public static String readToken (int port) throws IOException {
+		File file = getTokenFile(port);
+		if (!file.exists()) {
+			throw new IOException("No server token was found in "+file.getPath());
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = br.readLine();
+			if (line == null) {
+				throw new IOException("The server token in "+file.getPath()+" was empty");
+			}
+			return line.trim();
+		}
+		finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * Makes a new random token and writes it to a file which only we can
+	 * read.  The permissions are set before the token goes in so it's
+	 * never readable by anyone else.
+	 */
+	private void writeToken () throws IOException {
+		
+		byte [] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuffer sb = new StringBuffer();
+		for (int i=0;i<random.length;i++) {
+			sb.append(Integer.toHexString((random[i] >> 4) & 0xF));
+			sb.append(Integer.toHexString(random[i] & 0xF));
+		}
+		token = sb.toString().getBytes("UTF-8");
+		
+		tokenFile = getTokenFile(getPort());
+		if (tokenFile.exists() && !tokenFile.delete()) {
+			throw new IOException("Couldn't remove the old server token "+tokenFile.getPath());
+		}
+		if (!tokenFile.createNewFile()) {
+			throw new IOException("Couldn't create the server token "+tokenFile.getPath());
+		}
+		
+		boolean restricted = tokenFile.setReadable(false, false) && tokenFile.setReadable(true, true);
+		restricted &= tokenFile.setWritable(false, false) && tokenFile.setWritable(true, true);
+		restricted &= tokenFile.setExecutable(false, false);
+		if (!restricted) {
+			tokenFile.delete();
+			throw new IOException("Couldn't restrict the permissions on the server token "+tokenFile.getPath());
+		}
+		
+		FileOutputStream fos = new FileOutputStream(tokenFile);
+		try {
+			fos.write(token);
+			fos.write('\n');
+		}
+		finally {
+			fos.close();
+		}
+		tokenFile.deleteOnExit();
+	}
+	
+	/**
+	 * @return The port given in fastqc.server_port, or the default.
+	 */
+	public static int getConfiguredPort () {
+		if (System.getProperty("fastqc.server_port") != null) {
+			try {
+				return Integer.parseInt(System.getProperty("fastqc.server_port"));
+			}
+			catch (NumberFormatException nfe) {
+				System.err.println("Server port '"+System.getProperty("fastqc.server_port")+"' wasn't a number, using "+DEFAULT_PORT);
+			}
+		}
+		return DEFAULT_PORT;
+	}
+	
+	public int getPort () {
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Accepts connections until a client asks us to shut down.
+	 */
+	public void run () {
+		
+		ContaminentFinder.loadContaminants();
+		
+		System.err.println("FastQC server listening on 127.0.0.1:"+getPort());
+		
+		connectionPool = Executors.newFixedThreadPool(CONNECTION_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AnalysisServer-connection");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connectionPool.execute(new Runnable() {
+					public void run() {
+						handleConnection(socket);
+					}
+				});
+			}
+			catch (SocketException e) {
+				// The socket was closed by a shutdown
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		connectionPool.shutdown();
+		tokenFile.delete();
+		
+		AnalysisQueue.getInstance().shutdown();
+		try {
+			AnalysisQueue.getInstance().awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {}
+	}
+	
+	private void shutdown () {
+		running = false;
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {}
+	}
+	
+	private void handleConnection (Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			
+			socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+			
+			if (!checkToken(in)) {
+				socket.close();
+				return;
+			}
+			
+			String outputDir = null;
+			List<String> files = new ArrayList<String>();
+			
+			String line;
+			while ((line = readLine(in)) != null) {
+				String [] sections = line.split("\t", 2);
+				String command = sections[0];
+				
+				if (command.equals("PING")) {
+					send(out, "PONG");
+				}
+				else if (command.equals("SHUTDOWN")) {
+					send(out, "BYE");
+					shutdown();
+					break;
+				}
+				else if (command.equals("OUTDIR") && sections.length == 2) {
+					outputDir = sections[1];
+				}
+				else if (command.equals("FILE") && sections.length == 2) {
+					files.add(sections[1]);
+				}
+				else if (command.equals("RUN")) {
+					// If the job was queued then the socket is closed once
+					// it has finished
+					if (runJob(files, outputDir, socket, out)) return;
+					break;
+				}
+				else {
+					send(out, "ERROR\tDidn't understand '"+line+"'");
+					break;
+				}
+			}
+			
+			socket.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Reads a line of the request.
+	 * 
+	 * @return The line, or null if the client closed the connection or
+	 * didn't send anything in time
+	 */
+	private static String readLine (BufferedReader in) throws IOException {
+		try {
+			return in.readLine();
+		}
+		catch (SocketTimeoutException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the first line from a connection and checks that it holds our
+	 * token.  Nothing is sent back if it doesn't.
+	 */
+	private boolean checkToken (BufferedReader in) throws IOException {
+		String line = readLine(in);
+		
+		if (line == null || !line.startsWith("TOKEN\t")) return false;
+		
+		// Compared in constant time so the token can't be guessed a
+		// character at a time
+		return MessageDigest.isEqual(token, line.substring(6).getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Queues the files for a job.  The events for the job are sent from the
+	 * threads running the analyses, and the last one closes the socket.
+	 * 
+	 * @return true if the job was queued, false if it was rejected
+	 */
+	private boolean runJob (List<String> files, String outputDir, final Socket socket, final PrintWriter out) {
+		
+		if (files.isEmpty()) {
+			send(out, "ERROR\tNo files were given");
+			return false;
+		}
+		
+		if (outputDir != null && !new File(outputDir).isDirectory()) {
+			send(out, "ERROR\tOutput directory '"+outputDir+"' does not exist");
+			return false;
+		}
+		
+		AnalysisListener listener = new AnalysisListener() {
+			
+			public void analysisStarted(SequenceFile file) {
+				send(out, "STARTED\t"+file.name());
+			}
+			
+			public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {
+				send(out, "PROGRESS\t"+file.name()+"\t"+percentComplete);
+			}
+			
+			public void analysisExceptionReceived(SequenceFile file, Exception e) {
+				send(out, "FAILED\t"+file.name()+"\t"+oneLine(e.getMessage()));
+			}
+			
+			public void analysisComplete(SequenceFile file, QCModule[] results) {
+				send(out, "COMPLETE\t"+file.name());
+			}
+		};
+		
+		OfflineRunner.JobListener jobListener = new OfflineRunner.JobListener() {
+			
+			public void fileSkipped(String name, String message) {
+				send(out, "FAILED\t"+name+"\t"+oneLine(message));
+			}
+			
+			public void jobFinished(int failedCount) {
+				send(out, "DONE\t"+failedCount);
+				try {
+					socket.close();
+				}
+				catch (IOException e) {}
+			}
+		};
+		
+		new OfflineRunner(files.toArray(new String[0]), outputDir, listener, jobListener);
+		return true;
+	}
+	
+	/**
+	 * Some exceptions have messages over several lines, which would break
+	 * up our protocol.
+	 */
+	private static String oneLine (String message) {
+		if (message == null) return "";
+		return message.trim().replaceAll("\\s*[\r\n]+\\s*", " ");
+	}
+	
+	/**
+	 * Sends a line to the client.  Analyses can report from several threads
+	 * at once so this is synchronized on the connection.
+	 */
+	private static void send (PrintWriter out, String message) {
+		synchronized (out) {
+			out.println(message);
+			out.flush();
+		}
+	}
+	
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import uk.ac.babraham.FastQC.Modules.BasicStats;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Modules.QCModuleConvergence;
+
+/**
+ * Lets an analysis stop before the end of the file once the results have
+ * stopped changing.  Every so often we ask each module whether its results
+ * have moved since the last check, and once every module says they're
+ * stable we stop and record in the Basic Statistics how far we got.  A
+ * module which can't tell us whether it's stable (one which doesn't
+ * implement QCModuleConvergence) keeps the analysis going to the end.
+ * 
+ * This is configured with the following properties:
+ * 
+ * fastqc.convergence - set to true to turn on early stopping
+ * fastqc.convergence_interval - the number of sequences between checks (100000)
+ * fastqc.convergence_tolerance - the largest change in any proportion a module
+ *                                reports which still counts as stable (0.002)
+ */
+class ConvergenceMonitor {
+
+	private static final long DEFAULT_INTERVAL = 100000;
+	private static final double DEFAULT_TOLERANCE = 0.002;
+	
+	private QCModule [] modules;
+	private long interval;
+	private double tolerance;
+	private long nextCheck;
+	
+	public static boolean isEnabled () {
+		return Boolean.getBoolean("fastqc.convergence");
+	}
+	
+	public ConvergenceMonitor (QCModule [] modules) {
+		this.modules = modules;
+		
+		interval = DEFAULT_INTERVAL;
+		if (System.getProperty("fastqc.convergence_interval") != null) {
+			try {
+				interval = Long.parseLong(System.getProperty("fastqc.convergence_interval"));
+			}
+			catch (NumberFormatException nfe) {}
+			if (interval < 1) {
+				System.err.println("Convergence interval '"+System.getProperty("fastqc.convergence_interval")+"' wasn't a positive number");
+				interval = DEFAULT_INTERVAL;
+			}
+		}
+		
+		tolerance = DEFAULT_TOLERANCE;
+		if (System.getProperty("fastqc.convergence_tolerance") != null) {
+			try {
+				tolerance = Double.parseDouble(System.getProperty("fastqc.convergence_tolerance"));
+			}
+			catch (NumberFormatException nfe) {
+				System.err.println("Convergence tolerance '"+System.getProperty("fastqc.convergence_tolerance")+"' wasn't a number");
+			}
+		}
+		
+		nextCheck = interval;
+	}
+	
+	/**
+	 * Checks the modules if we've read enough sequences since the last check.
+	 * 
+	 * @param sequenceCount The number of sequences the modules have seen
+	 * @return true if the analysis can stop now
+	 */
+	public boolean check (long sequenceCount) {
+		if (sequenceCount < nextCheck) return false;
+		nextCheck = sequenceCount+interval;
+		
+		// Every module needs to see this check, even after one has said it
+		// isn't stable, so that they all compare against the same point
+		boolean stable = true;
+		for (int m=0;m<modules.length;m++) {
+			if (!(modules[m] instanceof QCModuleConvergence) || !((QCModuleConvergence)modules[m]).isStable(tolerance)) {
+				stable = false;
+			}
+		}
+		
+		if (stable) {
+			for (int m=0;m<modules.length;m++) {
+				if (modules[m] instanceof BasicStats) {
+					((BasicStats)modules[m]).setConverged(sequenceCount, tolerance);
+				}
+			}
+		}
+		
+		return stable;
+	}
+	
+}
@@ -26,6 +26,8 @@ import java.util.Vector;
 
 import uk.ac.babraham.FastQC.Modules.BasicStats;
 import uk.ac.babraham.FastQC.Modules.KmerContent;
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.ModuleStateFile;
 import uk.ac.babraham.FastQC.Modules.NContent;
 import uk.ac.babraham.FastQC.Modules.OverRepresentedSeqs;
 import uk.ac.babraham.FastQC.Modules.PerBaseGCContent;
@@ -44,14 +46,85 @@ import uk.ac.babraham.FastQC.Utilities.CasavaBasename;
 
 public class OfflineRunner implements AnalysisListener {
 	
+	/**
+	 * Hears about a set of files as a whole, rather than about each
+	 * analysis.
+	 */
+	public interface JobListener {
+		
+		/**
+		 * A file which couldn't be analysed at all, so no analysis will
+		 * report on it.
+		 */
+		public void fileSkipped(String name, String message);
+		
+		/**
+		 * Every file has finished, and any aggregated report has been written.
+		 */
+		public void jobFinished(int failedCount);
+	}
+	
 	private int filesRemaining;
+	private int filesFailed = 0;
+	private boolean allQueued = false;
+	private boolean finishing = false;
+	private boolean finished = false;
 	private boolean showUpdates = true;
+	private String outputDir;
+	private AnalysisListener extraListener;
+	private JobListener jobListener;
 	private LinkedHashMap<Class, QCModuleAggreg> aggregModules; // maps the class to the module
 	private AggregSequenceFiles aggregSeqFiles;
 	
 	
 	
 	public OfflineRunner (String [] filenames) {
+		this(filenames, System.getProperty("fastqc.output_dir"), null);
+		System.exit(0);
+	}
+	
+	/**
+	 * Analyses a set of files and returns once they've all finished.
+	 * 
+	 * @param filenames The files to analyse
+	 * @param outputDir Where to write the reports, or null to put them
+	 * next to the files
+	 * @param extraListener A listener which is also told about the progress
+	 * of each file, or null.  It hears that a file is complete once the
+	 * report has been written.
+	 */
+	public OfflineRunner (String [] filenames, String outputDir, AnalysisListener extraListener) {
+		this(filenames, outputDir, extraListener, null);
+		
+		// We need to hold this class open as otherwise the main method
+		// exits when it's finished.
+		synchronized (this) {
+			while (!finished) {
+				try {
+					wait();
+				} 
+				catch (InterruptedException e) {}
+			}
+		}
+	}
+	
+	/**
+	 * Queues a set of files and returns straight away, without waiting for
+	 * them to be analysed.
+	 * 
+	 * @param filenames The files to analyse
+	 * @param outputDir Where to write the reports, or null to put them
+	 * next to the files
+	 * @param extraListener A listener which is also told about the progress
+	 * of each file, or null
+	 * @param jobListener A listener which is told about files which couldn't
+	 * be analysed at all, and when every file has finished, or null
+	 */
+	public OfflineRunner (String [] filenames, String outputDir, AnalysisListener extraListener, JobListener jobListener) {
+		
+		this.outputDir = outputDir;
+		this.extraListener = extraListener;
+		this.jobListener = jobListener;
 		
 		// See if we need to show updates
 		if (System.getProperty("fastqc.quiet") != null && System.getProperty("fastqc.quiet").equals("true")) {
@@ -64,6 +137,8 @@ public class OfflineRunner implements AnalysisListener {
 			File file = new File(filenames[f]);
 			if (!file.exists() || ! file.canRead()) {
 				System.err.println("Skipping '"+filenames[f]+"' which didn't exist, or couldn't be read");
+				++filesFailed;
+				if (jobListener != null) jobListener.fileSkipped(file.getName(), "File didn't exist, or couldn't be read");
 				continue;
 			}
 			files.add(file);
@@ -84,7 +159,7 @@ public class OfflineRunner implements AnalysisListener {
 		
 		if (Boolean.getBoolean("fastqc.aggreg")) {
 			try {
-				String groupParentDirName = System.getProperty("fastqc.output_dir");
+				String groupParentDirName = outputDir;
 				String groupFilename = System.getProperty("fastqc.aggreg.file");				
 				this.aggregSeqFiles = new AggregSequenceFiles(files.toArray(new File[0]), groupParentDirName, groupFilename);
 				
@@ -110,27 +185,62 @@ public class OfflineRunner implements AnalysisListener {
 			catch (Exception e) {
 				System.err.println("Failed to process "+fileGroups[i][0]);
 				e.printStackTrace();
-				--filesRemaining;
+				synchronized (this) {
+					++filesFailed;
+				}
+				if (jobListener != null) {
+					jobListener.fileSkipped(fileGroups[i][0].getName(), e.getMessage() != null ? e.getMessage() : e.toString());
+				}
+				fileFinished();
 			}
 		}
 		
-		// We need to hold this class open as otherwise the main method
-		// exits when it's finished.
-		while (filesRemaining > 0) {
-			try {
-				Thread.sleep(1000);
-			} 
-			catch (InterruptedException e) {}
+		synchronized (this) {
+			allQueued = true;
+		}
+		checkFinished();
+		
+	}
+	
+	/**
+	 * @return The number of files or groups of files which couldn't be
+	 * analysed.
+	 */
+	public synchronized int getFailedCount () {
+		return filesFailed;
+	}
+	
+	
+	private void fileFinished () {
+		synchronized (this) {
+			--filesRemaining;
+		}
+		checkFinished();
+	}
+	
+	/**
+	 * Writes the aggregated results and tells everyone once the last file
+	 * has finished.  Files can finish before we've queued them all, so we
+	 * only do this once everything has been queued.
+	 */
+	private void checkFinished () {
+		synchronized (this) {
+			if (!allQueued || filesRemaining > 0 || finishing) return;
+			finishing = true;
 		}
 		
 		if (Boolean.getBoolean("fastqc.aggreg") == true) {			
 			aggregResults();
 		}
-		System.exit(0);
 		
+		if (jobListener != null) jobListener.jobFinished(getFailedCount());
+		
+		synchronized (this) {
+			finished = true;
+			notifyAll();
+		}
 	}
 	
-	
 	public void processFile (File [] files) throws Exception {
 		for (int f=0;f<files.length;f++) {
 			if (!files[f].exists()) {
@@ -148,20 +258,7 @@ public class OfflineRunner implements AnalysisListener {
 		AnalysisRunner runner = new AnalysisRunner(sequenceFile);
 		runner.addAnalysisListener(this);
 		
-		OverRepresentedSeqs os = new OverRepresentedSeqs();
-		QCModule [] module_list = new QCModule [] { //TODO:  clean this up
-				new BasicStats(),
-				new PerBaseQualityScores(),
-				new PerSequenceQualityScores(),
-				new PerBaseSequenceContent(),
-				new PerBaseGCContent(), 
-				new PerSequenceGCContent(),
-				new NContent(),
-				new SequenceLengthDistribution(),
-				os.duplicationLevelModule(),
-				os,
-				new KmerContent()
-			};
+		QCModule [] module_list = ModuleFactory.getStandardModuleList();
 		
 		runner.startAnalysis(module_list);
 
@@ -173,9 +270,9 @@ public class OfflineRunner implements AnalysisListener {
 		if (showUpdates) System.out.println("Analysis complete for "+file.name());
 
 		
-		if (System.getProperty("fastqc.output_dir") != null) {
+		if (outputDir != null) {
 			String fileName = file.getFile().getName().replaceAll(".gz$","").replaceAll(".bz2$","").replaceAll(".txt$","").replaceAll(".fastq$", "").replaceAll(".sam$", "").replaceAll(".bam$", "")+"_fastqc.zip";
-			reportFile = new File(System.getProperty("fastqc.output_dir")+"/"+fileName);						
+			reportFile = new File(outputDir+"/"+fileName);						
 		}
 		else {
 			reportFile = new File(file.getFile().getAbsolutePath().replaceAll(".gz$","").replaceAll(".bz2$","").replaceAll(".txt$","").replaceAll(".fastq$", "").replaceAll(".sam$", "").replaceAll(".bam$", "")+"_fastqc.zip");			
@@ -183,6 +280,11 @@ public class OfflineRunner implements AnalysisListener {
 		
 		try {
 			new HTMLReportArchive(file, results, reportFile);
+			
+			// The state lets this file be merged with others later on
+			if (System.getProperty("fastqc.save_state") != null && System.getProperty("fastqc.save_state").equals("true")) {
+				ModuleStateFile.write(new File(reportFile.getPath().replaceAll("_fastqc.zip$", "_fastqc.state")), results);
+			}
 		}
 		catch (Exception e) {
 			analysisExceptionReceived(file, e);
@@ -199,7 +301,8 @@ public class OfflineRunner implements AnalysisListener {
 				
 			}
 		}
-		--filesRemaining;
+		if (extraListener != null) extraListener.analysisComplete(file, results);
+		fileFinished();
 
 	}
 	
@@ -231,6 +334,8 @@ public class OfflineRunner implements AnalysisListener {
 
 	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {
 		
+		if (extraListener != null) extraListener.analysisUpdated(file, sequencesProcessed, percentComplete);
+		
 		if (percentComplete % 5 == 0) {
 			if (percentComplete == 105) {
 				if (showUpdates) System.err.println("It seems our guess for the total number of records wasn't very good.  Sorry about that.");
@@ -247,11 +352,16 @@ public class OfflineRunner implements AnalysisListener {
 	public void analysisExceptionReceived(SequenceFile file, Exception e) {
 		System.err.println("Failed to process file "+file.name());
 		e.printStackTrace();
-		--filesRemaining;
+		synchronized (this) {
+			++filesFailed;
+		}
+		if (extraListener != null) extraListener.analysisExceptionReceived(file, e);
+		fileFinished();
 	}
 
 	public void analysisStarted(SequenceFile file) {
 		if (showUpdates) System.err.println("Started analysis of "+file.name());
+		if (extraListener != null) extraListener.analysisStarted(file);
 		
 	}
 
@@ -0,0 +1,123 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Passes progress updates on to the listeners for an analysis from a
+ * separate thread, so a slow listener (eg one which has to repaint a
+ * window) doesn't hold up the analysis.  If updates arrive faster than the
+ * listeners can deal with them the listeners only get the latest one.
+ * 
+ * The thread is only started when the first update arrives, so short
+ * analyses never need one.
+ */
+class ProgressNotifier implements Runnable {
+
+	private SequenceFile file;
+	private List<AnalysisListener> listeners;
+	
+	private Thread thread = null;
+	private boolean pending = false;
+	private boolean finished = false;
+	private int sequencesProcessed;
+	private int percentComplete;
+	
+	public ProgressNotifier (SequenceFile file, List<AnalysisListener> listeners) {
+		this.file = file;
+		this.listeners = listeners;
+	}
+	
+	/**
+	 * Queues an update, replacing any which hasn't been sent yet.
+	 */
+	public synchronized void update (int sequencesProcessed, int percentComplete) {
+		if (finished) return;
+		
+		this.sequencesProcessed = sequencesProcessed;
+		this.percentComplete = percentComplete;
+		pending = true;
+		
+		if (thread == null) {
+			thread = new Thread(this, "Progress for "+file.name());
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Sends any update which is still waiting and stops the thread.  This
+	 * must be called before the listeners are told the analysis has finished
+	 * so they never get an update after that.
+	 */
+	public void finish () {
+		Thread toJoin;
+		synchronized (this) {
+			finished = true;
+			notifyAll();
+			toJoin = thread;
+		}
+		
+		if (toJoin == null || toJoin == Thread.currentThread()) return;
+		
+		while (true) {
+			try {
+				toJoin.join();
+				return;
+			}
+			catch (InterruptedException e) {
+				// Keep waiting - the update needs to go before anything else
+			}
+		}
+	}
+	
+	public void run () {
+		while (true) {
+			int sequences;
+			int percent;
+			List<AnalysisListener> currentListeners;
+			
+			synchronized (this) {
+				while (!pending && !finished) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {}
+				}
+				if (!pending) return;
+				
+				sequences = sequencesProcessed;
+				percent = percentComplete;
+				pending = false;
+				currentListeners = new ArrayList<AnalysisListener>(listeners);
+			}
+			
+			for (AnalysisListener listener : currentListeners) {
+				listener.analysisUpdated(file, sequences, percent);
+			}
+		}
+	}
+	
+}
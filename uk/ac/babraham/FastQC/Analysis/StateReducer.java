@@ -0,0 +1,154 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Analysis;
+
+import java.io.File;
+
+import uk.ac.babraham.FastQC.Modules.BasicStats;
+import uk.ac.babraham.FastQC.Modules.ModuleStateFile;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Modules.QCModuleAggreg;
+import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+
+/**
+ * Merges state files saved by separate runs over parts of a data set into
+ * a single report, as though all of the data had been analysed together.
+ * The state files come from running with fastqc.save_state=true.
+ * 
+ * The report is named from fastqc.reduce.file if it's set, and goes in
+ * fastqc.output_dir or next to the first state file.  If fastqc.save_state
+ * is set then the merged state is saved too, so reductions can themselves
+ * be merged.
+ */
+public class StateReducer {
+	
+	private static final String STATE_SUFFIX = "_fastqc.state";
+	
+	private boolean succeeded = false;
+	
+	public StateReducer (String [] filenames) {
+		
+		boolean showUpdates = true;
+		if (System.getProperty("fastqc.quiet") != null && System.getProperty("fastqc.quiet").equals("true")) {
+			showUpdates = false;
+		}
+		
+		File [] files = new File[filenames.length];
+		for (int f=0;f<filenames.length;f++) {
+			files[f] = new File(filenames[f]);
+			if (!files[f].exists() || !files[f].canRead()) {
+				System.err.println("State file '"+filenames[f]+"' didn't exist, or couldn't be read");
+				return;
+			}
+		}
+		
+		String name = System.getProperty("fastqc.reduce.file");
+		if (name == null || name.trim().length() == 0) {
+			name = "MergedResults_"+stripSuffix(files[0].getName())+"_to_"+stripSuffix(files[files.length-1].getName());
+		}
+		
+		String outputDir = System.getProperty("fastqc.output_dir");
+		if (outputDir == null) {
+			outputDir = files[0].getAbsoluteFile().getParent();
+		}
+		
+		QCModule [] merged = null;
+		
+		for (int f=0;f<files.length;f++) {
+			if (showUpdates) System.err.println("Reading state from "+files[f].getName());
+			
+			QCModule [] modules;
+			try {
+				modules = ModuleStateFile.read(files[f]);
+			}
+			catch (Exception e) {
+				System.err.println("Failed to read state from "+files[f]);
+				e.printStackTrace();
+				return;
+			}
+			
+			if (merged == null) {
+				// We keep the first set of modules to merge the others into,
+				// apart from the basic stats which need to show our name
+				// rather than that of the first part.
+				merged = modules;
+				for (int m=0;m<merged.length;m++) {
+					if (merged[m] instanceof BasicStats) {
+						BasicStats stats = new BasicStats(name, null);
+						stats.mergeResult((BasicStats)modules[m]);
+						merged[m] = stats;
+					}
+				}
+				continue;
+			}
+			
+			// A module refuses to merge results which were collected with
+			// different settings
+			try {
+				for (int m=0;m<merged.length;m++) {
+					if (merged[m] instanceof QCModuleAggreg) {
+						mergeModule((QCModuleAggreg<?>)merged[m], modules[m]);
+					}
+				}
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("Couldn't merge state from "+files[f]+": "+e.getMessage());
+				return;
+			}
+		}
+		
+		try {
+			if (System.getProperty("fastqc.save_state") != null && System.getProperty("fastqc.save_state").equals("true")) {
+				ModuleStateFile.write(new File(outputDir+"/"+name+STATE_SUFFIX), merged);
+			}
+			
+			new HTMLReportArchive(name, merged, new File(outputDir+"/"+name+"_fastqc.zip"));
+		}
+		catch (Exception e) {
+			System.err.println("Failed to write merged results for "+name);
+			e.printStackTrace();
+			return;
+		}
+		
+		if (showUpdates) System.out.println("Merged results from "+files.length+" state files into "+name);
+		
+		succeeded = true;
+	}
+	
+	/**
+	 * Both modules come from the standard list so are always of the same type.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends QCModule> void mergeModule (QCModuleAggreg<T> into, QCModule from) {
+		into.mergeResult((T)from);
+	}
+	
+	private static String stripSuffix (String filename) {
+		if (filename.endsWith(STATE_SUFFIX)) {
+			return filename.substring(0, filename.length()-STATE_SUFFIX.length());
+		}
+		return filename;
+	}
+	
+	public boolean succeeded () {
+		return succeeded;
+	}
+	
+}
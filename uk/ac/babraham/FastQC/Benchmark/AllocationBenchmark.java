@@ -0,0 +1,93 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.File;
+
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Measures how many bytes are allocated for each read, first just reading
+ * the file and then reading it and running all of the standard modules.
+ * Everything runs in the main thread so the per-thread allocation counter
+ * sees all of it, which means a compressed file should be run with
+ * -Dfastqc.decompression_threads=1.
+ * 
+ * Sequences are released after use so they can be reused, unless the
+ * third argument is 'noreuse'.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.AllocationBenchmark file [max sequences] [noreuse]
+ */
+public class AllocationBenchmark {
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: AllocationBenchmark [sequence file] [max sequences] [noreuse]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		
+		int maxSequences = Integer.MAX_VALUE;
+		if (args.length > 1) {
+			maxSequences = Integer.parseInt(args[1]);
+		}
+		
+		boolean reuse = !(args.length > 2 && args[2].equals("noreuse"));
+		
+		AllocationCounter allocations = AllocationCounter.create();
+		
+		// The first pass just warms up the JIT
+		for (int pass=0;pass<3;pass++) {
+			boolean runModules = pass == 2;
+			QCModule [] modules = ModuleFactory.getStandardModuleList();
+			
+			long startBytes = allocations.currentThread();
+			long start = System.nanoTime();
+			int count = 0;
+			
+			SequenceFile sequences = SequenceFactory.getSequenceFile(file);
+			while (sequences.hasNext() && count < maxSequences) {
+				Sequence seq = sequences.next();
+				++count;
+				if (runModules) {
+					for (int m=0;m<modules.length;m++) {
+						if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+						modules[m].processSequence(seq);
+					}
+				}
+				if (reuse) seq.release();
+			}
+			
+			long bytes = allocations.currentThread()-startBytes;
+			double seconds = (System.nanoTime()-start)/1000000000d;
+			
+			if (pass > 0) {
+				System.out.println((runModules ? "Reading and modules" : "Reading only")+"\t"+count+" sequences\t"+String.format("%.0f", bytes/(double)Math.max(count, 1))+" bytes/sequence\t"+String.format("%.3f", seconds)+"s");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes allocated by threads, for the benchmarks which measure
+ * allocation.  This needs the com.sun.management extension to the thread
+ * bean, which most JVMs have.
+ */
+class AllocationCounter {
+
+	private com.sun.management.ThreadMXBean threads;
+	
+	private AllocationCounter (com.sun.management.ThreadMXBean threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * Makes a counter, or stops with a message if this JVM can't measure
+	 * allocations.
+	 */
+	public static AllocationCounter create () {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("This JVM can't measure allocations");
+			System.exit(1);
+		}
+		return new AllocationCounter((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean());
+	}
+	
+	/**
+	 * The bytes allocated so far by the thread calling this.
+	 */
+	public long currentThread () {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Adds up the allocations of every live thread, which includes any
+	 * pool threads since they stay alive between runs.
+	 */
+	public long allThreads () {
+		long total = 0;
+		long [] ids = threads.getAllThreadIds();
+		long [] bytes = threads.getThreadAllocatedBytes(ids);
+		for (int i=0;i<bytes.length;i++) {
+			if (bytes[i] > 0) total += bytes[i];
+		}
+		return total;
+	}
+	
+}
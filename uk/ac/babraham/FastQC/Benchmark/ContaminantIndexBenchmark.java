@@ -0,0 +1,151 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.babraham.FastQC.Sequence.Contaminant.Contaminant;
+import uk.ac.babraham.FastQC.Sequence.Contaminant.ContaminantHit;
+import uk.ac.babraham.FastQC.Sequence.Contaminant.ContaminantIndex;
+
+/**
+ * Compares looking up contaminants through the ContaminantIndex with
+ * trying every contaminant in turn.  The contaminants from the given file
+ * are padded out with random vectors to the requested number, and the
+ * queries are a mix of random sequences and mutated pieces of the
+ * contaminants.  The program exits with an error if the two methods ever
+ * disagree.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.ContaminantIndexBenchmark contaminant_list.txt [contaminants] [queries]
+ */
+public class ContaminantIndexBenchmark {
+
+	private static final char [] BASES = new char [] {'G','A','T','C'};
+	
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: ContaminantIndexBenchmark [contaminant file] [contaminants] [queries]");
+			System.exit(1);
+		}
+
+		int contaminantCount = 5000;
+		if (args.length > 1) {
+			contaminantCount = Integer.parseInt(args[1]);
+		}
+
+		int queryCount = 100;
+		if (args.length > 2) {
+			queryCount = Integer.parseInt(args[2]);
+		}
+		
+		Random random = new Random(42);
+		
+		List<Contaminant> contaminantList = new ArrayList<Contaminant>();
+		List<String> contaminantSequences = new ArrayList<String>();
+		
+		BufferedReader br = new BufferedReader(new FileReader(args[0]));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith("#") || line.trim().length() == 0) continue;
+			String [] sections = line.split("\\t+");
+			if (sections.length != 2) continue;
+			contaminantList.add(new Contaminant(sections[0], sections[1]));
+			contaminantSequences.add(sections[1].toUpperCase());
+		}
+		br.close();
+		
+		while (contaminantList.size() < contaminantCount) {
+			String sequence = randomSequence(random, 20+random.nextInt(300));
+			contaminantList.add(new Contaminant("Vector "+contaminantList.size(), sequence));
+			contaminantSequences.add(sequence);
+		}
+		
+		Contaminant [] contaminants = contaminantList.toArray(new Contaminant[0]);
+
+		String [] queries = new String[queryCount];
+		for (int q=0;q<queryCount;q++) {
+			if (q % 2 == 0) {
+				queries[q] = randomSequence(random, 50);
+			}
+			else {
+				// Take a piece of a contaminant and change one base
+				String source = contaminantSequences.get(random.nextInt(contaminantSequences.size()));
+				int length = Math.min(source.length(), 10+random.nextInt(50));
+				int start = random.nextInt((source.length()-length)+1);
+				char [] query = source.substring(start, start+length).toCharArray();
+				query[random.nextInt(length)] = BASES[random.nextInt(BASES.length)];
+				queries[q] = new String(query);
+			}
+		}
+		
+		long start = System.nanoTime();
+		ContaminantIndex index = new ContaminantIndex(contaminants);
+		System.out.println("Indexed "+contaminants.length+" contaminants in "+String.format("%.3f",(System.nanoTime()-start)/1000000000d)+"s");
+		
+		start = System.nanoTime();
+		ContaminantHit [] indexedHits = new ContaminantHit[queryCount];
+		for (int q=0;q<queryCount;q++) {
+			indexedHits[q] = index.findContaminantHit(queries[q]);
+		}
+		double indexedSeconds = (System.nanoTime()-start)/1000000000d;
+
+		start = System.nanoTime();
+		ContaminantHit [] scannedHits = new ContaminantHit[queryCount];
+		for (int q=0;q<queryCount;q++) {
+			for (int c=0;c<contaminants.length;c++) {
+				ContaminantHit thisHit = contaminants[c].findMatch(queries[q]);
+				if (thisHit == null) continue;
+				if (scannedHits[q] == null || thisHit.length() > scannedHits[q].length()) {
+					scannedHits[q] = thisHit;
+				}
+			}
+		}
+		double scannedSeconds = (System.nanoTime()-start)/1000000000d;
+
+		int hitCount = 0;
+		for (int q=0;q<queryCount;q++) {
+			String indexed = indexedHits[q] == null ? "No Hit" : indexedHits[q].toString();
+			String scanned = scannedHits[q] == null ? "No Hit" : scannedHits[q].toString();
+			if (!indexed.equals(scanned)) {
+				System.err.println("Hits differed for "+queries[q]+": indexed="+indexed+" scanned="+scanned);
+				System.exit(1);
+			}
+			if (indexedHits[q] != null) ++hitCount;
+		}
+		
+		System.out.println(queryCount+" queries, "+hitCount+" with hits, identical results");
+		System.out.println("Indexed lookups\t"+String.format("%.3f",indexedSeconds)+"s");
+		System.out.println("Scanned lookups\t"+String.format("%.3f",scannedSeconds)+"s");
+	}
+	
+	private static String randomSequence (Random random, int length) {
+		char [] sequence = new char[length];
+		for (int i=0;i<length;i++) {
+			sequence[i] = BASES[random.nextInt(BASES.length)];
+		}
+		return new String(sequence);
+	}
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.babraham.FastQC.Utilities.ParallelGZIPInputStream;
+
+/**
+ * Measures how quickly a gzip, bgzip or BAM file can be decompressed, and
+ * how many bytes are allocated across all threads to do it, first just
+ * inflating the data and then reading the sequences out of it.  Set the
+ * number of worker threads with -Dfastqc.decompression_threads.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.DecompressionBenchmark file
+ */
+public class DecompressionBenchmark {
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: DecompressionBenchmark [compressed file]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+
+		AllocationCounter allocations = AllocationCounter.create();
+
+		byte [] buffer = new byte[65536];
+
+		// The first pass just warms up the JIT
+		for (int pass=0;pass<3;pass++) {
+			boolean readSequences = pass == 2;
+
+			long startBytes = allocations.allThreads();
+			long start = System.nanoTime();
+			long count = 0;
+
+			if (readSequences) {
+				SequenceFile sequences = SequenceFactory.getSequenceFile(file);
+				while (sequences.hasNext()) {
+					Sequence seq = sequences.next();
+					++count;
+					seq.release();
+				}
+			}
+			else {
+				InputStream in = ParallelGZIPInputStream.open(new FileInputStream(file));
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					count += read;
+				}
+				in.close();
+			}
+
+			long bytes = allocations.allThreads()-startBytes;
+			double seconds = (System.nanoTime()-start)/1000000000d;
+
+			if (pass > 0) {
+				if (readSequences) {
+					System.out.println("Reading sequences\t"+count+" sequences\t"+String.format("%.0f", bytes/(double)Math.max(count, 1))+" bytes/sequence\t"+String.format("%.3f", seconds)+"s");
+				}
+				else {
+					System.out.println("Inflating only\t"+String.format("%.1f", count/1048576d)+"MB\t"+String.format("%.3f", bytes/(double)Math.max(count, 1))+" bytes allocated/byte\t"+String.format("%.1f", count/1048576d/seconds)+"MB/s");
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.itadaki.bzip2.BZip2InputStream;
+
+import uk.ac.babraham.FastQC.Sequence.FastQParser;
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.babraham.FastQC.Utilities.MultiMemberGZIPInputStream;
+
+/**
+ * Compares the throughput of the old line based FastQ reader with the
+ * byte based parser, both on its own and wrapped up in a FastQFile.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.FastQParserBenchmark file.fastq [repeats]
+ */
+public class FastQParserBenchmark {
+
+	public static void main (String [] args) throws Exception {
+		
+		if (args.length < 1) {
+			System.err.println("Usage: FastQParserBenchmark [fastq file] [repeats]");
+			System.exit(1);
+		}
+		
+		File file = new File(args[0]);
+		int repeats = 3;
+		if (args.length > 1) {
+			repeats = Integer.parseInt(args[1]);
+		}
+		
+		// The first pass just warms up the JIT and the disk cache
+		for (int r=0;r<=repeats;r++) {
+			boolean report = r > 0;
+			time("Line reader", file, report, new RecordCounter() {
+				public long count (File f) throws Exception {return readLines(f);}
+			});
+			time("Byte parser", file, report, new RecordCounter() {
+				public long count (File f) throws Exception {return readBytes(f);}
+			});
+			time("FastQFile", file, report, new RecordCounter() {
+				public long count (File f) throws Exception {return readSequences(f);}
+			});
+		}
+	}
+	
+	private interface RecordCounter {
+		public long count (File file) throws Exception;
+	}
+	
+	private static void time (String name, File file, boolean report, RecordCounter counter) throws Exception {
+		long start = System.nanoTime();
+		long records = counter.count(file);
+		double seconds = (System.nanoTime()-start)/1000000000d;
+		
+		if (report) {
+			System.out.println(name+"\t"+records+" records\t"+String.format("%.2f",seconds)+"s\t"+String.format("%.0f",records/seconds)+" records/s\t"+String.format("%.1f", (file.length()/(1024d*1024))/seconds)+" MB/s");
+		}
+	}
+	
+	private static InputStream open (File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		if (file.getName().toLowerCase().endsWith(".gz")) {
+			return new MultiMemberGZIPInputStream(fis);
+		}
+		else if (file.getName().toLowerCase().endsWith(".bz2")) {
+			return new BZip2InputStream(fis,false);
+		}
+		return fis;
+	}
+	
+	/**
+	 * This reproduces the way FastQFile used to read records
+	 */
+	private static long readLines (File file) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(open(file)));
+		long count = 0;
+		long checksum = 0;
+		String id;
+		while ((id = br.readLine()) != null) {
+			if (id.length() == 0) continue;
+			String seq = br.readLine();
+			br.readLine();
+			String quality = br.readLine();
+			if (quality == null) break;
+			Sequence s = new Sequence(null, seq.toUpperCase(), quality, id);
+			checksum += s.getSequence().length();
+			++count;
+		}
+		br.close();
+		if (checksum < 0) System.err.println(checksum);
+		return count;
+	}
+	
+	private static long readBytes (File file) throws Exception {
+		FastQParser parser = new FastQParser(open(file));
+		long count = 0;
+		long checksum = 0;
+		while (parser.nextRecord()) {
+			parser.upperCaseSequence();
+			checksum += parser.sequenceLength();
+			++count;
+		}
+		parser.close();
+		if (checksum < 0) System.err.println(checksum);
+		return count;
+	}
+	
+	private static long readSequences (File file) throws Exception {
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);
+		long count = 0;
+		long checksum = 0;
+		while (sequenceFile.hasNext()) {
+			checksum += sequenceFile.next().getSequence().length();
+			++count;
+		}
+		if (checksum < 0) System.err.println(checksum);
+		return count;
+	}
+	
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.ac.babraham.FastQC.Sequence.MappedFileSplitter;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Checks that every range MappedFileSplitter cuts an uncompressed FastQ
+ * file into starts on a real record, and compares how long it takes to
+ * parse the file in a single stream with parsing its ranges in parallel.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.MappedSplitBenchmark file.fastq [ranges] [threads]
+ * 
+ * Exits with status 1 if any range starts in the wrong place or the
+ * number of sequences read differs.
+ */
+public class MappedSplitBenchmark {
+
+	public static void main (String [] args) throws Exception {
+		
+		if (args.length < 1) {
+			System.err.println("Usage: MappedSplitBenchmark [fastq file] [ranges] [threads]");
+			System.exit(1);
+		}
+		
+		File file = new File(args[0]);
+		int ranges = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		
+		long [] recordStarts = findRecordStarts(file);
+		System.out.println("File has "+recordStarts.length+" records");
+		
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);
+		if (!MappedFileSplitter.canSplit(sequenceFile)) {
+			System.err.println(file.getName()+" can't be split");
+			System.exit(1);
+		}
+		
+		long start = System.nanoTime();
+		final MappedFileSplitter splitter = new MappedFileSplitter(sequenceFile, ranges);
+		System.out.println("Found "+splitter.rangeCount()+" ranges in "+((System.nanoTime()-start)/1000000)+"ms");
+		
+		boolean failed = false;
+		for (int r=0;r<splitter.rangeCount();r++) {
+			if (Arrays.binarySearch(recordStarts, splitter.rangeStart(r)) < 0) {
+				System.out.println("Range "+r+" starts at "+splitter.rangeStart(r)+" which isn't the start of a record");
+				failed = true;
+			}
+		}
+		
+		// The first pass just warms up the JIT and the disk cache
+		for (int pass=0;pass<3;pass++) {
+			
+			start = System.nanoTime();
+			int streamed = 0;
+			SequenceFile whole = SequenceFactory.getSequenceFile(file);
+			while (whole.hasNext()) {
+				whole.next();
+				++streamed;
+			}
+			long streamedTime = System.nanoTime()-start;
+			
+			start = System.nanoTime();
+			final AtomicInteger nextRange = new AtomicInteger(0);
+			final AtomicInteger mapped = new AtomicInteger(0);
+			List<Thread> workers = new ArrayList<Thread>();
+			for (int t=0;t<threads;t++) {
+				Thread worker = new Thread(new Runnable() {
+					public void run() {
+						try {
+							int range;
+							while ((range = nextRange.getAndIncrement()) < splitter.rangeCount()) {
+								SequenceFile part = splitter.openRange(range);
+								int count = 0;
+								while (part.hasNext()) {
+									part.next();
+									++count;
+								}
+								mapped.addAndGet(count);
+							}
+						}
+						catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				workers.add(worker);
+				worker.start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			long mappedTime = System.nanoTime()-start;
+			
+			if (pass > 0) {
+				System.out.println("Streamed "+streamed+" sequences in "+(streamedTime/1000000)+"ms, mapped "+mapped.get()+" in "+(mappedTime/1000000)+"ms with "+threads+" threads");
+			}
+			
+			if (streamed != mapped.get()) failed = true;
+		}
+		
+		System.exit(failed ? 1 : 0);
+	}
+	
+	/**
+	 * Finds where every record starts by reading the file four lines at a
+	 * time, which is only safe for files without blank lines.
+	 */
+	private static long [] findRecordStarts (File file) throws Exception {
+		long [] starts = new long[1024];
+		int count = 0;
+		
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1024*1024);
+		long position = 0;
+		long line = 0;
+		boolean lineStart = true;
+		int b;
+		while ((b = in.read()) != -1) {
+			if (lineStart && line % 4 == 0) {
+				if (count == starts.length) starts = Arrays.copyOf(starts, count*2);
+				starts[count++] = position;
+			}
+			lineStart = b == '\n';
+			if (lineStart) ++line;
+			++position;
+		}
+		in.close();
+		
+		return Arrays.copyOf(starts, count);
+	}
+	
+}
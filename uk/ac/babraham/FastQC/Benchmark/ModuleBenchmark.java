@@ -0,0 +1,86 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Times how long each of the standard modules takes to process a set of
+ * sequences.  The sequences are read into memory first so only the time
+ * spent in processSequence is measured.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.ModuleBenchmark file.fastq [max sequences] [repeats]
+ */
+public class ModuleBenchmark {
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: ModuleBenchmark [sequence file] [max sequences] [repeats]");
+			System.exit(1);
+		}
+
+		int maxSequences = 1000000;
+		if (args.length > 1) {
+			maxSequences = Integer.parseInt(args[1]);
+		}
+
+		int repeats = 3;
+		if (args.length > 2) {
+			repeats = Integer.parseInt(args[2]);
+		}
+
+		SequenceFile file = SequenceFactory.getSequenceFile(new File(args[0]));
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		while (file.hasNext() && sequences.size() < maxSequences) {
+			sequences.add(file.next());
+		}
+
+		System.out.println("Loaded "+sequences.size()+" sequences");
+
+		// The first pass just warms up the JIT
+		for (int r=0;r<=repeats;r++) {
+			QCModule [] modules = ModuleFactory.getStandardModuleList();
+
+			for (int m=0;m<modules.length;m++) {
+				long start = System.nanoTime();
+				for (int s=0;s<sequences.size();s++) {
+					Sequence seq = sequences.get(s);
+					if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+					modules[m].processSequence(seq);
+				}
+				double seconds = (System.nanoTime()-start)/1000000000d;
+
+				if (r > 0) {
+					System.out.println(modules[m].name()+"\t"+String.format("%.3f",seconds)+"s\t"+String.format("%.0f",sequences.size()/seconds)+" sequences/s");
+				}
+			}
+		}
+	}
+
+}
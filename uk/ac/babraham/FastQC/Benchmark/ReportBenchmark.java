@@ -0,0 +1,103 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Measures how long it takes to write the report for a file, how many
+ * bytes are allocated doing it, and the peak heap use while it's written.
+ * The peak is the sum of the peaks of each heap pool, so it's only useful
+ * for comparing runs.  The file is analysed once and the report
+ * is then written several times, so run it with -Dfastqc.nogroup=true on a
+ * file of long reads to see the effect of very large tables.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.ReportBenchmark file [output dir]
+ */
+public class ReportBenchmark {
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: ReportBenchmark [sequence file] [output dir]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		File outputDir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+		
+		if (System.getProperty("fastqc.unzip") == null) {
+			System.setProperty("fastqc.unzip", "false");
+		}
+		
+		AllocationCounter allocations = AllocationCounter.create();
+
+		QCModule [] modules = ModuleFactory.getStandardModuleList();
+		SequenceFile sequences = SequenceFactory.getSequenceFile(file);
+		while (sequences.hasNext()) {
+			Sequence seq = sequences.next();
+			for (int m=0;m<modules.length;m++) {
+				if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
+				modules[m].processSequence(seq);
+			}
+			seq.release();
+		}
+		
+		File reportFile = new File(outputDir, file.getName().replaceAll("\\.gz$","").replaceAll("\\.bz2$","").replaceAll("\\.txt$","").replaceAll("\\.fastq$", "").replaceAll("\\.sam$", "").replaceAll("\\.bam$", "")+"_fastqc.zip");
+		
+		// The first pass just warms up the JIT
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for (int pass=0;pass<4;pass++) {
+			System.gc();
+			for (MemoryPoolMXBean pool : pools) {
+				pool.resetPeakUsage();
+			}
+			
+			long startBytes = allocations.currentThread();
+			long start = System.nanoTime();
+			
+			new HTMLReportArchive(sequences, modules, reportFile);
+			
+			long bytes = allocations.currentThread()-startBytes;
+			double seconds = (System.nanoTime()-start)/1000000000d;
+			
+			long peak = 0;
+			for (MemoryPoolMXBean pool : pools) {
+				if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+			}
+			
+			if (pass > 0) {
+				System.out.println("Report of "+reportFile.length()+" bytes\t"+String.format("%.1f", bytes/1048576d)+"MB allocated\t"+String.format("%.1f", peak/1048576d)+"MB peak heap\t"+String.format("%.3f", seconds)+"s");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Checks that sampling a file gives whole records which really are in the
+ * file, never gives the same record twice, and gives the same sample every
+ * time, and compares how long it takes to read the sample with reading the
+ * whole file.
+ *
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.SamplingBenchmark file [reads] [seed]
+ *
+ * Exits with status 1 if any of the checks fail.
+ */
+public class SamplingBenchmark {
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: SamplingBenchmark [sequence file] [reads] [seed]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		String reads = args.length > 1 ? args[1] : "100000";
+		if (args.length > 2) {
+			System.setProperty("fastqc.sample_seed", args[2]);
+		}
+
+		System.clearProperty("fastqc.sample_reads");
+		long start = System.nanoTime();
+		HashSet<String> records = new HashSet<String>();
+		int total = 0;
+		SequenceFile whole = SequenceFactory.getSequenceFile(file);
+		while (whole.hasNext()) {
+			records.add(key(whole.next()));
+			++total;
+		}
+		System.out.println("Read all "+total+" records in "+((System.nanoTime()-start)/1000000)+"ms");
+
+		System.setProperty("fastqc.sample_reads", reads);
+		boolean failed = false;
+		List<String> firstSample = null;
+
+		for (int pass=0;pass<2;pass++) {
+			start = System.nanoTime();
+			List<String> sample = new ArrayList<String>();
+			SequenceFile sampled = SequenceFactory.getSequenceFile(file);
+			while (sampled.hasNext()) {
+				sample.add(key(sampled.next()));
+			}
+			System.out.println("Sampled "+sample.size()+" records in "+((System.nanoTime()-start)/1000000)+"ms");
+
+			int missing = 0;
+			for (String record : sample) {
+				if (!records.contains(record)) ++missing;
+			}
+			if (missing > 0) {
+				System.out.println(missing+" sampled records weren't in the file");
+				failed = true;
+			}
+
+			// We can only spot overlapping chunks if every record is different
+			if (records.size() == total && new HashSet<String>(sample).size() < sample.size()) {
+				System.out.println("Some records were sampled more than once");
+				failed = true;
+			}
+
+			if (firstSample == null) {
+				firstSample = sample;
+			}
+			else if (!firstSample.equals(sample)) {
+				System.out.println("The second sample wasn't the same as the first");
+				failed = true;
+			}
+		}
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static String key (Sequence sequence) {
+		return sequence.getID()+"\n"+sequence.getSequence()+"\n"+sequence.getQualityString();
+	}
+
+}
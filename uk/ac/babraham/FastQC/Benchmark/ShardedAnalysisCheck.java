@@ -0,0 +1,197 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import uk.ac.babraham.FastQC.Analysis.AnalysisListener;
+import uk.ac.babraham.FastQC.Analysis.AnalysisRunner;
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
+import uk.ac.babraham.FastQC.Modules.QCModule;
+import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
+import uk.ac.babraham.FastQC.Sequence.SequenceFile;
+
+/**
+ * Runs the same file through a single threaded analysis and a sharded one
+ * and compares the data reported by each module.  The modules which sample
+ * the data are allowed to differ (see AnalysisPipeline for the reasons) and
+ * everything else has to match exactly.
+ * 
+ * Usage: java uk.ac.babraham.FastQC.Benchmark.ShardedAnalysisCheck file.fastq [shards] [mapped]
+ * 
+ * Adding mapped makes the sharded run split and map the file rather than
+ * reading it in a single thread.
+ * 
+ * Exits with status 1 if any of the exact modules differ.
+ */
+public class ShardedAnalysisCheck {
+
+	private static final String [] SAMPLED_MODULES = new String [] {
+		"Sequence Duplication Levels",
+		"Overrepresented sequences",
+		"Kmer Content",
+		"Per sequence GC content"
+	};
+
+	public static void main (String [] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: ShardedAnalysisCheck [sequence file] [shards] [mapped]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		String shards = "4";
+		if (args.length > 1) {
+			shards = args[1];
+		}
+		boolean mapped = args.length > 2 && args[2].equals("mapped");
+
+		System.setProperty("java.awt.headless", "true");
+		System.setProperty("fastqc.unzip", "false");
+
+		LinkedHashMap<String, String> single = null;
+		LinkedHashMap<String, String> sharded = null;
+
+		// The analysis queue thread keeps the JVM alive so we have to exit
+		// explicitly if anything goes wrong.
+		try {
+			System.setProperty("fastqc.pipeline_shards", "1");
+			single = analyse(file);
+
+			System.setProperty("fastqc.pipeline_shards", shards);
+			System.setProperty("fastqc.pipeline_mapped", ""+mapped);
+			sharded = analyse(file);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		boolean failed = false;
+
+		for (String module : single.keySet()) {
+			boolean same = single.get(module).equals(sharded.get(module));
+			boolean sampled = false;
+			for (int s=0;s<SAMPLED_MODULES.length;s++) {
+				if (SAMPLED_MODULES[s].equals(module)) sampled = true;
+			}
+
+			if (same) {
+				System.out.println(module+"\tidentical");
+			}
+			else if (sampled) {
+				System.out.println(module+"\tdiffers (expected for a sampled module)");
+			}
+			else {
+				System.out.println(module+"\tDIFFERS");
+				failed = true;
+			}
+		}
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Runs an analysis and returns the data section written by each module
+	 */
+	private static LinkedHashMap<String, String> analyse (File file) throws Exception {
+
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);
+		AnalysisRunner runner = new AnalysisRunner(sequenceFile);
+		CompletionListener listener = new CompletionListener();
+		runner.addAnalysisListener(listener);
+
+		runner.startAnalysis(ModuleFactory.getStandardModuleList());
+
+		QCModule [] results = listener.waitForResults();
+
+		File reportFile = File.createTempFile("fastqc_check", ".zip");
+		reportFile.deleteOnExit();
+		HTMLReportArchive archive = new HTMLReportArchive(sequenceFile, results, reportFile);
+
+		ZipFile zip = new ZipFile(reportFile);
+		ZipEntry entry = zip.getEntry(archive.folderName()+"/fastqc_data.txt");
+		BufferedReader br = new BufferedReader(new InputStreamReader(zip.getInputStream(entry)));
+
+		LinkedHashMap<String, String> sections = new LinkedHashMap<String, String>();
+		String module = null;
+		StringBuffer section = null;
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith(">>END_MODULE")) {
+				sections.put(module, section.toString());
+				module = null;
+			}
+			else if (line.startsWith(">>")) {
+				module = line.substring(2).split("\t")[0];
+				section = new StringBuffer();
+				section.append(line);
+				section.append("\n");
+			}
+			else if (module != null) {
+				section.append(line);
+				section.append("\n");
+			}
+		}
+		br.close();
+		zip.close();
+
+		return sections;
+	}
+
+	private static class CompletionListener implements AnalysisListener {
+
+		private QCModule [] results = null;
+		private Exception exception = null;
+		private boolean finished = false;
+
+		public synchronized QCModule [] waitForResults () throws Exception {
+			while (!finished) {
+				wait();
+			}
+			if (exception != null) throw exception;
+			return results;
+		}
+
+		public void analysisStarted(SequenceFile file) {}
+
+		public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
+
+		public synchronized void analysisComplete(SequenceFile file, QCModule[] results) {
+			this.results = results;
+			finished = true;
+			notifyAll();
+		}
+
+		public synchronized void analysisExceptionReceived(SequenceFile file, Exception e) {
+			exception = e;
+			finished = true;
+			notifyAll();
+		}
+	}
+
+}
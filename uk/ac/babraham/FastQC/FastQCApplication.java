@@ -37,24 +37,17 @@ import javax.swing.UIManager;
 import javax.swing.filechooser.FileFilter;
 
 import uk.ac.babraham.FastQC.Analysis.AnalysisRunner;
+import uk.ac.babraham.FastQC.Analysis.AnalysisServer;
 import uk.ac.babraham.FastQC.Analysis.OfflineRunner;
+import uk.ac.babraham.FastQC.Analysis.StateReducer;
 import uk.ac.babraham.FastQC.Dialogs.WelcomePanel;
 import uk.ac.babraham.FastQC.FileFilters.BAMFileFilter;
 import uk.ac.babraham.FastQC.FileFilters.CasavaFastQFileFilter;
 import uk.ac.babraham.FastQC.FileFilters.FastQFileFilter;
 import uk.ac.babraham.FastQC.FileFilters.MappedBAMFileFilter;
 import uk.ac.babraham.FastQC.FileFilters.SequenceFileFilter;
-import uk.ac.babraham.FastQC.Modules.BasicStats;
-import uk.ac.babraham.FastQC.Modules.KmerContent;
-import uk.ac.babraham.FastQC.Modules.NContent;
-import uk.ac.babraham.FastQC.Modules.OverRepresentedSeqs;
-import uk.ac.babraham.FastQC.Modules.PerBaseGCContent;
-import uk.ac.babraham.FastQC.Modules.PerBaseQualityScores;
-import uk.ac.babraham.FastQC.Modules.PerBaseSequenceContent;
-import uk.ac.babraham.FastQC.Modules.PerSequenceGCContent;
-import uk.ac.babraham.FastQC.Modules.PerSequenceQualityScores;
+import uk.ac.babraham.FastQC.Modules.ModuleFactory;
 import uk.ac.babraham.FastQC.Modules.QCModule;
-import uk.ac.babraham.FastQC.Modules.SequenceLengthDistribution;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Results.ResultsPanel;
 import uk.ac.babraham.FastQC.Sequence.SequenceFactory;
@@ -199,21 +192,7 @@ public class FastQCApplication extends JFrame {
 			runner.addAnalysisListener(rp);
 			fileTabs.addTab(sequenceFile.name(), rp);
 			
-			OverRepresentedSeqs os = new OverRepresentedSeqs();
-			
-			QCModule [] module_list = new QCModule [] {
-				new BasicStats(),
-				new PerBaseQualityScores(),
-				new PerSequenceQualityScores(),
-				new PerBaseSequenceContent(),
-				new PerBaseGCContent(), 
-				new PerSequenceGCContent(),
-				new NContent(),
-				new SequenceLengthDistribution(),
-				os.duplicationLevelModule(),
-				os,
-				new KmerContent()
-			};
+			QCModule [] module_list = ModuleFactory.getStandardModuleList();
 	
 			runner.startAnalysis(module_list);
 		}
@@ -297,6 +276,24 @@ public class FastQCApplication extends JFrame {
 			System.exit(0);
 		}
 		
+		// In server mode we sit waiting for jobs from the local machine
+		if (System.getProperty("fastqc.server") != null && System.getProperty("fastqc.server").equals("true")) {
+			System.setProperty("java.awt.headless", "true");
+			
+			if (System.getProperty("fastqc.unzip") == null || ! System.getProperty("fastqc.unzip").equals("false")) {
+				System.setProperty("fastqc.unzip", "true");
+			}
+			
+			try {
+				new AnalysisServer(AnalysisServer.getConfiguredPort()).run();
+			}
+			catch (IOException e) {
+				System.err.println("Couldn't start the FastQC server: "+e.getMessage());
+				System.exit(1);
+			}
+			System.exit(0);
+		}
+		
 		String inputListFilename = System.getProperty("fastqc.input");
 		if (inputListFilename != null && inputListFilename.trim().length() > 0) {
 			File inputsFile = new File (inputListFilename);
@@ -336,6 +333,11 @@ public class FastQCApplication extends JFrame {
 			}
 			
 			
+			// Reducing merges saved states rather than reading sequences
+			if (System.getProperty("fastqc.reduce") != null && System.getProperty("fastqc.reduce").equals("true")) {
+				System.exit(new StateReducer(args).succeeded() ? 0 : 1);
+			}
+			
 			new OfflineRunner(args);
 			System.exit(0);
 		}		
@@ -20,6 +20,11 @@
 package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.BorderLayout;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -29,10 +34,12 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
+import uk.ac.babraham.FastQC.Sequence.SampledSequenceFile;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 import uk.ac.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
+public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>, QCModuleConvergence {
 
 	private String name = null;
 	private int actualCount = 0;
@@ -47,6 +54,15 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 	private char lowestChar = 126;
 	private String fileType = null;
 	
+	// How the file was sampled, or null if we saw all of it
+	private String sampling = null;
+	
+	// The number of sequences after which the analysis stopped because
+	// the results had converged, or -1 if it read the whole file
+	private long convergedAt = -1;
+	private double convergenceTolerance = 0;
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	public BasicStats() {
 		// default constructor
 	}
@@ -77,6 +93,7 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 	}
 	
 	public void reset () {
+		convergence.clear();
 		minLength = 0;
 		maxLength = 0;
 		gCount = 0;
@@ -94,6 +111,10 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 
 		if (name == null) name = sequence.file().name();
 		
+		if (sampling == null && sequence.file() instanceof SampledSequenceFile) {
+			sampling = ((SampledSequenceFile)sequence.file()).description();
+		}
+		
 		// If this is a filtered sequence we simply count it and move on.
 		if (sequence.isFiltered()) {
 			filteredCount++;
@@ -111,30 +132,29 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 			}
 		}
 		
+		int length = sequence.getSequenceLength();
 		if (actualCount == 1) {
-			minLength = sequence.getSequence().length();
-			maxLength = sequence.getSequence().length();
+			minLength = length;
+			maxLength = length;
 		}
 		else {
-			if (sequence.getSequence().length() < minLength) minLength = sequence.getSequence().length();
-			if (sequence.getSequence().length() > maxLength) maxLength = sequence.getSequence().length();
+			if (length < minLength) minLength = length;
+			if (length > maxLength) maxLength = length;
 		}
 
-		char [] chars = sequence.getSequence().toCharArray();
-		for (int c=0;c<chars.length;c++) {			
-			switch (chars[c]) {
-				case 'G': ++gCount;break;
-				case 'A': ++aCount;break;
-				case 'T': ++tCount;break;
-				case 'C': ++cCount;break;
-				case 'N': ++nCount;break;			
-			}
-		}
+		BaseComposition composition = sequence.getComposition();
+		gCount += composition.count(BaseComposition.G);
+		aCount += composition.count(BaseComposition.A);
+		tCount += composition.count(BaseComposition.T);
+		cCount += composition.count(BaseComposition.C);
+		nCount += composition.count(BaseComposition.N);
 		
-		chars = sequence.getQualityString().toCharArray();
-		for (int c=0;c<chars.length;c++) {
-			if (chars[c] < lowestChar) {
-				lowestChar = chars[c];
+		byte [] qualities = sequence.getQualityBytes();
+		int end = sequence.getQualityOffset()+sequence.getQualityLength();
+		for (int c=sequence.getQualityOffset();c<end;c++) {
+			char quality = (char)(qualities[c] & 0xFF);
+			if (quality < lowestChar) {
+				lowestChar = quality;
 			}
 		}
 	}
@@ -204,12 +224,31 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 		}
 	
 		public int getRowCount() {
-			return rowNames.length;
+			return rowNames.length+extraRows().length;
+		}
+		
+		/**
+		 * We only say how we sampled the file, or when we stopped reading
+		 * it, if we did.
+		 */
+		private String [][] extraRows () {
+			List<String []> rows = new ArrayList<String []>();
+			if (sampling != null) {
+				rows.add(new String [] {"Sampled", sampling});
+			}
+			if (convergedAt >= 0) {
+				rows.add(new String [] {"Stopped early", "Results converged after "+convergedAt+" sequences (tolerance "+convergenceTolerance+")"});
+			}
+			return rows.toArray(new String[0][]);
 		}
 	
 		public Object getValueAt(int rowIndex, int columnIndex) {
+			if (rowIndex >= rowNames.length) {
+				return extraRows()[rowIndex-rowNames.length][columnIndex];
+			}
 			switch (columnIndex) {
-				case 0: return rowNames[rowIndex];
+				case 0: 
+					return rowNames[rowIndex];
 				case 1:
 					switch (rowIndex) {
 					case 0 : return name;
@@ -259,13 +298,27 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 
 	@Override
 	public synchronized void mergeResult(BasicStats result) {
-		if (actualCount == 0) {
-			minLength = result.minLength;
+		if (name == null) name = result.name;
+		if (fileType == null) fileType = result.fileType;
+		if (sampling == null) sampling = result.sampling;
+		
+		// Where parts of the data stopped early we report the total number
+		// of sequences they read
+		if (result.convergedAt >= 0) {
+			convergedAt = Math.max(convergedAt, 0)+result.convergedAt;
+			convergenceTolerance = Math.max(convergenceTolerance, result.convergenceTolerance);
 		}
-		else {
-			minLength = Math.min(minLength, result.minLength);
+
+		// A result which saw no sequences has no meaningful lengths
+		if (result.actualCount > 0) {
+			if (actualCount == 0) {
+				minLength = result.minLength;
+			}
+			else {
+				minLength = Math.min(minLength, result.minLength);
+			}
+			maxLength = Math.max(maxLength, result.maxLength);
 		}
-		maxLength = Math.max(maxLength, result.maxLength);
 		filteredCount += result.filteredCount;		
 		actualCount += result.actualCount;		
 		gCount += result.gCount;
@@ -278,6 +331,62 @@ public class BasicStats implements QCModule, QCModuleAggreg<BasicStats>{
 			lowestChar = result.lowestChar;
 		}		
 	}
-	
+
+	/**
+	 * Records that the analysis stopped early because the results of all
+	 * of the modules had stopped changing.
+	 * 
+	 * @param sequenceCount The number of sequences read before stopping
+	 * @param tolerance The tolerance the modules were checked against
+	 */
+	public synchronized void setConverged (long sequenceCount, double tolerance) {
+		convergedAt = sequenceCount;
+		convergenceTolerance = tolerance;
+	}
+
+	public synchronized boolean isStable(double tolerance) {
+		long bases = gCount+aCount+tCount+cCount;
+		convergence.start();
+		convergence.add(bases == 0 ? 0 : ((double)(gCount+cCount))/bases);
+		convergence.add(bases+nCount == 0 ? 0 : ((double)nCount)/(bases+nCount));
+		convergence.add(actualCount+filteredCount == 0 ? 0 : ((double)filteredCount)/(actualCount+filteredCount));
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeString(out, name);
+		ModuleStateFile.writeString(out, fileType);
+		ModuleStateFile.writeString(out, sampling);
+		out.writeLong(convergedAt);
+		out.writeDouble(convergenceTolerance);
+		out.writeInt(actualCount);
+		out.writeInt(filteredCount);
+		out.writeInt(minLength);
+		out.writeInt(maxLength);
+		out.writeLong(gCount);
+		out.writeLong(cCount);
+		out.writeLong(aCount);
+		out.writeLong(tCount);
+		out.writeLong(nCount);
+		out.writeChar(lowestChar);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		name = ModuleStateFile.readString(in);
+		fileType = ModuleStateFile.readString(in);
+		sampling = ModuleStateFile.readString(in);
+		convergedAt = in.readLong();
+		convergenceTolerance = in.readDouble();
+		actualCount = in.readInt();
+		filteredCount = in.readInt();
+		minLength = in.readInt();
+		maxLength = in.readInt();
+		gCount = in.readLong();
+		cCount = in.readLong();
+		aCount = in.readLong();
+		tCount = in.readLong();
+		nCount = in.readLong();
+		lowestChar = in.readChar();
+	}
 
 }
@@ -0,0 +1,127 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Modules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the results a module had at its last convergence check so they can
+ * be compared with its results now.  A module starts a new snapshot, adds
+ * its current proportions to it, and then asks whether they match the
+ * last snapshot.
+ * 
+ * Snapshots only match if they hold the same number of values with the
+ * same labels, so a module which gains a new position, length or reported
+ * sequence is never stable at that check.
+ */
+class ConvergenceTracker {
+
+	private double [] previous = null;
+	private int previousLength = 0;
+	private List<String> previousLabels = new ArrayList<String>();
+	
+	private double [] current = new double[64];
+	private int currentLength = 0;
+	private List<String> currentLabels = new ArrayList<String>();
+	
+	public void start () {
+		currentLength = 0;
+		currentLabels.clear();
+	}
+	
+	public void add (double value) {
+		if (currentLength == current.length) {
+			double [] newCurrent = new double[current.length*2];
+			System.arraycopy(current, 0, newCurrent, 0, currentLength);
+			current = newCurrent;
+		}
+		current[currentLength++] = value;
+	}
+	
+	/**
+	 * Adds a value which is only comparable with a previous value with the
+	 * same label, such as the proportion for a particular sequence.
+	 */
+	public void add (String label, double value) {
+		currentLabels.add(label);
+		add(value);
+	}
+	
+	/**
+	 * Adds the cumulative proportions for a set of counts.  Comparing these
+	 * rather than the individual proportions means that quantiles taken from
+	 * the counts are stable too.
+	 */
+	public void addCumulative (long [] counts) {
+		long total = 0;
+		for (int i=0;i<counts.length;i++) {
+			total += counts[i];
+		}
+		long cumulative = 0;
+		for (int i=0;i<counts.length;i++) {
+			cumulative += counts[i];
+			add(total == 0 ? 0 : ((double)cumulative)/total);
+		}
+	}
+	
+	public void addCumulative (double [] counts) {
+		double total = 0;
+		for (int i=0;i<counts.length;i++) {
+			total += counts[i];
+		}
+		double cumulative = 0;
+		for (int i=0;i<counts.length;i++) {
+			cumulative += counts[i];
+			add(total == 0 ? 0 : cumulative/total);
+		}
+	}
+	
+	/**
+	 * Compares the snapshot we've just made with the last one, and then
+	 * keeps it for next time.
+	 */
+	public boolean isStable (double tolerance) {
+		
+		boolean stable = previous != null && previousLength == currentLength && previousLabels.equals(currentLabels);
+		
+		for (int i=0;stable && i<currentLength;i++) {
+			if (Math.abs(current[i]-previous[i]) > tolerance) stable = false;
+		}
+		
+		double [] swap = previous == null ? new double[current.length] : previous;
+		previous = current;
+		previousLength = currentLength;
+		current = swap;
+		
+		List<String> swapLabels = previousLabels;
+		previousLabels = currentLabels;
+		currentLabels = swapLabels;
+		
+		return stable;
+	}
+	
+	public void clear () {
+		previous = null;
+		previousLength = 0;
+		previousLabels.clear();
+	}
+	
+}
@@ -21,11 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.DecimalFormat;
-import java.util.Iterator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -33,8 +33,10 @@ import javax.swing.JPanel;
 import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
+import uk.ac.babraham.FastQC.Statistics.BottomKSketch;
+import uk.ac.babraham.FastQC.Utilities.SequenceCountTable;
 
-public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLevel> {
+public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLevel>, QCModuleConvergence {
 
 	private OverRepresentedSeqs overrepresentedModule;
 	private double [] counts = null;
@@ -42,7 +44,8 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 	private double duplicatePercentTotal = 0;
 	private String [] labels;
 	private static final DecimalFormat df = new DecimalFormat("#.##");
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	protected DuplicationLevel (OverRepresentedSeqs overrepresentedModule) {
 		this.overrepresentedModule = overrepresentedModule;
 	}
@@ -64,15 +67,32 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 		labels = new String [10];
 		maxCount = 0;
 				
-		Iterator<String> it = overrepresentedModule.sequences.keySet().iterator();
+		BottomKSketch levelSketch = overrepresentedModule.levelSketch;
+		
+		if (levelSketch != null) {
+			// The sketch sample covers the whole file so we use it
+			// in place of the sequences we stored.
+			for (int s=0;s<levelSketch.size();s++) {
+				int thisCount = levelSketch.getCount(s);
+				if (thisCount > 10) thisCount = 10;
+				thisCount -= 1; // Convert count to array index
+				++tempCounts[thisCount];
+			}
+		}
+		else {
+			SequenceCountTable sequences = overrepresentedModule.sequences;
 				
-		while (it.hasNext()) {
-			int thisCount = overrepresentedModule.sequences.get(it.next());
-			if (thisCount > 10) thisCount = 10;
-			thisCount -= 1; // Convert count to array index
-			++tempCounts[thisCount];
+			for (int s=0;s<sequences.size();s++) {
+				int thisCount = sequences.getCount(s);
+				if (thisCount > 10) thisCount = 10;
+				thisCount -= 1; // Convert count to array index
+				++tempCounts[thisCount];
+			}
 		}
 		
+		// We need the number of unique sequences before we adjust it below
+		int sampledUniqueCount = tempCounts[0];
+		
 		// To prevent infinite values later we need to ensure we have a count
 		// of at least 1 in the unique sequences
 		if (tempCounts[0] == 0) tempCounts[0] = 1;
@@ -86,16 +106,34 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 			}
 		}
 
-		// We work out the duplicate total percentage by
-		// extrapolating the unique count forward to the
-		// total number of sequences in the file.
+		if (levelSketch != null) {
+			// The number of sequences seen only once is the estimated
+			// number of distinct sequences in the whole file, scaled by
+			// the proportion of our sample which was only seen once.  If
+			// the sample isn't full it holds every distinct sequence so
+			// we don't need to estimate anything.
+			double distinctCount = levelSketch.size();
+			if (levelSketch.isFull()) {
+				distinctCount = overrepresentedModule.distinctSketch.estimate();
+			}
+			
+			duplicatePercentTotal = 0;
+			if (levelSketch.size() > 0) {
+				duplicatePercentTotal = (distinctCount * sampledUniqueCount) / levelSketch.size();
+			}
+		}
+		else {
+			// We work out the duplicate total percentage by
+			// extrapolating the unique count forward to the
+			// total number of sequences in the file.
 				
-		// First calculate the proportion of sequences we actually measured
-		duplicatePercentTotal = ((double)overrepresentedModule.count) / Math.min(overrepresentedModule.countAtUniqueLimit,overrepresentedModule.count);
+			// First calculate the proportion of sequences we actually measured
+			duplicatePercentTotal = ((double)overrepresentedModule.count) / Math.min(overrepresentedModule.countAtUniqueLimit,overrepresentedModule.count);
 		
-		// Now we extrapolate our unique count to cover the sequences
-		// we didn't see (assuming they come at the same rate
-		duplicatePercentTotal *= tempCounts[0];
+			// Now we extrapolate our unique count to cover the sequences
+			// we didn't see (assuming they come at the same rate
+			duplicatePercentTotal *= tempCounts[0];
+		}
 		
 //		System.err.println("Extrapolated unique count from "+tempCounts[0]+" to "+duplicatePercentTotal);
 		
@@ -125,8 +163,7 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 	public void makeReport(HTMLReportArchive report) throws IOException {
 		if (counts == null) calculateLevels();
 
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/duplication_levels.png"));
+		OutputStream out = report.startFile("Images/duplication_levels.png");
 		
 		BufferedImage b = new BufferedImage(800,600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -134,7 +171,7 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 		LineGraph lg = new LineGraph(new double [][] {counts}, 0d, maxCount,"Sequence Duplication Level", new String [] {"%Duplicate relative to unique"}, labels, "Sequence Duplication Level >= "+df.format(duplicatePercentTotal)+"%");
 		lg.paint(g,800,600);
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 		
@@ -192,6 +229,7 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 	}
 
 	public void reset() {
+		convergence.clear();
 		counts = null;
 	}
 
@@ -200,4 +238,33 @@ public class DuplicationLevel implements QCModule, QCModuleAggreg<DuplicationLev
 		//no-op.  Handled by OverRepresentedSeq
 	}
 
+	public synchronized boolean isStable(double tolerance) {
+		calculateLevels();
+		
+		double total = 0;
+		for (int i=0;i<counts.length;i++) {
+			total += counts[i];
+		}
+		
+		convergence.start();
+		convergence.add(duplicatePercentTotal/100);
+		for (int i=0;i<counts.length;i++) {
+			convergence.add(counts[i]/total);
+		}
+		
+		// The levels are only worked out once, so we throw these away to
+		// make sure the report uses all of the data
+		counts = null;
+		
+		return convergence.isStable(tolerance);
+	}
+
+	public void writeState(DataOutput out) {
+		//no-op.  Saved by OverRepresentedSeqs
+	}
+
+	public void readState(DataInput in) {
+		//no-op.  Read by OverRepresentedSeqs
+	}
+
 }
@@ -97,7 +97,7 @@ public class GCModel {
 		newModel.readLength = this.readLength;
 		newModel.models = new GCModelValue[this.models.length][];
 		for (int i = 0; i < this.models.length; i++) {
-			newModel.models[i] = Arrays.copyOf(this.models[i], this.models.length);
+			newModel.models[i] = Arrays.copyOf(this.models[i], this.models[i].length);
 		}
 		return newModel;
 	}
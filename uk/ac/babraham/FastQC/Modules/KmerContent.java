@@ -22,13 +22,12 @@ package uk.ac.babraham.FastQC.Modules;
 import java.awt.BorderLayout;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Vector;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JLabel;
@@ -42,11 +41,20 @@ import javax.swing.table.TableModel;
 import uk.ac.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 
-public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
+public class KmerContent implements QCModule, QCModuleAggreg<KmerContent>, QCModuleConvergence {
 
-	private Hashtable<String, Kmer> kmers = new Hashtable<String, Kmer>((int)Math.pow(4, MAX_KMER_SIZE));
+	// Kmers are stored as 2 bit codes (A=0, C=1, G=2, T=3) with the last base
+	// in the lowest bits.  For each kmer size we keep the total count for each
+	// code, and the counts at each position, whose rows we only create once
+	// we've seen that kmer so that large kmer sizes don't use much more memory
+	// than they need.  A row starts out as long as the first read the kmer
+	// was seen in and grows if it's seen further along a longer read.  The
+	// enrichment calculation only looks at positions within the row.
+	private long [][] kmerCounts;
+	private long [][][] kmerPositions;
 	private long gCount = 0;
 	private long aCount = 0;
 	private long tCount = 0;
@@ -56,8 +64,18 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 	private long [][] totalKmerCounts = new long [0][0];
 	private long skipCount = 0;
 	
-	private static int MIN_KMER_SIZE = 5;
-	private static int MAX_KMER_SIZE = 5;
+	// We only look at one sequence in every sampleInterval.  Counting is
+	// cheap enough now that by default we look at all of them.
+	private static final int DEFAULT_SAMPLE_INTERVAL = 1;
+	private int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+	
+	// Every possible kmer of each size gets a slot in the count arrays, so
+	// anything much bigger than this would take far too much memory
+	private static final int DEFAULT_KMER_SIZE = 5;
+	private static final int LARGEST_KMER_SIZE = 10;
+	
+	private int minKmerSize = DEFAULT_KMER_SIZE;
+	private int maxKmerSize = DEFAULT_KMER_SIZE;
 	
 	public boolean calculated = false;
 	
@@ -68,11 +86,47 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 	
 	BaseGroup [] groups;
 
+	private ConvergenceTracker convergence = new ConvergenceTracker();
 	public KmerContent () {
 		if (System.getProperty("fastqc.kmer_size") != null) {
-			int kmerSize = Integer.parseInt(System.getProperty("fastqc.kmer_size"));
-			MIN_KMER_SIZE = kmerSize;
-			MAX_KMER_SIZE = kmerSize;
+			int kmerSize;
+			try {
+				kmerSize = Integer.parseInt(System.getProperty("fastqc.kmer_size"));
+			}
+			catch (NumberFormatException nfe) {
+				kmerSize = 0;
+			}
+			if (kmerSize < 1 || kmerSize > LARGEST_KMER_SIZE) {
+				System.err.println("Kmer size '"+System.getProperty("fastqc.kmer_size")+"' wasn't a number from 1 to "+LARGEST_KMER_SIZE+", using "+DEFAULT_KMER_SIZE);
+			}
+			else {
+				minKmerSize = kmerSize;
+				maxKmerSize = kmerSize;
+			}
+		}
+		
+		if (System.getProperty("fastqc.kmer_sampling") != null) {
+			try {
+				sampleInterval = Integer.parseInt(System.getProperty("fastqc.kmer_sampling"));
+			}
+			catch (NumberFormatException nfe) {
+				sampleInterval = 0;
+			}
+			if (sampleInterval < 1) {
+				System.err.println("Kmer sampling interval '"+System.getProperty("fastqc.kmer_sampling")+"' wasn't a positive number");
+				sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+			}
+		}
+		
+		createKmerArrays();
+	}
+	
+	private void createKmerArrays () {
+		kmerCounts = new long[(maxKmerSize-minKmerSize)+1][];
+		kmerPositions = new long[kmerCounts.length][][];
+		for (int k=0;k<kmerCounts.length;k++) {
+			kmerCounts[k] = new long[1<<(2*(minKmerSize+k))];
+			kmerPositions[k] = new long[kmerCounts[k].length][];
 		}
 	}
 	
@@ -103,41 +157,40 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 	}
 	
 	/**
-	 * This method simply keeps a count of the number of Kmers of a given size
-	 * seen at each position within the run.  We can use this later on to calculate
-	 * the enrichment of the Kmers we actually count.
-	 * 
-	 * We take in the Kmer sequence even though this isn't used in the total counts
-	 * we do this because we don't want to count Kmers with Ns in them, but we do
-	 * need to ensure that the data structure is expanded to the right size, and if
-	 * we have libraries where later positions are Ns in all sequences then our
-	 * data structure ends up too short and we crash. 
+	 * Makes sure we have somewhere to keep the total number of Kmers seen at
+	 * each position.  Kmers containing Ns aren't counted in these totals, but
+	 * we still need to make sure the data structure is expanded to the right
+	 * size, otherwise libraries where later positions are Ns in all sequences
+	 * end up with a data structure which is too short and we crash.
 	 * 
-	 * @param position Position within the read.  0 indexed
-	 * @param kmerLength Actual length of the Kmer analysed
+	 * @param positions The number of Kmer start positions in the read
 	 */
-	private void addKmerCount (int position,int kmerLength, String kmer) {
-	
-		
-		if (position >= totalKmerCounts.length) {
+	private void expandTotalKmerCounts (int positions) {
+		if (positions > totalKmerCounts.length) {
 			// We need to expand the array
-			long [][] newCounts = new long[position+1][];
+			long [][] newCounts = new long[positions][];
 			for (int i=0;i<totalKmerCounts.length;i++) {
 				newCounts[i] = totalKmerCounts[i];
 			}
 			for (int i=totalKmerCounts.length;i<newCounts.length;i++) {
-				newCounts[i] = new long[MAX_KMER_SIZE];
+				newCounts[i] = new long[maxKmerSize];
 			}
-			
 			totalKmerCounts = newCounts;
 		}
-		
-		if (kmer.indexOf("N") >=0) return;
-
-		++totalKmerCounts[position][kmerLength-1];
-		
 	}
-
+	
+	/**
+	 * Turns a 2 bit kmer code back into a sequence
+	 */
+	private static String decodeKmer (int code, int kmerSize) {
+		char [] chars = new char[kmerSize];
+		for (int i=kmerSize-1;i>=0;i--) {
+			chars[i] = "ACGT".charAt(code & 3);
+			code >>= 2;
+		}
+		return new String(chars);
+	}
+	
 	private synchronized void calculateEnrichment () {
 		
 		// For each kmer we work out the number of times we should have
@@ -153,14 +206,20 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		float cProb = ((float)cCount)/totalBases;
 		
 		// We'll be grouping together positions later so make up the groups now
-		groups = BaseGroup.makeBaseGroups((longestSequence-MIN_KMER_SIZE)+1);
+		groups = BaseGroup.makeBaseGroups((longestSequence-minKmerSize)+1);
 
 		Vector<Kmer>enrichedKmers = new Vector<Kmer>();
-				
-		Iterator<Kmer> rawKmers = kmers.values().iterator();
 		
-		KMER: while (rawKmers.hasNext()) {
-			Kmer k = rawKmers.next();
+		Vector<Kmer>rawKmers = new Vector<Kmer>();
+		for (int k=0;k<kmerCounts.length;k++) {
+			for (int code=0;code<kmerCounts[k].length;code++) {
+				if (kmerCounts[k][code] == 0) continue;
+				rawKmers.add(new Kmer(decodeKmer(code, minKmerSize+k), kmerCounts[k][code], kmerPositions[k][code]));
+			}
+		}
+		
+		KMER: for (int r=0;r<rawKmers.size();r++) {
+			Kmer k = rawKmers.get(r);
 			
 			long totalKmerCount = 0;
 
@@ -266,48 +325,74 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		calculated = false;
 		
 		++skipCount;
-		if (skipCount % 5 != 0) return;
+		if (skipCount % sampleInterval != 0) return;
 		
-		char [] seq = sequence.getSequence().toCharArray();
+		// The composition codes for GATC are the 2 bit codes we use for
+		// kmers, N is 4 and anything else is higher.
+		BaseComposition composition = sequence.getComposition();
+		byte [] codes = composition.codes();
+		int length = composition.length();
 
-		if (seq.length > longestSequence) {
-			longestSequence = seq.length;
+		if (length > longestSequence) {
+			longestSequence = length;
 		}
 				
-		for (int i=0;i<seq.length;i++) {
-			switch (seq[i]) {
-			case 'G': ++gCount;break;
-			case 'A': ++aCount;break;
-			case 'T': ++tCount;break;
-			case 'C': ++cCount;break;
-			}
-		}
-		
-		// Now we go through all of the Kmers to count these
-		for (int kmerSize=MIN_KMER_SIZE;kmerSize<=MAX_KMER_SIZE;kmerSize++) {
-			for (int i=0;i<=seq.length-kmerSize;i++) {
+		aCount += composition.count(BaseComposition.A);
+		cCount += composition.count(BaseComposition.C);
+		gCount += composition.count(BaseComposition.G);
+		tCount += composition.count(BaseComposition.T);
+		
+		// We roll along the sequence keeping the 2 bit code for the last
+		// kmerSize bases.  Kmers containing an N aren't counted at all.  Kmers
+		// containing any other non-GATC character are counted in the totals
+		// but not recorded, since they can never be reported.
+		for (int kmerSize=minKmerSize;kmerSize<=maxKmerSize && kmerSize<=length;kmerSize++) {
+			int k = kmerSize-minKmerSize;
+			int positionCount = (length-kmerSize)+1;
+			
+			expandTotalKmerCounts(positionCount);
+			
+			long [] counts = kmerCounts[k];
+			long [][] positions = kmerPositions[k];
+			int mask = (1<<(2*kmerSize))-1;
+			
+			int code = 0;
+			int lastN = -1;
+			int lastInvalid = -1;
+			
+			for (int i=0;i<length;i++) {
+				int base = codes[i];
+				if (base > BaseComposition.T) {
+					lastInvalid = i;
+					if (base == BaseComposition.N) lastN = i;
+					base = 0;
+				}
+				code = ((code<<2)|base) & mask;
 				
-				String kmer = sequence.getSequence().substring(i, i+kmerSize);
+				int start = (i-kmerSize)+1;
+				if (start < 0 || lastN >= start) continue;
 				
-				// Add to the counts before skipping Kmers containing Ns (see
-				// explanation in addKmerCount for the reasoning).
-				addKmerCount(i, kmerSize, kmer);
+				++totalKmerCounts[start][kmerSize-1];
 				
-				// Skip Kmers containing N
-				if (kmer.indexOf("N") >=0) continue;
-
-				if (kmers.containsKey(kmer)) {
-					kmers.get(kmer).incrementCount(i);
+				if (lastInvalid >= start) continue;
+				
+				long [] row = positions[code];
+				if (row == null) {
+					row = new long[positionCount];
+					positions[code] = row;
 				}
-				else {
-					kmers.put(kmer, new Kmer(kmer,i,(seq.length-kmerSize)+1));
+				else if (start >= row.length) {
+					row = Arrays.copyOf(row, start+1);
+					positions[code] = row;
 				}
-
+				++row[start];
+				++counts[code];
 			}
 		}
 	}
 	
 	public void reset () {
+		convergence.clear();
 		calculated = false;
 		gCount = 0;
 		aCount = 0;
@@ -317,7 +402,7 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		longestSequence = 0;
 		skipCount = 0;
 		enrichedKmers = null;
-		kmers.clear();
+		createKmerArrays();
 	}
 
 	public String description() {
@@ -350,8 +435,7 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		if (!calculated) calculateEnrichment();
 		
 		if (enrichedKmers.length > 0) {
-			ZipOutputStream zip = report.zipFile();
-			zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/kmer_profiles.png"));
+			OutputStream out = report.startFile("Images/kmer_profiles.png");
 
 			BufferedImage b = new BufferedImage(800,600,BufferedImage.TYPE_INT_RGB);
 			Graphics g = b.getGraphics();
@@ -359,7 +443,7 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 			LineGraph lg = new LineGraph(enrichments, 0d, 100d, "Position in read (bp)", xLabels, xCategories, "Relative enrichment over read length");
 			lg.paint(g,800,600);
 
-			ImageIO.write((BufferedImage)(b),"PNG",zip);
+			ImageIO.write((BufferedImage)(b),"PNG",out);
 
 			StringBuffer sb = report.htmlDocument();
 
@@ -422,68 +506,12 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		private float [] obsExpPositions = null;
 		private long [] positions = new long[0];
 		
-		public Kmer (String sequence, int position, int seqLength) {
-
-			// Do this slightly convoluted dance to try to avoid
-			// keeping the whole original sequence in memory
-			char [] chars = sequence.toCharArray();
-			this.sequence = new String(chars);
-			count = 1;
-			positions = new long[seqLength];
-			++positions[position];
+		public Kmer (String sequence, long count, long [] positions) {
+			this.sequence = sequence;
+			this.count = count;
+			this.positions = positions;
 		}
 		
-		private Kmer(String sequence, int seqLength) {
-			char [] chars = sequence.toCharArray();
-			this.sequence = new String(chars);
-			positions = new long[seqLength];
-		}
-		
-		public void incrementCount (int position) {
-			++count;
-			
-			if (position >= positions.length) {
-				long [] newPositions = new long[position+1];
-				for (int i=0;i<positions.length;i++) {
-					newPositions[i] = positions[i];
-				}
-				positions = newPositions;
-			}
-			
-			++positions[position];
-			
-		}
-		
-		/**
-		 * Increment kmer count at specific position
-		 * @param position  position in sequence
-		 * @param incrementBy  number of times kmer found at this position
-		 */
-		public void incrementCount(int position, long incrementBy) {
-			count += incrementBy;
-			
-			if (position >= positions.length) {				
-				positions = Arrays.copyOf(positions, position+1);
-			}
-			
-			positions[position] += incrementBy;
-		}
-		
-		@Override
-		/**
-		 * Full deep copy
-		 */
-		public Kmer clone() {
-			Kmer newKmer = new Kmer(this.sequence, this.positions.length);
-			newKmer.positions  = Arrays.copyOf(this.positions, this.positions.length);
-			newKmer.count = this.count;
-			newKmer.obsExp = this.obsExp;
-			newKmer.obsExpPositions = Arrays.copyOf(this.obsExpPositions, this.obsExpPositions.length);
-			return newKmer;			
-		}
-		
-		
-		
 		public long [] getPositions () {
 			return positions;
 		}
@@ -564,7 +592,7 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		public Object getValueAt(int rowIndex, int columnIndex) {
 			switch (columnIndex) {
 				case 0: return kmers[rowIndex].sequence();
-				case 1: return kmers[rowIndex].count()*5;
+				case 1: return kmers[rowIndex].count()*sampleInterval;
 				case 2: return kmers[rowIndex].obsExp();
 				case 3: return kmers[rowIndex].maxObsExp();
 				case 4: return groups[kmers[rowIndex].maxPosition()-1].toString();
@@ -597,8 +625,16 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		}
 	}
 
+	/**
+	 * @throws IllegalArgumentException if the result counted kmers of
+	 * different sizes to us
+	 */
 	@Override
 	public synchronized void mergeResult(KmerContent result) {
+		if (result.minKmerSize != minKmerSize || result.maxKmerSize != maxKmerSize) {
+			throw new IllegalArgumentException("Can't merge results with kmer sizes "+result.minKmerSize+"-"+result.maxKmerSize+" into "+minKmerSize+"-"+maxKmerSize);
+		}
+		
 		longestSequence = Math.max(longestSequence, result.longestSequence);
 		gCount += result.gCount;
 		aCount += result.aCount;
@@ -608,34 +644,131 @@ public class KmerContent implements QCModule, QCModuleAggreg<KmerContent> {
 		
 		if (totalKmerCounts.length < result.totalKmerCounts.length) {
 			// We need to expand the array
-			long [][] newCounts = new long[result.totalKmerCounts.length][MAX_KMER_SIZE]; //[position][kmer length]
+			long [][] newCounts = new long[result.totalKmerCounts.length][maxKmerSize]; //[position][kmer length]
 			for (int i = 0; i < totalKmerCounts.length; i++) {
 				newCounts[i] = Arrays.copyOf(totalKmerCounts[i], totalKmerCounts[i].length);
 			}
 			totalKmerCounts = newCounts;
 		}
 		for (int position=0; position < result.totalKmerCounts.length;position++) {
-			for (int kmerLen=0; kmerLen < MAX_KMER_SIZE; kmerLen++) {			
+			for (int kmerLen=0; kmerLen < maxKmerSize; kmerLen++) {			
 				totalKmerCounts[position][kmerLen] += result.totalKmerCounts[position][kmerLen];
 			}			
 		}
 		
-		for (String kmerStr : result.kmers.keySet()) {
-			Kmer resultKmer =  result.kmers.get(kmerStr);
-			Kmer kmer;
-			if (!kmers.containsKey(kmerStr)) {
-				kmer = resultKmer.clone();
-				kmers.put(kmerStr, kmer);
-			}
-			else {
-				kmer = kmers.get(kmerStr);
-				long[] resultPositions = resultKmer.getPositions();
-				for (int position = 0; position < resultPositions.length; position++) {
-					kmer.incrementCount(position, resultPositions[position]);
+		for (int k=0;k<kmerCounts.length;k++) {
+			for (int code=0;code<kmerCounts[k].length;code++) {
+				long [] resultPositions = result.kmerPositions[k][code];
+				if (resultPositions == null) continue;
+				
+				kmerCounts[k][code] += result.kmerCounts[k][code];
+				
+				long [] positions = kmerPositions[k][code];
+				if (positions == null) {
+					kmerPositions[k][code] = Arrays.copyOf(resultPositions, resultPositions.length);
+				}
+				else {
+					if (positions.length < resultPositions.length) {
+						positions = Arrays.copyOf(positions, resultPositions.length);
+						kmerPositions[k][code] = positions;
+					}
+					for (int position=0; position < resultPositions.length; position++) {
+						positions[position] += resultPositions[position];
+					}
 				}
 			}
 		}
 		
 	}
 
+	/**
+	 * Working out the enrichment for every kmer at every check would be
+	 * slow, so we check that the overall frequency of each kmer, from which
+	 * the enrichment is worked out, has settled down.
+	 */
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		for (int k=0;k<kmerCounts.length;k++) {
+			long total = 0;
+			for (int code=0;code<kmerCounts[k].length;code++) {
+				total += kmerCounts[k][code];
+			}
+			for (int code=0;code<kmerCounts[k].length;code++) {
+				convergence.add(total == 0 ? 0 : ((double)kmerCounts[k][code])/total);
+			}
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		out.writeInt(minKmerSize);
+		out.writeInt(maxKmerSize);
+		out.writeInt(sampleInterval);
+		out.writeLong(skipCount);
+		out.writeLong(gCount);
+		out.writeLong(aCount);
+		out.writeLong(tCount);
+		out.writeLong(cCount);
+		out.writeInt(longestSequence);
+		
+		out.writeInt(totalKmerCounts.length);
+		for (int position=0;position<totalKmerCounts.length;position++) {
+			ModuleStateFile.writeLongs(out, totalKmerCounts[position]);
+		}
+		
+		// Most kmers are never seen for the larger sizes so we only write
+		// out the ones which have a row of positions.
+		for (int k=0;k<kmerCounts.length;k++) {
+			int seen = 0;
+			for (int code=0;code<kmerPositions[k].length;code++) {
+				if (kmerPositions[k][code] != null) ++seen;
+			}
+			out.writeInt(seen);
+			for (int code=0;code<kmerPositions[k].length;code++) {
+				if (kmerPositions[k][code] == null) continue;
+				out.writeInt(code);
+				out.writeLong(kmerCounts[k][code]);
+				ModuleStateFile.writeLongs(out, kmerPositions[k][code]);
+			}
+		}
+	}
+
+	/**
+	 * The kmer sizes and sampling interval are taken from the saved state,
+	 * just as the constructor takes them from the options.
+	 */
+	public synchronized void readState(DataInput in) throws IOException {
+		int savedMinKmerSize = in.readInt();
+		int savedMaxKmerSize = in.readInt();
+		if (savedMinKmerSize < 1 || savedMaxKmerSize < savedMinKmerSize || savedMaxKmerSize > LARGEST_KMER_SIZE) {
+			throw new IOException("Saved kmer sizes "+savedMinKmerSize+"-"+savedMaxKmerSize+" weren't valid");
+		}
+		minKmerSize = savedMinKmerSize;
+		maxKmerSize = savedMaxKmerSize;
+		
+		reset();
+		
+		sampleInterval = in.readInt();
+		skipCount = in.readLong();
+		gCount = in.readLong();
+		aCount = in.readLong();
+		tCount = in.readLong();
+		cCount = in.readLong();
+		longestSequence = in.readInt();
+		
+		totalKmerCounts = new long[in.readInt()][];
+		for (int position=0;position<totalKmerCounts.length;position++) {
+			totalKmerCounts[position] = ModuleStateFile.readLongs(in);
+		}
+		
+		for (int k=0;k<kmerCounts.length;k++) {
+			int seen = in.readInt();
+			for (int i=0;i<seen;i++) {
+				int code = in.readInt();
+				kmerCounts[k][code] = in.readLong();
+				kmerPositions[k][code] = ModuleStateFile.readLongs(in);
+			}
+		}
+	}
+
 }
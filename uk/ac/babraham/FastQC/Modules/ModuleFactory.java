@@ -0,0 +1,50 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Modules;
+
+/**
+ * Creates the standard set of modules run on every file.  Everything which
+ * needs a fresh set of modules should come here so the list only lives in
+ * one place.
+ */
+public class ModuleFactory {
+
+	public static QCModule [] getStandardModuleList () {
+
+		OverRepresentedSeqs os = new OverRepresentedSeqs();
+
+		QCModule [] module_list = new QCModule [] {
+				new BasicStats(),
+				new PerBaseQualityScores(),
+				new PerSequenceQualityScores(),
+				new PerBaseSequenceContent(),
+				new PerBaseGCContent(), 
+				new PerSequenceGCContent(),
+				new NContent(),
+				new SequenceLengthDistribution(),
+				os.duplicationLevelModule(),
+				os,
+				new KmerContent()
+			};
+
+		return module_list;
+	}
+
+}
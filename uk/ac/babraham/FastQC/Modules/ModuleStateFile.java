@@ -0,0 +1,180 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Modules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the accumulated state of a set of modules to a file, and reads it
+ * back into a fresh set of modules.  This lets separate processes each
+ * analyse part of a run, with their results merged afterwards using
+ * QCModuleAggreg.mergeResult to give the same report as analysing all of
+ * the data in one go.
+ * 
+ * The file is gzip compressed.  It starts with a magic number and a format
+ * version, followed by one section per module giving its class name and
+ * the length of its state, so that a reader can skip modules it doesn't
+ * know about.
+ */
+public class ModuleStateFile {
+
+	private static final int MAGIC = 0x46514353; // FQCS
+	
+	// This needs to change whenever the state written by any module changes
+	public static final int VERSION = 3;
+	
+	public static void write (File file, QCModule [] modules) throws IOException {
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			
+			int saved = 0;
+			for (int m=0;m<modules.length;m++) {
+				if (modules[m] instanceof QCModuleAggreg) ++saved;
+			}
+			out.writeInt(saved);
+			
+			for (int m=0;m<modules.length;m++) {
+				if (!(modules[m] instanceof QCModuleAggreg)) continue;
+				
+				ByteArrayOutputStream section = new ByteArrayOutputStream();
+				DataOutputStream sectionOut = new DataOutputStream(section);
+				((QCModuleAggreg<?>)modules[m]).writeState(sectionOut);
+				sectionOut.flush();
+				
+				out.writeUTF(modules[m].getClass().getName());
+				out.writeInt(section.size());
+				section.writeTo(out);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads a state file into a new copy of the standard module list.
+	 * 
+	 * @throws IOException if the file isn't a state file, was written by a
+	 * different version, or is missing any of the standard modules.
+	 */
+	public static QCModule [] read (File file) throws IOException {
+		
+		QCModule [] modules = ModuleFactory.getStandardModuleList();
+		boolean [] found = new boolean[modules.length];
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file.getName()+" isn't a FastQC state file");
+			}
+			
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(file.getName()+" was saved in state format "+version+" but we can only read format "+VERSION);
+			}
+			
+			int sections = in.readInt();
+			for (int s=0;s<sections;s++) {
+				String className = in.readUTF();
+				byte [] state = new byte[in.readInt()];
+				in.readFully(state);
+				
+				for (int m=0;m<modules.length;m++) {
+					if (found[m] || !modules[m].getClass().getName().equals(className)) continue;
+					
+					DataInputStream sectionIn = new DataInputStream(new ByteArrayInputStream(state));
+					((QCModuleAggreg<?>)modules[m]).readState(sectionIn);
+					found[m] = true;
+					break;
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		for (int m=0;m<modules.length;m++) {
+			if (modules[m] instanceof QCModuleAggreg && !found[m]) {
+				throw new IOException(file.getName()+" has no saved state for "+modules[m].name());
+			}
+		}
+		
+		return modules;
+	}
+	
+	static void writeLongs (DataOutput out, long [] values) throws IOException {
+		out.writeInt(values.length);
+		for (int i=0;i<values.length;i++) {
+			out.writeLong(values[i]);
+		}
+	}
+	
+	static long [] readLongs (DataInput in) throws IOException {
+		long [] values = new long[in.readInt()];
+		for (int i=0;i<values.length;i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+	
+	static void writeDoubles (DataOutput out, double [] values) throws IOException {
+		out.writeInt(values.length);
+		for (int i=0;i<values.length;i++) {
+			out.writeDouble(values[i]);
+		}
+	}
+	
+	static double [] readDoubles (DataInput in) throws IOException {
+		double [] values = new double[in.readInt()];
+		for (int i=0;i<values.length;i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+	
+	static void writeString (DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+	}
+	
+	static String readString (DataInput in) throws IOException {
+		if (in.readBoolean()) return in.readUTF();
+		return null;
+	}
+	
+}
@@ -21,10 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -32,16 +33,18 @@ import javax.swing.JPanel;
 import uk.ac.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 
-public class NContent implements QCModule, QCModuleAggreg<NContent>{
+public class NContent implements QCModule, QCModuleAggreg<NContent>, QCModuleConvergence {
 
 	public long [] nCounts = new long [0];
 	public long [] notNCounts = new long [0];
 	public boolean calculated = false;
 	public double [] percentages = null;
 	public String [] xCategories = new String[0];
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	public JPanel getResultsPanel() {
 		
 		if (!calculated) getPercentages();
@@ -85,12 +88,14 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 		
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
-		if (nCounts.length < seq.length) {
+		BaseComposition composition = sequence.getComposition();
+		byte [] codes = composition.codes();
+		int length = composition.length();
+		if (nCounts.length < length) {
 			// We need to expand the size of the data structures
 			
-			long [] nCountsNew = new long [seq.length];
-			long [] notNCountsNew = new long [seq.length];
+			long [] nCountsNew = new long [length];
+			long [] notNCountsNew = new long [length];
 
 			for (int i=0;i<nCounts.length;i++) {
 				nCountsNew[i] = nCounts[i];
@@ -101,8 +106,8 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 			notNCounts = notNCountsNew;
 		}
 		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'N') {
+		for (int i=0;i<length;i++) {
+			if (codes[i] == BaseComposition.N) {
 				++nCounts[i];
 			}
 			else {
@@ -113,6 +118,7 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 	}
 	
 	public void reset () {
+		convergence.clear();
 		nCounts = new long[0];
 		notNCounts = new long[0];
 	}
@@ -147,8 +153,7 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 
 	public void makeReport(HTMLReportArchive report) throws IOException {
 		if (!calculated) getPercentages();
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_base_n_content.png"));
+		OutputStream out = report.startFile("Images/per_base_n_content.png");
 		
 		BufferedImage b = new BufferedImage(Math.max(800, percentages.length*15),600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -156,7 +161,7 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 		LineGraph lg = new LineGraph(new double [][] {percentages}, 0d, 100d, "Position in read (bp)", new String [] {"%N"}, xCategories, "N content across all bases");
 		lg.paint(g,b.getWidth(),b.getHeight());
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 		
@@ -190,4 +195,24 @@ public class NContent implements QCModule, QCModuleAggreg<NContent>{
 		}
 	}
 
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		for (int i=0;i<nCounts.length;i++) {
+			double total = nCounts[i]+notNCounts[i];
+			convergence.add(total == 0 ? 0 : nCounts[i]/total);
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeLongs(out, nCounts);
+		ModuleStateFile.writeLongs(out, notNCounts);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		nCounts = ModuleStateFile.readLongs(in);
+		notNCounts = ModuleStateFile.readLongs(in);
+	}
+
 }
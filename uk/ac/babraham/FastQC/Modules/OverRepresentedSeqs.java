@@ -20,11 +20,14 @@
 package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.BorderLayout;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -37,10 +40,14 @@ import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 import uk.ac.babraham.FastQC.Sequence.Contaminant.ContaminantHit;
 import uk.ac.babraham.FastQC.Sequence.Contaminant.ContaminentFinder;
+import uk.ac.babraham.FastQC.Statistics.BottomKSketch;
+import uk.ac.babraham.FastQC.Statistics.HyperLogLog;
+import uk.ac.babraham.FastQC.Utilities.SequenceCountTable;
+import uk.ac.babraham.FastQC.Utilities.SpaceSavingCounter;
 
-public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverRepresentedSeqs> {
+public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverRepresentedSeqs>, QCModuleConvergence {
 
-	protected HashMap<String, Integer>sequences = new HashMap<String, Integer>();
+	protected SequenceCountTable sequences = new SequenceCountTable();
 	protected int count = 0;
 	private OverrepresentedSeq [] overrepresntedSeqs = null;
 	private boolean calculated = false;
@@ -57,9 +64,43 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 	// extrapolating to the whole file
 	protected int countAtUniqueLimit = 0;
 	
+	// If streaming is turned on we also follow the most frequent sequences
+	// over the whole file in a fixed amount of memory and report those,
+	// rather than only the sequences seen before the cutoff.
+	private static final int DEFAULT_STREAMING_CAPACITY = 10000;
+	private SpaceSavingCounter heavyHitters = null;
+	
+	// If the duplication sketch is turned on we estimate the number of
+	// distinct sequences over the whole file, along with an unbiased
+	// sample of them whose counts give the duplication levels.
+	private static final int DISTINCT_SKETCH_PRECISION = 14;
+	private static final int LEVEL_SAMPLE_SIZE = 4096;
+	protected HyperLogLog distinctSketch = null;
+	protected BottomKSketch levelSketch = null;
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	
 	public OverRepresentedSeqs () {
 		duplicationModule = new DuplicationLevel(this);
+		
+		if (System.getProperty("fastqc.overrepresented_streaming") != null && System.getProperty("fastqc.overrepresented_streaming").equals("true")) {
+			int capacity = DEFAULT_STREAMING_CAPACITY;
+			if (System.getProperty("fastqc.overrepresented_capacity") != null) {
+				try {
+					capacity = Integer.parseInt(System.getProperty("fastqc.overrepresented_capacity"));
+					if (capacity < 1) capacity = 1;
+				}
+				catch (NumberFormatException nfe) {
+					System.err.println("Overrepresented sequence capacity '"+System.getProperty("fastqc.overrepresented_capacity")+"' wasn't a number, using "+DEFAULT_STREAMING_CAPACITY);
+				}
+			}
+			heavyHitters = new SpaceSavingCounter(capacity);
+		}
+		
+		if (System.getProperty("fastqc.duplication_sketch") != null && System.getProperty("fastqc.duplication_sketch").equals("true")) {
+			distinctSketch = new HyperLogLog(DISTINCT_SKETCH_PRECISION);
+			levelSketch = new BottomKSketch(LEVEL_SAMPLE_SIZE);
+		}
 	}
 	
 	public String description() {
@@ -105,14 +146,25 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 		// we stomp all over the data
 		duplicationModule.calculateLevels();
 		
-		Iterator<String> s = sequences.keySet().iterator();
 		List<OverrepresentedSeq>keepers = new ArrayList<OverrepresentedSeq>();
 		
-		while (s.hasNext()) {
-			String seq = s.next();
-			double percentage = ((double)sequences.get(seq)/count)*100;
+		if (heavyHitters != null) {
+			for (int s=0;s<heavyHitters.size();s++) {
+				double percentage = ((double)heavyHitters.getCount(s)/count)*100;
+				if (percentage > 0.1) {
+					OverrepresentedSeq os = new OverrepresentedSeq(heavyHitters.getSequence(s), (int)heavyHitters.getCount(s), percentage);
+					os.setCountError((int)heavyHitters.getError(s));
+					keepers.add(os);
+				}
+			}
+		}
+		
+		// We only build the sequence strings for the hits we're going to report
+		else for (int s=0;s<sequences.size();s++) {
+			int seqCount = sequences.getCount(s);
+			double percentage = ((double)seqCount/count)*100;
 			if (percentage > 0.1) {
-				OverrepresentedSeq os = new OverrepresentedSeq(seq, sequences.get(seq), percentage);
+				OverrepresentedSeq os = new OverrepresentedSeq(sequences.getSequence(s), seqCount, percentage);
 				keepers.add(os);
 			}
 		}
@@ -125,8 +177,14 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 	}
 	
 	public void reset () {
+		convergence.clear();
 		count = 0;
 		sequences.clear();
+		if (heavyHitters != null) heavyHitters.clear();
+		if (distinctSketch != null) {
+			distinctSketch.clear();
+			levelSketch.clear();
+		}
 	}
 
 	public String name() {
@@ -141,25 +199,33 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 		
 		// Since we rely on identity to match sequences we can't trust really long
 		// sequences, so anything over 75bp gets truncated to 50bp.
-		String seq = sequence.getSequence();
-		if (seq.length() > 75) {
-			seq = new String(seq.substring(0, 50));
+		CharSequence seq = sequence.getSequenceChars();
+		int length = seq.length();
+		if (length > 75) {
+			length = 50;
+		}
+		
+		int previousSize = sequences.size();
+		
+		sequences.add(seq, length, 1, !frozen);
+		
+		if (heavyHitters != null) {
+			heavyHitters.offer(seq, length);
 		}
-				
-		if (sequences.containsKey(seq)) {
-			sequences.put(seq, sequences.get(seq)+1);
+		
+		if (distinctSketch != null) {
+			long hash = HyperLogLog.hash(seq, length);
+			distinctSketch.offer(hash);
+			levelSketch.offer(hash);
 		}
-		else {
-			if (! frozen) {
-				sequences.put(seq, 1);
-				++uniqueSequenceCount;
-				countAtUniqueLimit = count;
-				if (uniqueSequenceCount == OBSERVATION_CUTOFF) {
-					frozen = true;
-				}
-
+		
+		if (sequences.size() > previousSize) {
+			++uniqueSequenceCount;
+			countAtUniqueLimit = count;
+			if (uniqueSequenceCount == OBSERVATION_CUTOFF) {
+				frozen = true;
 			}
-		}		
+		}
 	}
 	
 	private class ResultsTable extends AbstractTableModel {
@@ -171,8 +237,10 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 		}
 		
 		
-		// Sequence - Count - Percentage
+		// Sequence - Count - Percentage - Source, plus the possible
+		// overcount if we're streaming
 		public int getColumnCount() {
+			if (heavyHitters != null) return 5;
 			return 4;
 		}
 
@@ -186,6 +254,7 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 				case 1: return seqs[rowIndex].count();
 				case 2: return seqs[rowIndex].percentage();
 				case 3: return seqs[rowIndex].contaminantHit();
+				case 4: return seqs[rowIndex].countError();
 					
 			}
 			return null;
@@ -197,6 +266,7 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 				case 1: return "Count";
 				case 2: return "Percentage";
 				case 3: return "Possible Source";
+				case 4: return "Count Error";
 			}
 			return null;
 		}
@@ -207,6 +277,7 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 			case 1: return Integer.class;
 			case 2: return Double.class;
 			case 3: return String.class;
+			case 4: return Integer.class;
 		}
 		return null;
 			
@@ -219,6 +290,7 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 		private int count;
 		private double percentage;
 		private ContaminantHit contaminantHit;
+		private int countError = 0;
 		
 		public OverrepresentedSeq (String seq, int count, double percentage) {
 			this.seq = seq;
@@ -239,6 +311,17 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 			return percentage;
 		}
 		
+		public void setCountError (int countError) {
+			this.countError = countError;
+		}
+		
+		/**
+		 * @return The most by which the count may be too high
+		 */
+		public int countError () {
+			return countError;
+		}
+		
 		public String contaminantHit () {
 			if (contaminantHit == null) {
 				return "No Hit";
@@ -321,22 +404,130 @@ public class OverRepresentedSeqs implements QCModule, QCModuleAggreg<OverReprese
 	/**
 	 * Merge OverRepresentedSeqs count.
 	 * When merging, we do not obey the observation cutoff. 
+	 * 
+	 * @throws IllegalArgumentException if the result was counted with
+	 * streaming or the duplication sketch on and we weren't, or the other
+	 * way around, since the counts couldn't be combined.
 	 */
 	@Override
 	public synchronized void mergeResult(OverRepresentedSeqs result) {
+		if ((heavyHitters == null) != (result.heavyHitters == null)) {
+			throw new IllegalArgumentException("Can't merge results with and without fastqc.overrepresented_streaming");
+		}
+		if ((distinctSketch == null) != (result.distinctSketch == null)) {
+			throw new IllegalArgumentException("Can't merge results with and without fastqc.duplication_sketch");
+		}
+		
+		int previousCount = count;
 		count += result.count;
 
-		for (String sequence : result.sequences.keySet()) {
-			Integer resultSeqCount = result.sequences.get(sequence);
-			if (!sequences.containsKey(sequence)) {
-				sequences.put(sequence, resultSeqCount);
+		sequences.addAll(result.sequences);
+		if (heavyHitters != null) {
+			heavyHitters.merge(result.heavyHitters);
+		}
+		if (distinctSketch != null) {
+			distinctSketch.merge(result.distinctSketch);
+			levelSketch.merge(result.levelSketch);
+		}
+		uniqueSequenceCount = sequences.size();
+
+		// Each result stopped adding new sequences at its own point, so the
+		// proportion of the data we actually tracked is the sum of these.
+		// If neither stopped then we treat the result as following on from
+		// our data, which is what a single pass over both would have seen
+		// as long as the last new sequence in the result was new to us too.
+		if (!frozen && !result.frozen && result.countAtUniqueLimit > 0) {
+			countAtUniqueLimit = previousCount+result.countAtUniqueLimit;
+		}
+		else {
+			countAtUniqueLimit += result.countAtUniqueLimit;
+		}
+		frozen = frozen || result.frozen;
+	}
+
+	/**
+	 * We're stable if the same sequences would be reported, with much the
+	 * same proportions, as last time.
+	 */
+	public synchronized boolean isStable(double tolerance) {
+		TreeMap<String, Double> hits = new TreeMap<String, Double>();
+		
+		if (heavyHitters != null) {
+			for (int s=0;s<heavyHitters.size();s++) {
+				double proportion = ((double)heavyHitters.getCount(s))/count;
+				if (proportion > 0.001) {
+					hits.put(heavyHitters.getSequence(s), proportion);
+				}
 			}
-			else {
-				sequences.put(sequence, sequences.get(sequence) + resultSeqCount);
+		}
+		else for (int s=0;s<sequences.size();s++) {
+			double proportion = ((double)sequences.getCount(s))/count;
+			if (proportion > 0.001) {
+				hits.put(sequences.getSequence(s), proportion);
+			}
+		}
+		
+		convergence.start();
+		for (Map.Entry<String, Double> hit : hits.entrySet()) {
+			convergence.add(hit.getKey(), hit.getValue());
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		out.writeInt(count);
+		out.writeInt(uniqueSequenceCount);
+		out.writeInt(countAtUniqueLimit);
+		out.writeBoolean(frozen);
+		sequences.writeState(out);
+		
+		out.writeBoolean(heavyHitters != null);
+		if (heavyHitters != null) {
+			heavyHitters.writeState(out);
+		}
+		
+		out.writeBoolean(distinctSketch != null);
+		if (distinctSketch != null) {
+			distinctSketch.writeState(out);
+			levelSketch.writeState(out);
+		}
+	}
+
+	/**
+	 * Whether the streaming counter and the duplication sketches are used
+	 * follows the saved state rather than the current options, so that
+	 * the results can always be merged with others saved the same way.
+	 */
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		duplicationModule.reset();
+		
+		count = in.readInt();
+		uniqueSequenceCount = in.readInt();
+		countAtUniqueLimit = in.readInt();
+		frozen = in.readBoolean();
+		sequences.readState(in);
+		
+		if (in.readBoolean()) {
+			if (heavyHitters == null) heavyHitters = new SpaceSavingCounter(DEFAULT_STREAMING_CAPACITY);
+			heavyHitters.readState(in);
+		}
+		else {
+			heavyHitters = null;
+		}
+		
+		if (in.readBoolean()) {
+			if (distinctSketch == null) {
+				distinctSketch = new HyperLogLog(DISTINCT_SKETCH_PRECISION);
+				levelSketch = new BottomKSketch(LEVEL_SAMPLE_SIZE);
 			}
+			distinctSketch.readState(in);
+			levelSketch.readState(in);
+		}
+		else {
+			distinctSketch = null;
+			levelSketch = null;
 		}
-		uniqueSequenceCount += sequences.size();
-		countAtUniqueLimit = count;
 	}
 
 }
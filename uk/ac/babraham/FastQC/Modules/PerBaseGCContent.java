@@ -21,10 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -32,9 +33,10 @@ import javax.swing.JPanel;
 import uk.ac.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 
-public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCContent>  {
+public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCContent>, QCModuleConvergence  {
 
 	public long [] gcCounts = new long [0];
 	public long [] atCounts = new long [0];
@@ -42,7 +44,21 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 	private String [] xCategories = new String[0];
 	private boolean calculated = false;
 	private double maxDeviation;
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
+	
+	// Whether each BaseComposition code counts towards GC or AT, so we
+	// can just add them on
+	private static final int [] IS_GC = new int[BaseComposition.CODE_COUNT];
+	private static final int [] IS_AT = new int[BaseComposition.CODE_COUNT];
 	
+	static {
+		IS_GC[BaseComposition.G] = 1;
+		IS_GC[BaseComposition.C] = 1;
+		IS_AT[BaseComposition.A] = 1;
+		IS_AT[BaseComposition.T] = 1;
+		IS_AT[BaseComposition.U] = 1;
+	}
 	
 	public JPanel getResultsPanel() {
 		
@@ -105,13 +121,15 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
+		BaseComposition composition = sequence.getComposition();
+		byte [] codes = composition.codes();
+		int length = composition.length();
 
-		if (gcCounts.length < seq.length) {
+		if (gcCounts.length < length) {
 			// We need to expand the size of the data structures
 			
-			long [] gcCountsNew = new long [seq.length];
-			long [] atCountsNew = new long [seq.length];
+			long [] gcCountsNew = new long [length];
+			long [] atCountsNew = new long [length];
 
 			for (int i=0;i<gcCounts.length;i++) {
 				gcCountsNew[i] = gcCounts[i];
@@ -122,18 +140,15 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 			atCounts = atCountsNew;
 		}
 		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G' || seq[i] == 'C') {
-				++gcCounts[i];
-			}
-			if (seq[i] == 'A' || seq[i] == 'T' || seq[i] == 'U') {
-				++atCounts[i];
-			}
+		for (int i=0;i<length;i++) {
+			gcCounts[i] += IS_GC[codes[i]];
+			atCounts[i] += IS_AT[codes[i]];
 		}
 		
 	}
 	
 	public void reset () {
+		convergence.clear();
 		gcCounts = new long[0];
 		atCounts = new long[0];
 	}
@@ -160,8 +175,7 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 
 	public void makeReport(HTMLReportArchive report) throws IOException {
 		if (!calculated) getPercentages();
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_base_gc_content.png"));
+		OutputStream out = report.startFile("Images/per_base_gc_content.png");
 
 		BufferedImage b = new BufferedImage(Math.max(800, percentages.length*15),600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -169,7 +183,7 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 		LineGraph lg = new LineGraph(new double [][] {percentages}, 0d, 100d, "Position in read (bp)", new String [] {"%GC"}, xCategories, "GC content across all bases");
 		lg.paint(g,b.getWidth(),b.getHeight());
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 
@@ -201,6 +215,26 @@ public class PerBaseGCContent implements QCModule, QCModuleAggreg<PerBaseGCConte
 		for (int i=0; i < result.atCounts.length; i++) {
 			atCounts[i] += result.atCounts[i];
 		}
-	} 
+	}
+
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		for (int i=0;i<gcCounts.length;i++) {
+			double total = gcCounts[i]+atCounts[i];
+			convergence.add(total == 0 ? 0 : gcCounts[i]/total);
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeLongs(out, gcCounts);
+		ModuleStateFile.writeLongs(out, atCounts);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		gcCounts = ModuleStateFile.readLongs(in);
+		atCounts = ModuleStateFile.readLongs(in);
+	}
 
 }
@@ -21,12 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -37,7 +36,7 @@ import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 import uk.ac.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQualityScores> {
+public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQualityScores>, QCModuleConvergence {
 
 	public QualityCount [] qualityCounts = new QualityCount[0];
 	double [] means = null;
@@ -51,7 +50,8 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 	int high = 0;
 	PhredEncoding encodingScheme;
 	private boolean calculated = false;
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	
 	public JPanel getResultsPanel() {
 		
@@ -127,10 +127,12 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] qual = sequence.getQualityString().toCharArray();
-		if (qualityCounts.length < qual.length) {
+		byte [] qual = sequence.getQualityBytes();
+		int offset = sequence.getQualityOffset();
+		int length = sequence.getQualityLength();
+		if (qualityCounts.length < length) {
 			
-			QualityCount [] qualityCountsNew = new QualityCount[qual.length];
+			QualityCount [] qualityCountsNew = new QualityCount[length];
 			
 			for (int i=0;i<qualityCounts.length;i++) {
 				qualityCountsNew[i] = qualityCounts[i];
@@ -142,13 +144,14 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 			
 		}
 		
-		for (int i=0;i<qual.length;i++) {
-			qualityCounts[i].addValue(qual[i]);
+		for (int i=0;i<length;i++) {
+			qualityCounts[i].addValue((char)(qual[offset+i] & 0xFF));
 		}
 		
 	}
 		
 	public void reset () {
+		convergence.clear();
 		qualityCounts = new QualityCount[0];
 	}
 
@@ -186,8 +189,7 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 		
 		if (!calculated) getPercentages();
 
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_base_quality.png"));
+		OutputStream out = report.startFile("Images/per_base_quality.png");
 		
 		BufferedImage b = new BufferedImage(Math.max(800, means.length*15),600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -195,7 +197,7 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 		bp.paint(g,b.getWidth(),b.getHeight());
 
 	
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 	
 		StringBuffer sb = report.htmlDocument();
 		
@@ -283,90 +285,119 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 		
 	}
 	
+	/**
+	 * Holds a dense histogram of the quality characters seen at one position.
+	 * The histogram covers the printable range used by all of the Phred
+	 * encodings, but will stretch to cover anything else we're given so that
+	 * odd files still give exactly the same answers.
+	 */
 	private class QualityCount {
-		private HashMap<Character, Long> counts = new HashMap<Character, Long>();
+		
+		private static final char FIRST_PRINTABLE = '!';
+		private static final char LAST_PRINTABLE = '~';
+		
+		private char firstChar = FIRST_PRINTABLE;
+		private long [] counts = new long[(LAST_PRINTABLE-FIRST_PRINTABLE)+1];
 		
 		private long totalCounts = 0;
+		
+		// Cumulative counts are worked out when we're first asked for a
+		// percentile and kept until more values are added.
+		private long [] cumulativeCounts = null;
+		private long cumulativeTotal = -1;
 	
 		public void addValue(char c) {
 			totalCounts++;
-			if (counts.containsKey(c)) {
-				counts.put(c, counts.get(c)+1);
-			}
-			else {
-				counts.put(c, 1L);
+			int index = c-firstChar;
+			if (index < 0 || index >= counts.length) {
+				expandRange(c, c);
+				index = c-firstChar;
 			}
+			++counts[index];
+		}
+		
+		private void expandRange (char low, char high) {
+			char newFirstChar = (char)Math.min(firstChar, low);
+			int newLength = Math.max(firstChar+counts.length, high+1)-newFirstChar;
+			long [] newCounts = new long[newLength];
+			System.arraycopy(counts, 0, newCounts, firstChar-newFirstChar, counts.length);
+			firstChar = newFirstChar;
+			counts = newCounts;
 		}
 				
-		public void addValues(QualityCount moreCounts) {			
-			for(char c : moreCounts.counts.keySet()) {
-				totalCounts += moreCounts.counts.get(c);
-				if (counts.containsKey(c)) {
-					counts.put(c, counts.get(c)+moreCounts.counts.get(c));
-				}
-				else {
-					counts.put(c, moreCounts.counts.get(c));
-				}
-			}			
+		public void addValues(QualityCount moreCounts) {
+			if (moreCounts.firstChar < firstChar || moreCounts.firstChar+moreCounts.counts.length > firstChar+counts.length) {
+				expandRange(moreCounts.firstChar, (char)((moreCounts.firstChar+moreCounts.counts.length)-1));
+			}
+			int shift = moreCounts.firstChar-firstChar;
+			for (int i=0;i<moreCounts.counts.length;i++) {
+				counts[i+shift] += moreCounts.counts[i];
+			}
+			totalCounts += moreCounts.totalCounts;
 		}
 		
 		public long getTotalCount () {
 			return totalCounts;
 		}
 		
+		public void writeState (DataOutput out) throws IOException {
+			out.writeChar(firstChar);
+			ModuleStateFile.writeLongs(out, counts);
+			out.writeLong(totalCounts);
+		}
+		
+		public void readState (DataInput in) throws IOException {
+			firstChar = in.readChar();
+			counts = ModuleStateFile.readLongs(in);
+			totalCounts = in.readLong();
+			cumulativeTotal = -1;
+		}
+		
 		public char getMinChar () {
-			char minChar = 10000;
-			Iterator<Character>c = counts.keySet().iterator();
-			while (c.hasNext()) {
-				Character thisChar = c.next();
-				if (thisChar < minChar) minChar = thisChar;
+			for (int i=0;i<counts.length;i++) {
+				if (counts[i] > 0) return (char)(firstChar+i);
 			}
-			
-			return minChar;
+			return 10000;
 		}
 		
 		public char getMaxChar () {
-			char maxChar = 0;
-
-			Iterator<Character>c = counts.keySet().iterator();
-			while (c.hasNext()) {
-				Character thisChar = c.next();
-				if (thisChar > maxChar) maxChar = thisChar;
+			for (int i=counts.length-1;i>=0;i--) {
+				if (counts[i] > 0) return (char)(firstChar+i);
 			}
-			
-			return maxChar;
-
+			return 0;
 		}
 				
 		public double getMean (int offset) {
 			long total = 0;
-			long count = 0;
-			Iterator<Character>c = counts.keySet().iterator();
-			while (c.hasNext()) {
-				Character thisChar = c.next();
-				total += counts.get(thisChar) * (thisChar-offset);
-				count += counts.get(thisChar);
+			for (int i=0;i<counts.length;i++) {
+				total += counts[i] * ((firstChar+i)-offset);
 			}
 			
-			return ((double)total)/count;
+			return ((double)total)/totalCounts;
 		}
 		
 		public double getPercentile (int offset, int percentile) {
-			Character [] chars = counts.keySet().toArray(new Character[0]);
-			Arrays.sort(chars);
-			long total = 0;
-			for (int c=0;c<chars.length;c++) {
-				total += counts.get(chars[c]);
+			if (cumulativeTotal != totalCounts) {
+				cumulativeCounts = new long[counts.length];
+				long count = 0;
+				for (int i=0;i<counts.length;i++) {
+					count += counts[i];
+					cumulativeCounts[i] = count;
+				}
+				cumulativeTotal = totalCounts;
 			}
 			
+			long total = totalCounts;
 			total *= percentile;
 			total /= 100;
 			
-			long count = 0;
-			for (int c=0;c<chars.length;c++) {
-				count += counts.get(chars[c]);
-				if (count >= total) {
-					return (chars[c]-offset);
+			// We want the first character we've actually seen which takes
+			// us up to the total
+			if (total < 1) total = 1;
+			
+			for (int i=0;i<cumulativeCounts.length;i++) {
+				if (cumulativeCounts[i] >= total) {
+					return (firstChar+i)-offset;
 				}
 			}
 			
@@ -376,7 +407,32 @@ public class PerBaseQualityScores implements QCModule, QCModuleAggreg<PerBaseQua
 		
 	}
 
+	/**
+	 * We compare the whole distribution of qualities at each position so
+	 * that the quantiles we draw are stable as well as the means.
+	 */
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		for (int i=0;i<qualityCounts.length;i++) {
+			convergence.addCumulative(qualityCounts[i].counts);
+		}
+		return convergence.isStable(tolerance);
+	}
 
+	public synchronized void writeState(DataOutput out) throws IOException {
+		out.writeInt(qualityCounts.length);
+		for (int i=0;i<qualityCounts.length;i++) {
+			qualityCounts[i].writeState(out);
+		}
+	}
 
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		qualityCounts = new QualityCount[in.readInt()];
+		for (int i=0;i<qualityCounts.length;i++) {
+			qualityCounts[i] = new QualityCount();
+			qualityCounts[i].readState(in);
+		}
+	}
 
 }
@@ -21,10 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -32,9 +33,10 @@ import javax.swing.JPanel;
 import uk.ac.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 
-public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseSequenceContent> {
+public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseSequenceContent>, QCModuleConvergence {
 
 	public long [] gCounts = new long [0];
 	public long [] aCounts = new long [0];
@@ -44,6 +46,12 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 	private String [] xCategories = new String[0];
 	private boolean calculated = false;
 	
+	// The count arrays above indexed by BaseComposition code, so we can
+	// count a base without having to check what it is.  Anything other
+	// than GATC goes into a spare array which we never look at.
+	private long [][] countsByCode = null;
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	
 	public JPanel getResultsPanel() {
 		
@@ -111,13 +119,15 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
-		if (gCounts.length < seq.length) {
+		BaseComposition composition = sequence.getComposition();
+		byte [] codes = composition.codes();
+		int length = composition.length();
+		if (gCounts.length < length) {
 			
-			long [] gCountsNew = new long [seq.length];
-			long [] aCountsNew = new long [seq.length];
-			long [] cCountsNew = new long [seq.length];
-			long [] tCountsNew = new long [seq.length];
+			long [] gCountsNew = new long [length];
+			long [] aCountsNew = new long [length];
+			long [] cCountsNew = new long [length];
+			long [] tCountsNew = new long [length];
 
 			for (int i=0;i<gCounts.length;i++) {
 				gCountsNew[i] = gCounts[i];
@@ -132,24 +142,30 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 			cCounts = cCountsNew;
 		}
 		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G') {
-				++gCounts[i];
-			}
-			else if (seq[i] == 'A') {
-				++aCounts[i];
-			}
-			else if (seq[i] == 'T') {
-				++tCounts[i];
-			}
-			else if (seq[i] == 'C') {
-				++cCounts[i];
-			}
+		long [][] counts = countsByCode();
+		for (int i=0;i<length;i++) {
+			++counts[codes[i]][i];
 		}
 		
 	}
 	
+	private long [][] countsByCode () {
+		if (countsByCode == null || countsByCode[BaseComposition.G] != gCounts || countsByCode[BaseComposition.A] != aCounts || countsByCode[BaseComposition.T] != tCounts || countsByCode[BaseComposition.C] != cCounts) {
+			long [] otherCounts = new long[gCounts.length];
+			countsByCode = new long[BaseComposition.CODE_COUNT][];
+			for (int c=0;c<countsByCode.length;c++) {
+				countsByCode[c] = otherCounts;
+			}
+			countsByCode[BaseComposition.G] = gCounts;
+			countsByCode[BaseComposition.A] = aCounts;
+			countsByCode[BaseComposition.T] = tCounts;
+			countsByCode[BaseComposition.C] = cCounts;
+		}
+		return countsByCode;
+	}
+	
 	public void reset () {
+		convergence.clear();
 		gCounts = new long[0];
 		aCounts = new long[0];
 		tCounts = new long[0];
@@ -199,8 +215,7 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 		
 		if (!calculated) getPercentages();
 		
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_base_sequence_content.png"));
+		OutputStream out = report.startFile("Images/per_base_sequence_content.png");
 
 		BufferedImage b = new BufferedImage(Math.max(800, xCategories.length*15),600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -208,7 +223,7 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 		LineGraph lg = new LineGraph(percentages, 0d, 100d,  "Position in read (bp)",new String [] {"%T","%C","%A","%G"}, xCategories, "Sequence content across all bases");
 		lg.paint(g,b.getWidth(),b.getHeight());
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 
@@ -260,6 +275,34 @@ public class PerBaseSequenceContent implements QCModule, QCModuleAggreg<PerBaseS
 		for (int i = 0; i < result.cCounts.length; i++) {
 			cCounts[i] += result.cCounts[i];
 		}
-	} 
+	}
+
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		for (int i=0;i<gCounts.length;i++) {
+			double total = gCounts[i]+aCounts[i]+tCounts[i]+cCounts[i];
+			if (total == 0) total = 1;
+			convergence.add(gCounts[i]/total);
+			convergence.add(aCounts[i]/total);
+			convergence.add(tCounts[i]/total);
+			convergence.add(cCounts[i]/total);
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeLongs(out, gCounts);
+		ModuleStateFile.writeLongs(out, aCounts);
+		ModuleStateFile.writeLongs(out, cCounts);
+		ModuleStateFile.writeLongs(out, tCounts);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		gCounts = ModuleStateFile.readLongs(in);
+		aCounts = ModuleStateFile.readLongs(in);
+		cCounts = ModuleStateFile.readLongs(in);
+		tCounts = ModuleStateFile.readLongs(in);
+	}
 
 }
@@ -21,11 +21,12 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -34,10 +35,11 @@ import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Modules.GCModel.GCModel;
 import uk.ac.babraham.FastQC.Modules.GCModel.GCModelValue;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.babraham.FastQC.Sequence.BaseComposition;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 import uk.ac.babraham.FastQC.Statistics.NormalDistribution;
 
-public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenceGCContent> {
+public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenceGCContent>, QCModuleConvergence {
 
 	private double [] gcDistribution = new double[101];
 	private double [] theoreticalDistribution  = new double[101];
@@ -45,7 +47,8 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 	private double max = 0;
 	private double deviationPercent;
 	private boolean calculated = false;
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	private Hashtable<Integer, GCModel> cachedModels = new Hashtable<Integer, GCModel>();
 	
 	public JPanel getResultsPanel() {
@@ -171,23 +174,26 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 		// rounding off the sequence once we get above a certain size
 		
 		
-		char [] seq = truncateSequence(sequence);
-		
-		if (seq.length == 0) return; // Ignore empty sequences
+		BaseComposition composition = sequence.getComposition();
+		int length = truncatedLength(composition.length());
 		
+		if (length == 0) return; // Ignore empty sequences
 		
-		int thisSeqGCCount = 0;
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G' || seq[i] == 'C') {
-				++thisSeqGCCount;
+		// We already know the GC count for the whole read, so we only need
+		// to take off whatever was in the part we've cut off the end.
+		int thisSeqGCCount = composition.gcCount();
+		byte [] codes = composition.codes();
+		for (int i=length;i<composition.length();i++) {
+			if (codes[i] == BaseComposition.G || codes[i] == BaseComposition.C) {
+				--thisSeqGCCount;
 			}
 		}
 
-		if (! cachedModels.containsKey(seq.length)) {
-			cachedModels.put(seq.length,new GCModel(seq.length));
+		if (! cachedModels.containsKey(length)) {
+			cachedModels.put(length,new GCModel(length));
 		}
 
-		GCModelValue [] values = cachedModels.get(seq.length).getModelValues(thisSeqGCCount);
+		GCModelValue [] values = cachedModels.get(length).getModelValues(thisSeqGCCount);
 
 		for (int i=0;i<values.length;i++) {
 			gcDistribution[values[i].percentage()] += values[i].increment();
@@ -195,27 +201,27 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 		
 	}
 	
-	private char [] truncateSequence (Sequence sequence) {
+	/**
+	 * Works out how much of the start of a sequence we look at.
+	 */
+	private int truncatedLength (int length) {
 		
-		String seq = sequence.getSequence();
-		
-		// TODO: We should return a random chunk of sequence, rather
+		// TODO: We should use a random chunk of sequence, rather
 		// than the start.
 		
-		if (seq.length() > 1000) {
-			int length = (seq.length()/1000)*1000;
-			return seq.substring(0, length).toCharArray();
+		if (length > 1000) {
+			return (length/1000)*1000;
 		}
-		if (seq.length() > 100) {
-			int length = (seq.length()/100)*100;
-			return seq.substring(0, length).toCharArray();
+		if (length > 100) {
+			return (length/100)*100;
 		}
 
-		return seq.toCharArray();		
+		return length;		
 		
 	}
 	
 	public void reset () {
+		convergence.clear();
 		gcDistribution = new double[101];
 	}
 
@@ -240,8 +246,7 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 	}
 
 	public void makeReport(HTMLReportArchive report) throws IOException {
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_sequence_gc_content.png"));
+		OutputStream out = report.startFile("Images/per_sequence_gc_content.png");
 
 		BufferedImage b = new BufferedImage(800,600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -250,7 +255,7 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 
 		lg.paint(g,800,600);
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 
@@ -279,8 +284,24 @@ public class PerSequenceGCContent implements QCModule, QCModuleAggreg<PerSequenc
 		if (gcDistribution.length < result.gcDistribution.length) {
 			gcDistribution = Arrays.copyOf(gcDistribution, result.gcDistribution.length);
 		}
-		for (int gcPerc=0; gcPerc<gcDistribution.length; gcPerc++) {
+		for (int gcPerc=0; gcPerc<result.gcDistribution.length; gcPerc++) {
 			gcDistribution[gcPerc] += result.gcDistribution[gcPerc];
 		}	
 	}
+
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		convergence.addCumulative(gcDistribution);
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeDoubles(out, gcDistribution);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		gcDistribution = ModuleStateFile.readDoubles(in);
+	}
+
 }
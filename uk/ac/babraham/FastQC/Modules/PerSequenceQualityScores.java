@@ -21,11 +21,12 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -35,7 +36,7 @@ import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 import uk.ac.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSequenceQualityScores> {
+public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSequenceQualityScores>, QCModuleConvergence {
 
 	private HashMap<Integer, Long> averageScoreCounts = new HashMap<Integer, Long>();
 	private double [] qualityDistribution = null;
@@ -44,7 +45,8 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 	private int maxCount = 0;
 	private int mostFrequentScore;
 	private boolean calculated = false;
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	public JPanel getResultsPanel() {
 	
 		if (!calculated) calculateDistribution();
@@ -84,18 +86,21 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 	}
 
 	public void processSequence(Sequence sequence) {
-		char [] seq = sequence.getQualityString().toCharArray();
+		byte [] qualities = sequence.getQualityBytes();
+		int offset = sequence.getQualityOffset();
+		int length = sequence.getQualityLength();
 		int averageQuality = 0;
 		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] < lowestChar) {
-				lowestChar = seq[i];
+		for (int i=0;i<length;i++) {
+			char quality = (char)(qualities[offset+i] & 0xFF);
+			if (quality < lowestChar) {
+				lowestChar = quality;
 			}
-			averageQuality += seq[i];
+			averageQuality += quality;
 		}
 
-		if (seq.length > 0) {
-			averageQuality /= seq.length;
+		if (length > 0) {
+			averageQuality /= length;
 		
 			if (averageScoreCounts.containsKey(averageQuality)) {
 				long currentCount = averageScoreCounts.get(averageQuality);
@@ -109,6 +114,7 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 	}
 	
 	public void reset () {
+		convergence.clear();
 		averageScoreCounts.clear();
 		lowestChar = 126;
 		maxCount = 0;
@@ -142,8 +148,7 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 	public void makeReport(HTMLReportArchive report) throws IOException {
 		if (!calculated) calculateDistribution();
 
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/per_sequence_quality.png"));
+		OutputStream out = report.startFile("Images/per_sequence_quality.png");
 
 		BufferedImage b = new BufferedImage(800,600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -151,7 +156,7 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 		LineGraph lg = new LineGraph(new double [][] {qualityDistribution}, 0d, maxCount, "Mean Sequence Quality (Phred Score)", new String [] {"Average Quality per read"}, xCategories, "Quality score distribution over all sequences");
 		lg.paint(g,800,600);
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 
@@ -182,7 +187,7 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 				averageScoreCounts.put(aveScore, resultAveScoreCount);
 			}
 			else {
-				averageScoreCounts.put(aveScore, result.averageScoreCounts.get(aveScore) + resultAveScoreCount);
+				averageScoreCounts.put(aveScore, averageScoreCounts.get(aveScore) + resultAveScoreCount);
 			}
 				
 		}
@@ -191,4 +196,43 @@ public class PerSequenceQualityScores implements QCModule, QCModuleAggreg<PerSeq
 		}		
 	}
 
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		if (!averageScoreCounts.isEmpty()) {
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (Integer score : averageScoreCounts.keySet()) {
+				min = Math.min(min, score);
+				max = Math.max(max, score);
+			}
+			long [] counts = new long[(max-min)+1];
+			for (Integer score : averageScoreCounts.keySet()) {
+				counts[score-min] = averageScoreCounts.get(score);
+			}
+			convergence.add("From "+min, 0);
+			convergence.addCumulative(counts);
+		}
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		out.writeInt(averageScoreCounts.size());
+		for (Integer aveScore : averageScoreCounts.keySet()) {
+			out.writeInt(aveScore);
+			out.writeLong(averageScoreCounts.get(aveScore));
+		}
+		out.writeChar(lowestChar);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		averageScoreCounts.clear();
+		int scores = in.readInt();
+		for (int i=0;i<scores;i++) {
+			int aveScore = in.readInt();
+			averageScoreCounts.put(aveScore, in.readLong());
+		}
+		lowestChar = in.readChar();
+	}
+
 }
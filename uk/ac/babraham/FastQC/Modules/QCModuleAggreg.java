@@ -1,5 +1,21 @@
 package uk.ac.babraham.FastQC.Modules;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public interface QCModuleAggreg <T extends QCModule>{
 	public void mergeResult(T result);
+	
+	/**
+	 * Writes out everything the module has accumulated so that it can be
+	 * read back in another process and merged with other results.
+	 */
+	public void writeState(DataOutput out) throws IOException;
+	
+	/**
+	 * Replaces the accumulated data in a freshly created module with state
+	 * previously saved by writeState.
+	 */
+	public void readState(DataInput in) throws IOException;
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Modules;
+
+/**
+ * Implemented by modules which can tell when reading more sequences has
+ * stopped changing their results, so that an analysis can finish early.
+ */
+public interface QCModuleConvergence {
+
+	/**
+	 * Compares the module's results now with its results the last time it
+	 * was asked.  Results are compared as proportions (of reads, bases and
+	 * so on) so the same tolerance makes sense for every module.
+	 * 
+	 * @param tolerance The largest change in any proportion which still
+	 * counts as stable
+	 * @return true if nothing has changed by more than the tolerance since
+	 * the last call.  The first call always returns false.
+	 */
+	public boolean isStable(double tolerance);
+	
+}
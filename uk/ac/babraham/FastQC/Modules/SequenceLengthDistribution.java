@@ -21,10 +21,11 @@ package uk.ac.babraham.FastQC.Modules;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -33,14 +34,15 @@ import uk.ac.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.babraham.FastQC.Sequence.Sequence;
 
-public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<SequenceLengthDistribution> {
+public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<SequenceLengthDistribution>, QCModuleConvergence {
 
 	private long [] lengthCounts = new long[0];
 	private double [] graphCounts = null;
 	private String [] xCategories = new String[0];
 	private double max = 0;
 	private boolean calculated = false;
-	
+
+	private ConvergenceTracker convergence = new ConvergenceTracker();	
 	public JPanel getResultsPanel() {
 	
 		if (!calculated) calculateDistribution();
@@ -112,7 +114,7 @@ public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<Sequ
 	}
 
 	public void processSequence(Sequence sequence) {
-		int seqLen = sequence.getSequence().length();
+		int seqLen = sequence.getSequenceLength();
 
 		if (seqLen+2 > lengthCounts.length) {
 			long [] newLengthCounts = new long[seqLen+2];
@@ -167,6 +169,7 @@ public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<Sequ
 	
 	
 	public void reset () {
+		convergence.clear();
 		lengthCounts = new long[0];
 	}
 
@@ -208,8 +211,7 @@ public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<Sequ
 	public void makeReport(HTMLReportArchive report) throws IOException {
 		if (!calculated) calculateDistribution();
 
-		ZipOutputStream zip = report.zipFile();
-		zip.putNextEntry(new ZipEntry(report.folderName()+"/Images/sequence_length_distribution.png"));
+		OutputStream out = report.startFile("Images/sequence_length_distribution.png");
 
 		BufferedImage b = new BufferedImage(800,600,BufferedImage.TYPE_INT_RGB);
 		Graphics g = b.getGraphics();
@@ -217,7 +219,7 @@ public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<Sequ
 		LineGraph lg = new LineGraph(new double [][] {graphCounts}, 0d, max, "Sequence Length (bp)",new String [] {"Sequence Length"}, xCategories, "Distribution of sequence lengths over all sequences");
 		lg.paint(g,800,600);
 
-		ImageIO.write((BufferedImage)(b),"PNG",zip);
+		ImageIO.write((BufferedImage)(b),"PNG",out);
 
 		StringBuffer sb = report.htmlDocument();
 
@@ -248,4 +250,19 @@ public class SequenceLengthDistribution implements QCModule, QCModuleAggreg<Sequ
 		
 	}
 
+	public synchronized boolean isStable(double tolerance) {
+		convergence.start();
+		convergence.addCumulative(lengthCounts);
+		return convergence.isStable(tolerance);
+	}
+
+	public synchronized void writeState(DataOutput out) throws IOException {
+		ModuleStateFile.writeLongs(out, lengthCounts);
+	}
+
+	public synchronized void readState(DataInput in) throws IOException {
+		calculated = false;
+		lengthCounts = ModuleStateFile.readLongs(in);
+	}
+
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Report;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Writes a report straight out as files in a directory.  Files which are
+ * already there are overwritten.
+ */
+public class DirectoryReportOutput implements ReportOutput {
+
+	private File directory;
+	private OutputStream current = null;
+	
+	// Files from openFile, which we close ourselves if whoever opened
+	// them didn't get the chance
+	private ArrayList<OutputStream> opened = new ArrayList<OutputStream>();
+	
+	/**
+	 * @param directory The top folder of the report, which is created if
+	 * it doesn't exist.
+	 */
+	public DirectoryReportOutput (File directory) {
+		this.directory = directory;
+	}
+	
+	public void addFolder (String path) throws IOException {
+		File dir = path.length() == 0 ? directory : new File(directory, path);
+		if (dir.exists() && dir.isDirectory()) return; // Don't need to do anything
+		if (dir.exists() && ! dir.isDirectory()) throw new IOException ("File exists with dir name "+dir.getName());
+		if (!dir.mkdirs()) throw new IOException("Failed to make dir for "+dir.getName());
+	}
+	
+	public OutputStream startFile (String path) throws IOException {
+		finishFile();
+		current = new BufferedOutputStream(new FileOutputStream(new File(directory, path)), 65536);
+		return current;
+	}
+	
+	public OutputStream openFile (String path) throws IOException {
+		finishFile();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(directory, path)), 65536);
+		opened.add(out);
+		return out;
+	}
+	
+	public void close () throws IOException {
+		finishFile();
+		for (int o=0;o<opened.size();o++) {
+			opened.get(o).close();
+		}
+		opened.clear();
+	}
+	
+	private void finishFile () throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+	
+}
@@ -19,37 +19,74 @@
  */
 package uk.ac.babraham.FastQC.Report;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
 
 import uk.ac.babraham.FastQC.FastQCApplication;
 import uk.ac.babraham.FastQC.Modules.QCModule;
 import uk.ac.babraham.FastQC.Sequence.SequenceFile;
 
+/**
+ * Writes the report for a set of modules into a zip file, a directory, or
+ * both at once.  This is set with fastqc.report_format, which can be zip,
+ * dir or both.  If it isn't set we write both if fastqc.unzip is true and
+ * just the zip file otherwise.
+ * 
+ * Modules add their part of the HTML and text reports to the buffers from
+ * htmlDocument() and dataDocument(), and write their images through
+ * startFile().  The HTML and text reports are opened as files in the
+ * output before the first module, and as each module finishes we move
+ * what it wrote out of the buffers and into those files, so we only hold
+ * one module's section of the HTML at a time.  A zip file can only take
+ * one entry at a time, so there the HTML report goes straight into its
+ * entry and the text report and images are spooled to disk until it's
+ * finished (see ZipReportOutput).  Everything is written as UTF-8.
+ * 
+ * The icons and the header template are the same for every report, so we
+ * only read them once.
+ */
 public class HTMLReportArchive {
 
+	private static final String ENCODING = "UTF-8";
+	
+	// Buffers which grew bigger than this for a large module are shrunk
+	// again once they've been written out
+	private static final int MAX_RETAINED_BUFFER = 1024*1024;
+	
+	private static final int WRITER_BUFFER_SIZE = 65536;
+	
+	// The icons as names and contents, and the lines of the template
+	private static String [] iconNames = null;
+	private static byte [][] icons = null;
+	private static String [] templateLines = null;
+	
 	private StringBuffer html = new StringBuffer();
 	private StringBuffer data = new StringBuffer();
 	private QCModule [] modules;
-	private ZipOutputStream zip;
+	private ReportOutput output;
 	private SequenceFile sequenceFile;
 	private String seqFileName;
-	private byte [] buffer = new byte[1024];
+	private char [] chars = new char[8192];
 	private File file;
 	
+	private Writer htmlOut;
+	private Writer dataOut;
+	
 	public HTMLReportArchive (SequenceFile sequenceFile, QCModule [] modules, File file) throws IOException {
 		this.sequenceFile = sequenceFile;
 		init(sequenceFile.name(),modules, file);
@@ -78,11 +115,62 @@ public class HTMLReportArchive {
 		this.seqFileName = seqFileName;				
 		this.modules = modules;
 		this.file = file;
-		zip = new ZipOutputStream(new FileOutputStream(file));
-		zip.putNextEntry(new ZipEntry(folderName()+"/"));
-		zip.putNextEntry(new ZipEntry(folderName()+"/Icons/"));
-		zip.putNextEntry(new ZipEntry(folderName()+"/Images/"));
+		
+		try {
+			writeArchive();
+		}
+		finally {
+			if (output != null) output.close();
+		}
+	}
+	
+	/**
+	 * Works out where the report should go from fastqc.report_format.
+	 */
+	private ReportOutput createOutput () throws IOException {
+		
+		String format = System.getProperty("fastqc.report_format");
+		if (format == null) {
+			format = "true".equals(System.getProperty("fastqc.unzip")) ? "both" : "zip";
+		}
+		
+		// The extracted report goes in a folder named after the zip file,
+		// alongside it
+		File directory = new File(file.getAbsoluteFile().getParentFile(), folderName());
+		
+		if (format.equals("zip")) {
+			return new ZipReportOutput(file, folderName());
+		}
+		else if (format.equals("dir")) {
+			return new DirectoryReportOutput(directory);
+		}
+		else if (format.equals("both")) {
+			return new MultipleReportOutput(new ReportOutput [] {new ZipReportOutput(file, folderName()), new DirectoryReportOutput(directory)});
+		}
+		else {
+			throw new IOException("Didn't understand report format '"+format+"', it should be zip, dir or both");
+		}
+	}
+	
+	private void writeArchive () throws IOException {
+		output = createOutput();
+		output.addFolder("");
+		output.addFolder("Icons");
+		output.addFolder("Images");
+		
+		// Add in the icon files for pass/fail/warn
+		loadResources();
+		for (int n=0;n<iconNames.length;n++) {
+			output.startFile("Icons/"+iconNames[n]).write(icons[n]);
+		}
+		
+		// The HTML report is opened first since it's the biggest, so it's
+		// the one which goes straight into a zip file
+		htmlOut = new BufferedWriter(new OutputStreamWriter(output.openFile("fastqc_report.html"), ENCODING), WRITER_BUFFER_SIZE);
+		dataOut = new BufferedWriter(new OutputStreamWriter(output.openFile("fastqc_data.txt"), ENCODING), WRITER_BUFFER_SIZE);
+		
 		startDocument();
+		flushSections();
 		for (int m=0;m<modules.length;m++) {
 			html.append("<div class=\"module\"><h2 id=\"M");
 			html.append(m);
@@ -120,51 +208,38 @@ public class HTMLReportArchive {
 			data.append(">>END_MODULE\n");
 			
 			html.append("</div>\n");
+			flushSections();
 		}
 		closeDocument();
+		flushSections();
 		
-		zip.putNextEntry(new ZipEntry(folderName()+"/fastqc_report.html"));
-		zip.write(html.toString().getBytes());
-		zip.closeEntry();
-		zip.putNextEntry(new ZipEntry(folderName()+"/fastqc_data.txt"));
-		zip.write(data.toString().getBytes());
-		zip.closeEntry();
-		zip.close();
-		
-		if (System.getProperty("fastqc.unzip").equals("true")) {
-			unzipZipFile(file);
-		}
+		htmlOut.close();
+		dataOut.close();
+		output.close();
 	}
-	private void unzipZipFile (File file) throws IOException {
-		ZipFile zipFile = new ZipFile(file);
-		Enumeration<? extends ZipEntry> entries = zipFile.entries();
-		int size;
-		byte [] buffer = new byte[1024];
-		
-		while (entries.hasMoreElements()) {
-			ZipEntry entry = entries.nextElement();
-			
-//			System.out.println("Going to extract '"+entry.getName()+"'");
-			
-			if (entry.isDirectory()) {
-				File dir = new File(file.getParent()+"/"+entry.getName());
-				if (dir.exists() && dir.isDirectory()) continue; // Don't need to do anything
-				if (dir.exists() && ! dir.isDirectory()) throw new IOException ("File exists with dir name "+dir.getName());
-				if (!dir.mkdir()) throw new IOException("Failed to make dir for "+dir.getName());
-				continue;
-			}
-
-			BufferedInputStream bis = new BufferedInputStream(zipFile.getInputStream(entry));
-			BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file.getParent()+"/"+entry.getName()),buffer.length);
-			while ((size = bis.read(buffer,0,buffer.length)) != -1) {
-				bos.write(buffer,0,size);
-			}
-			bos.flush();
-			bos.close();
-			bis.close();
+	
+	/**
+	 * Moves everything added to the HTML and text buffers out to their
+	 * files in the report.
+	 */
+	private void flushSections () throws IOException {
+		flush(html, htmlOut);
+		flush(data, dataOut);
+	}
+	
+	private void flush (StringBuffer sb, Writer out) throws IOException {
+		int length = sb.length();
+		for (int start=0;start<length;start+=chars.length) {
+			int end = Math.min(length, start+chars.length);
+			sb.getChars(start, end, chars, 0);
+			out.write(chars, 0, end-start);
+		}
+		sb.setLength(0);
+		if (sb.capacity() > MAX_RETAINED_BUFFER) {
+			sb.trimToSize();
 		}
 	}
-
+	
 	public StringBuffer htmlDocument () {
 		return html;
 	}
@@ -177,8 +252,15 @@ public class HTMLReportArchive {
 		return file.getName().replaceAll(".zip$", "");
 	}
 	
-	public ZipOutputStream zipFile () {
-		return zip;
+	/**
+	 * Starts a new file, such as an image, in the report.  The stream is
+	 * only valid until the next file is started and shouldn't be closed.
+	 * 
+	 * @param path The path of the file within the report, eg
+	 * Images/per_base_quality.png
+	 */
+	public OutputStream startFile (String path) throws IOException {
+		return output.startFile(path);
 	}
 	
 	private void startDocument () throws IOException {
@@ -188,21 +270,6 @@ public class HTMLReportArchive {
 		data.append(FastQCApplication.VERSION);
 		data.append("\n");
 		
-		// Add in the icon files for pass/fail/warn
-		File templatesDir = new File(URLDecoder.decode(ClassLoader.getSystemResource("Templates/Icons").getFile(),"UTF-8"));
-		String [] names = templatesDir.list();
-		for (int n=0;n<names.length;n++) {
-			if (names[n].toLowerCase().endsWith(".png") || names[n].toLowerCase().endsWith(".jpg") || names[n].toLowerCase().endsWith(".jpeg")) {
-				zip.putNextEntry(new ZipEntry(folderName()+"/Icons/"+names[n]));
-				FileInputStream fileIn = new FileInputStream(new File(URLDecoder.decode(ClassLoader.getSystemResource("Templates/Icons/"+names[n]).getFile(),"UTF-8")));
-				int len;
-				while ((len = fileIn.read(buffer)) > 0) { 
-					zip.write(buffer, 0, len); 
-				} 
-				fileIn.close();
-			}
-		}		
-		
 
 		SimpleDateFormat df = new SimpleDateFormat("EEE d MMM yyyy");
 		addTemplate(seqFileName,df.format(new Date()));
@@ -241,8 +308,7 @@ public class HTMLReportArchive {
 		}
 		html.append("</ul>\n</div>\n<div class=\"main\">\n");
 
-		zip.putNextEntry(new ZipEntry(folderName()+"/summary.txt"));
-		zip.write(summaryText.toString().getBytes());
+		output.startFile("summary.txt").write(summaryText.toString().getBytes(ENCODING));
 
 	}
 	
@@ -257,22 +323,75 @@ public class HTMLReportArchive {
 	
 	private void addTemplate (String filename, String date) throws IOException {
 		
-		BufferedReader br = new BufferedReader(new FileReader(new File(URLDecoder.decode(ClassLoader.getSystemResource("Templates/header_template.html").getFile(),"UTF-8"))));
-		String line;
-		while ((line = br.readLine())!=null) {
-			
-			line = line.replaceAll("@@FILENAME@@", filename);
-			line = line.replaceAll("@@DATE@@", date);
+		for (int l=0;l<templateLines.length;l++) {
+			String line = templateLines[l];
+			line = line.replace("@@FILENAME@@", filename);
+			line = line.replace("@@DATE@@", date);
 			
 			html.append(line);
 			html.append("\n");
 		}
-		
-		
-		br.close();
 	
 	}
 	
+	/**
+	 * Reads the icons and the header template the first time we need them.
+	 */
+	private static synchronized void loadResources () throws IOException {
+		
+		if (templateLines != null) return;
+		
+		// Otherwise every image is written to a temporary file on its way
+		// to the report
+		ImageIO.setUseCache(false);
+		
+		File templatesDir = new File(URLDecoder.decode(ClassLoader.getSystemResource("Templates/Icons").getFile(),"UTF-8"));
+		String [] names = templatesDir.list();
+		Arrays.sort(names);
+		
+		ArrayList<String> keptNames = new ArrayList<String>();
+		ArrayList<byte []> keptIcons = new ArrayList<byte[]>();
+		for (int n=0;n<names.length;n++) {
+			if (names[n].toLowerCase().endsWith(".png") || names[n].toLowerCase().endsWith(".jpg") || names[n].toLowerCase().endsWith(".jpeg")) {
+				keptNames.add(names[n]);
+				keptIcons.add(readResource("Templates/Icons/"+names[n]));
+			}
+		}
+		
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(ClassLoader.getSystemResourceAsStream("Templates/header_template.html"), ENCODING));
+		try {
+			String line;
+			while ((line = br.readLine())!=null) {
+				lines.add(line);
+			}
+		}
+		finally {
+			br.close();
+		}
+		
+		iconNames = keptNames.toArray(new String[0]);
+		icons = keptIcons.toArray(new byte[0][]);
+		templateLines = lines.toArray(new String[0]);
+	}
 	
+	private static byte [] readResource (String name) throws IOException {
+		InputStream in = ClassLoader.getSystemResourceAsStream(name);
+		if (in == null) {
+			throw new IOException("Couldn't find resource "+name);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte [] chunk = new byte[8192];
+			int len;
+			while ((len = in.read(chunk)) > 0) {
+				out.write(chunk, 0, len);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
 	
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Report;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the same report to several outputs at once, so we can make both
+ * the zip file and the extracted folder in a single pass.
+ */
+public class MultipleReportOutput implements ReportOutput {
+
+	private ReportOutput [] outputs;
+	private OutputStream [] streams;
+	
+	private OutputStream combinedStream;
+	
+	public MultipleReportOutput (ReportOutput [] outputs) {
+		this.outputs = outputs;
+		streams = new OutputStream[outputs.length];
+		combinedStream = new CombinedStream(streams);
+	}
+	
+	public void addFolder (String path) throws IOException {
+		for (int o=0;o<outputs.length;o++) {
+			outputs[o].addFolder(path);
+		}
+	}
+	
+	public OutputStream startFile (String path) throws IOException {
+		for (int o=0;o<outputs.length;o++) {
+			streams[o] = outputs[o].startFile(path);
+		}
+		return combinedStream;
+	}
+	
+	public OutputStream openFile (String path) throws IOException {
+		OutputStream [] openedStreams = new OutputStream[outputs.length];
+		for (int o=0;o<outputs.length;o++) {
+			openedStreams[o] = outputs[o].openFile(path);
+		}
+		return new CombinedStream(openedStreams);
+	}
+	
+	/**
+	 * Closes every output, even if closing an earlier one fails.
+	 */
+	public void close () throws IOException {
+		IOException failure = null;
+		for (int o=0;o<outputs.length;o++) {
+			try {
+				outputs[o].close();
+			}
+			catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+	
+	/**
+	 * Copies everything written to it to each of a set of streams.
+	 */
+	private static class CombinedStream extends OutputStream {
+		
+		private OutputStream [] streams;
+		
+		public CombinedStream (OutputStream [] streams) {
+			this.streams = streams;
+		}
+		
+		public void write (int b) throws IOException {
+			for (int s=0;s<streams.length;s++) {
+				streams[s].write(b);
+			}
+		}
+		
+		public void write (byte [] b, int off, int len) throws IOException {
+			for (int s=0;s<streams.length;s++) {
+				streams[s].write(b, off, len);
+			}
+		}
+		
+		public void close () throws IOException {
+			for (int s=0;s<streams.length;s++) {
+				streams[s].close();
+			}
+		}
+	}
+	
+}
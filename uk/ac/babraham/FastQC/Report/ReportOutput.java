@@ -0,0 +1,69 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Report;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Somewhere the files making up a report can be written to, such as a zip
+ * file or a directory.  Paths are relative to the top folder of the report
+ * and use '/' as the separator.
+ * 
+ * Most files, such as images, are written one at a time with startFile.
+ * The stream for one of these stays valid until the next file is started
+ * or opened, or the output is closed, and shouldn't be closed by whoever
+ * is writing to it.
+ * 
+ * Files which are built up bit by bit while others are written, such as
+ * the HTML and text reports, are opened with openFile instead.  These
+ * stay open until their stream is closed.
+ */
+public interface ReportOutput {
+
+	/**
+	 * Adds a folder to the report.
+	 * 
+	 * @param path The folder, or an empty string for the top folder itself
+	 */
+	public void addFolder (String path) throws IOException;
+	
+	/**
+	 * Starts a new file in the report, finishing off the previous one.
+	 * 
+	 * @return The stream to write the contents of the file to
+	 */
+	public OutputStream startFile (String path) throws IOException;
+	
+	/**
+	 * Opens a file which stays open while other files are written.  This
+	 * finishes off the last file from startFile.
+	 * 
+	 * @return The stream to write the contents of the file to, which must be
+	 * closed once the file is complete
+	 */
+	public OutputStream openFile (String path) throws IOException;
+	
+	/**
+	 * Finishes the last file and closes the output.
+	 */
+	public void close () throws IOException;
+	
+}
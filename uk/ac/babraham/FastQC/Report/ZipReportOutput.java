@@ -0,0 +1,383 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Report;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a report into a zip file, with everything inside a single top
+ * folder.
+ * 
+ * A zip file can only take one entry at a time.  The first file to be
+ * opened with openFile is written straight into its entry, and any other
+ * files written while it's open are spooled to a temporary file next to
+ * the zip and copied in once it's closed.  Several files can be spooled
+ * at once, so the spool keeps track of which parts of it belong to which.
+ * 
+ * Images are already compressed, so deflating them again just costs time
+ * for no saving.  These are stored as they are instead, which means we
+ * have to know their size and CRC before we add them, so they're always
+ * collected, either in the spool or, if nothing is being streamed, in
+ * memory, and added once they're complete.
+ */
+public class ZipReportOutput implements ReportOutput {
+
+	private static final int INITIAL_FILE_SIZE = 64*1024;
+	
+	private ZipOutputStream zip;
+	private File file;
+	private String folderName;
+	
+	// Set while an opened file is being written straight into the zip
+	private boolean streaming = false;
+	
+	// The last file from startFile, if it's being collected rather than
+	// written straight into the zip
+	private CollectedFile started = null;
+	private boolean startedInZip = false;
+	
+	// Files which were finished while an opened file was being streamed,
+	// in the order they were finished
+	private ArrayList<CollectedFile> waiting = new ArrayList<CollectedFile>();
+	
+	// Made the first time we need it, and removed when we're closed
+	private Spool spool = null;
+	
+	private OutputStream entryStream;
+	
+	public ZipReportOutput (File file, String folderName) throws IOException {
+		this.file = file;
+		this.folderName = folderName;
+		zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		
+		// Writes to the current entry go through this, so that closing the
+		// stream we hand out doesn't close the whole zip file
+		entryStream = new OutputStream() {
+			public void write (int b) throws IOException {
+				zip.write(b);
+			}
+			public void write (byte [] b, int off, int len) throws IOException {
+				zip.write(b, off, len);
+			}
+		};
+	}
+	
+	public void addFolder (String path) throws IOException {
+		finishStartedFile();
+		String name = path.length() == 0 ? folderName+"/" : folderName+"/"+path+"/";
+		if (streaming) {
+			waiting.add(new CollectedFile(name, false, null));
+		}
+		else {
+			zip.putNextEntry(new ZipEntry(name));
+			zip.closeEntry();
+		}
+	}
+	
+	public OutputStream startFile (String path) throws IOException {
+		finishStartedFile();
+		
+		if (streaming || isCompressed(path)) {
+			started = collect(path);
+			return started;
+		}
+		
+		zip.putNextEntry(new ZipEntry(folderName+"/"+path));
+		startedInZip = true;
+		return entryStream;
+	}
+	
+	public OutputStream openFile (String path) throws IOException {
+		finishStartedFile();
+		
+		if (streaming) {
+			final CollectedFile file = collect(path);
+			return new OutputStream() {
+				private boolean closed = false;
+				public void write (int b) throws IOException {
+					file.write(b);
+				}
+				public void write (byte [] b, int off, int len) throws IOException {
+					file.write(b, off, len);
+				}
+				public void close () throws IOException {
+					if (closed) return;
+					closed = true;
+					finished(file);
+				}
+			};
+		}
+		
+		zip.putNextEntry(new ZipEntry(folderName+"/"+path));
+		streaming = true;
+		return new OutputStream() {
+			private boolean closed = false;
+			public void write (int b) throws IOException {
+				zip.write(b);
+			}
+			public void write (byte [] b, int off, int len) throws IOException {
+				zip.write(b, off, len);
+			}
+			public void close () throws IOException {
+				if (closed) return;
+				closed = true;
+				finishStreaming();
+			}
+		};
+	}
+	
+	/**
+	 * Finishes the last file and closes the zip.  An opened file which is
+	 * still being streamed is finished off, but opened files which are
+	 * being collected are only added once they're closed.  It's safe to
+	 * call this more than once.
+	 */
+	public void close () throws IOException {
+		try {
+			finishStartedFile();
+			finishStreaming();
+			zip.close();
+		}
+		finally {
+			if (spool != null) {
+				spool.close();
+				spool = null;
+			}
+		}
+	}
+	
+	/**
+	 * Says whether a file holds data which is compressed already.
+	 */
+	static boolean isCompressed (String path) {
+		String lowerCase = path.toLowerCase();
+		return lowerCase.endsWith(".png") || lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
+	}
+	
+	/**
+	 * Makes a file to collect data in until it can be added to the zip.
+	 * While a file is being streamed into the zip this goes to the spool,
+	 * and otherwise it's kept in memory.
+	 */
+	private CollectedFile collect (String path) throws IOException {
+		if (streaming && spool == null) {
+			spool = new Spool(file.getAbsoluteFile().getParentFile());
+		}
+		return new CollectedFile(folderName+"/"+path, isCompressed(path), streaming ? spool : null);
+	}
+	
+	private void finishStartedFile () throws IOException {
+		if (startedInZip) {
+			zip.closeEntry();
+			startedInZip = false;
+		}
+		if (started != null) {
+			finished(started);
+			started = null;
+		}
+	}
+	
+	private void finishStreaming () throws IOException {
+		if (!streaming) return;
+		zip.closeEntry();
+		streaming = false;
+		for (int w=0;w<waiting.size();w++) {
+			add(waiting.get(w));
+		}
+		waiting.clear();
+	}
+	
+	/**
+	 * Adds a collected file to the zip, or if an opened file is being
+	 * streamed, queues it up until that's done.
+	 */
+	private void finished (CollectedFile file) throws IOException {
+		if (streaming) {
+			waiting.add(file);
+		}
+		else {
+			add(file);
+		}
+	}
+	
+	private void add (CollectedFile file) throws IOException {
+		ZipEntry entry = new ZipEntry(file.name);
+		if (file.stored) {
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(file.size);
+			entry.setCompressedSize(file.size);
+			entry.setCrc(file.crc.getValue());
+		}
+		
+		zip.putNextEntry(entry);
+		file.writeTo(zip);
+		zip.closeEntry();
+	}
+	
+	/**
+	 * A file, or a folder if the name ends with a '/', which we're holding
+	 * until it can go into the zip.  The data is either kept in memory or
+	 * put in the spool.
+	 */
+	private static class CollectedFile extends OutputStream {
+		private String name;
+		private boolean stored;
+		private CRC32 crc = new CRC32();
+		private long size = 0;
+		
+		private Spool spool;
+		private ByteArrayOutputStream memory = null;
+		
+		// Where our data is in the spool, as pairs of offset and length
+		private ArrayList<long []> chunks = new ArrayList<long[]>();
+		
+		public CollectedFile (String name, boolean stored, Spool spool) {
+			this.name = name;
+			this.stored = stored;
+			this.spool = spool;
+		}
+		
+		public void write (int b) throws IOException {
+			write(new byte [] {(byte)b}, 0, 1);
+		}
+		
+		public void write (byte [] b, int off, int len) throws IOException {
+			if (stored) crc.update(b, off, len);
+			size += len;
+			if (spool != null) {
+				spool.write(this, b, off, len);
+			}
+			else {
+				if (memory == null) memory = new ByteArrayOutputStream(INITIAL_FILE_SIZE);
+				memory.write(b, off, len);
+			}
+		}
+		
+		private void addChunk (long offset, int length) {
+			if (!chunks.isEmpty()) {
+				long [] last = chunks.get(chunks.size()-1);
+				if (last[0]+last[1] == offset) {
+					last[1] += length;
+					return;
+				}
+			}
+			chunks.add(new long [] {offset, length});
+		}
+		
+		/**
+		 * Writes out everything we've collected, and lets go of it.
+		 */
+		private void writeTo (OutputStream out) throws IOException {
+			if (memory != null) {
+				memory.writeTo(out);
+				memory = null;
+			}
+			if (spool != null) {
+				spool.copy(this, out);
+				chunks.clear();
+			}
+		}
+	}
+	
+	/**
+	 * A temporary file holding the data for several collected files, which
+	 * can be written to in any order.  Small writes are gathered up before
+	 * they go to the file.
+	 */
+	private static class Spool {
+		private File file;
+		private RandomAccessFile data;
+		private long length = 0;
+		
+		private byte [] buffer = new byte[65536];
+		private int buffered = 0;
+		private CollectedFile bufferOwner = null;
+		
+		public Spool (File directory) throws IOException {
+			file = File.createTempFile("fastqc_report", ".tmp", directory);
+			data = new RandomAccessFile(file, "rw");
+		}
+		
+		public void write (CollectedFile owner, byte [] b, int off, int len) throws IOException {
+			if (owner != bufferOwner || len > buffer.length-buffered) {
+				flush();
+				bufferOwner = owner;
+			}
+			if (len >= buffer.length) {
+				writeChunk(owner, b, off, len);
+				return;
+			}
+			System.arraycopy(b, off, buffer, buffered, len);
+			buffered += len;
+		}
+		
+		private void flush () throws IOException {
+			if (buffered > 0) {
+				writeChunk(bufferOwner, buffer, 0, buffered);
+				buffered = 0;
+			}
+		}
+		
+		private void writeChunk (CollectedFile owner, byte [] b, int off, int len) throws IOException {
+			data.seek(length);
+			data.write(b, off, len);
+			owner.addChunk(length, len);
+			length += len;
+		}
+		
+		/**
+		 * Copies all of the data for a file out of the spool.
+		 */
+		public void copy (CollectedFile owner, OutputStream out) throws IOException {
+			flush();
+			for (int c=0;c<owner.chunks.size();c++) {
+				long [] chunk = owner.chunks.get(c);
+				data.seek(chunk[0]);
+				long remaining = chunk[1];
+				while (remaining > 0) {
+					int read = data.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+					if (read < 0) throw new IOException("The report spool "+file.getPath()+" was shorter than expected");
+					out.write(buffer, 0, read);
+					remaining -= read;
+				}
+			}
+		}
+		
+		public void close () throws IOException {
+			try {
+				data.close();
+			}
+			finally {
+				file.delete();
+			}
+		}
+	}
+	
+}
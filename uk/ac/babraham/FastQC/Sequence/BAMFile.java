@@ -22,12 +22,30 @@ package uk.ac.babraham.FastQC.Sequence;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.Iterator;
 
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFormatException;
 import net.sf.samtools.SAMRecord;
 
+import uk.ac.babraham.FastQC.Utilities.BGZFChunkInputStream;
+import uk.ac.babraham.FastQC.Utilities.ByteBufferInputStream;
+import uk.ac.babraham.FastQC.Utilities.CountingInputStream;
+import uk.ac.babraham.FastQC.Utilities.ParallelGZIPInputStream;
+
+/**
+ * Reads the sequences from a SAM or BAM file.
+ * 
+ * The reads used can be limited to a list of regions of
+ * the reference (see BAMRegion) given in fastqc.bam_regions.  If a sorted
+ * BAM file has an index alongside it we use it to read only the parts of
+ * the file which hold those regions, otherwise we read the whole file and
+ * skip anything outside them.  Reads with any of the flags set in
+ * fastqc.bam_exclude_flags (eg 0x900 for secondary and supplementary
+ * alignments, or 0x400 for duplicates) are skipped as well.
+ */
 public class BAMFile implements SequenceFile {
 
 	private File file;
@@ -35,10 +53,25 @@ public class BAMFile implements SequenceFile {
 	private long fileSize = 0;
 	private long recordSize = 0;
 	
-	// We keep the file stream around just so we can see how far through
-	// the file we've got.  We don't read from this directly, but it's the
-	// only way to access the file pointer.
-	private FileInputStream fis;
+	// We see how far through the file we've got by counting the bytes the
+	// reader takes from it, or for BAM files by asking the decompressor
+	// which part of the file the data it's given us came from.
+	private CountingInputStream counter;
+	private ParallelGZIPInputStream gzip = null;
+	private BGZFChunkInputStream chunks = null;
+	
+	// When we're only reading part of a SAM file this is the body of that
+	// part, which we use to see how far we've got.
+	private ByteBufferInputStream range = null;
+
+	// BAM files are decoded directly by our own parser, with the sequences
+	// coming from a pool.  SAM files go through the SAM library.
+	private BAMRecordParser parser = null;
+	private SequencePool pool = new SequencePool();
+	
+	// The filters used for SAM files.  BAM files are filtered by the parser.
+	private int excludedFlags = 0;
+	private BAMRegion [] regions = null;
 
 	private SAMFileReader br;
 	private String name;
@@ -52,29 +85,194 @@ public class BAMFile implements SequenceFile {
 		name = file.getName();
 		this.onlyMapped = onlyMapped;
 
+		FileInputStream fis = new FileInputStream(file);
+		
+		excludedFlags = getExcludedFlags();
+		regions = getRegions();
+		
+		if (isCompressed(fis)) {
+			File indexFile = regions == null ? null : BAMIndex.findIndex(file);
+			
+			if (indexFile != null) {
+				// We read the header from the start of the file, then jump
+				// to just the parts the index says hold our regions
+				chunks = new BGZFChunkInputStream(fis);
+				parser = new BAMRecordParser(chunks);
+				setParserFilters();
+				chunks.setChunks(new BAMIndex(indexFile).getChunks(regions, chunks.virtualPosition()));
+				fileSize = chunks.length();
+			}
+			else {
+				if (regions != null) {
+					System.err.println("No index found for "+name+" so all of it will be read to find the regions");
+				}
+				gzip = ParallelGZIPInputStream.open(fis);
+				parser = new BAMRecordParser(gzip);
+				setParserFilters();
+			}
+			
+			readNext();
+			return;
+		}
+
 		SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
 
-		fis = new FileInputStream(file);
+		counter = new CountingInputStream(fis);
 		
-		br = new SAMFileReader(fis);
+		br = new SAMFileReader(counter);
+		checkRegions();
 		
 		it = br.iterator();
 		readNext();
 	}
 	
+	private void setParserFilters () throws SequenceFormatException {
+		if (onlyMapped) {
+			parser.setExcludedFlags(excludedFlags | BAMRecordParser.FLAG_UNMAPPED);
+		}
+		else {
+			parser.setExcludedFlags(excludedFlags);
+		}
+		
+		if (regions != null) {
+			parser.setRegions(regions);
+		}
+	}
+	
+	/**
+	 * @return The regions in fastqc.bam_regions, or null if we're using the
+	 * whole file.
+	 */
+	private static BAMRegion [] getRegions () throws SequenceFormatException {
+		String list = System.getProperty("fastqc.bam_regions");
+		if (list == null) return null;
+		return BAMRegion.parse(list);
+	}
+	
+	private static int getExcludedFlags () {
+		String flags = System.getProperty("fastqc.bam_exclude_flags");
+		if (flags == null) return 0;
+		try {
+			return Integer.decode(flags.trim());
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("Excluded BAM flags '"+flags+"' weren't a number");
+			return 0;
+		}
+	}
+	
+	/**
+	 * Makes sure every region is on a reference in a SAM file's header.
+	 */
+	private void checkRegions () throws SequenceFormatException {
+		if (regions == null) return;
+		for (int r=0;r<regions.length;r++) {
+			if (regions[r].isUnplaced()) continue;
+			if (br.getFileHeader().getSequenceIndex(regions[r].referenceName()) < 0) {
+				throw new SequenceFormatException("Region reference '"+regions[r].referenceName()+"' wasn't in the SAM header");
+			}
+		}
+	}
+	
+	private boolean inRegions (SAMRecord record) {
+		int start = record.getAlignmentStart()-1;
+		int end = Math.max(record.getAlignmentEnd(), record.getAlignmentStart());
+		for (int r=0;r<regions.length;r++) {
+			if (!regions[r].referenceName().equals(record.getReferenceName())) continue;
+			if (regions[r].isUnplaced() || regions[r].overlaps(start, end)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks for the gzip magic number at the start of the file, which
+	 * means this is BAM rather than SAM.  The stream is left at the start.
+	 */
+	private static boolean isCompressed (FileInputStream fis) throws IOException {
+		byte [] magic = new byte[2];
+		int read = 0;
+		while (read < magic.length) {
+			int count = fis.read(magic, read, magic.length-read);
+			if (count < 0) break;
+			read += count;
+		}
+		fis.getChannel().position(0);
+		return read == magic.length && magic[0] == (byte)0x1f && magic[1] == (byte)0x8b;
+	}
+	
+	/**
+	 * Reads the records from one part of an uncompressed SAM file.
+	 * 
+	 * @param header The header of the file, so the reader can make sense of
+	 * the records
+	 * @param range A set of whole records from the body of the file
+	 */
+	BAMFile (File file, boolean onlyMapped, InputStream header, ByteBufferInputStream range) throws SequenceFormatException {
+		this.file = file;
+		this.range = range;
+		fileSize = range.length();
+		name = file.getName();
+		this.onlyMapped = onlyMapped;
+		
+		excludedFlags = getExcludedFlags();
+		regions = getRegions();
+		
+		SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		
+		br = new SAMFileReader(new SequenceInputStream(header, range));
+		checkRegions();
+		
+		it = br.iterator();
+		readNext();
+	}
+	
+	boolean onlyMapped () {
+		return onlyMapped;
+	}
+	
 	public String name () {
 		return name;
 	}
 		
 	public int getPercentComplete() {
-		try {
-			int percent = (int) (((double)fis.getChannel().position()/ fileSize)*100);
-			return percent;
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
+		if (!hasNext()) return 100;
+		if (fileSize == 0) return 0;
+		return (int)((100d*bytesRead())/fileSize);
+	}
+	
+	private long bytesRead () {
+		if (range != null) return range.position();
+		if (chunks != null) return chunks.position();
+		if (gzip != null) return gzip.compressedPosition();
+		return counter.position();
+	}
+
+	/**
+	 * @return How much of the raw file (or range) we've read, which gives a
+	 * finer measure of progress than getPercentComplete.
+	 */
+	double fractionRead () {
+		if (!hasNext()) return 1;
+		if (fileSize == 0) return 0;
+		return bytesRead()/(double)fileSize;
+	}
+
+	/**
+	 * Stops reading early, for when we find we don't need the data after all.
+	 */
+	public void close () {
+		nextSequence = null;
+		if (parser != null) {
+			try {
+				parser.close();
+			}
+			catch (IOException e) {
+				// We're finished with the file anyway
+			}
+		}
+		else {
+			br.close();
 		}
-		return 0;
 	}
 
 	public boolean isColorspace () {
@@ -93,6 +291,11 @@ public class BAMFile implements SequenceFile {
 	
 	private void readNext() throws SequenceFormatException {
 		
+		if (parser != null) {
+			readNextRecord();
+			return;
+		}
+		
 		SAMRecord record;
 		
 		while (true) {
@@ -113,6 +316,12 @@ public class BAMFile implements SequenceFile {
 			if (onlyMapped && record.getReadUnmappedFlag()) {
 				continue;
 			}
+			else if ((record.getFlags() & excludedFlags) != 0) {
+				continue;
+			}
+			else if (regions != null && !inRegions(record)) {
+				continue;
+			}
 			else {
 				break;
 			}
@@ -142,6 +351,27 @@ public class BAMFile implements SequenceFile {
 	}
 
 	
+	/**
+	 * Reads the next sequence from a BAM file, straight from the raw record
+	 * into a pooled sequence.
+	 */
+	private void readNextRecord () throws SequenceFormatException {
+		// Unmapped and otherwise unwanted reads are skipped by the parser
+		try {
+			if (!parser.nextRecord()) {
+				nextSequence = null;
+				parser.close();
+				return;
+			}
+		}
+		catch (IOException e) {
+			throw new SequenceFormatException(e.getMessage());
+		}
+		
+		nextSequence = pool.get();
+		nextSequence.setRecord(this, parser.buffer(), parser.idOffset(), parser.idLength(), parser.sequenceOffset(), parser.sequenceLength(), parser.qualityOffset(), parser.qualityLength());
+	}
+	
 	private String reverseComplement (String sequence) {
 		
 		char [] letters = reverse(sequence).toUpperCase().toCharArray();
@@ -0,0 +1,252 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads a BAM index (.bai) file so we can find which parts of a sorted
+ * BAM file hold the reads in a region.
+ * 
+ * For each reference the index has a set of bins, each covering a fixed
+ * part of the reference, which list the chunks of the file holding the
+ * reads whose alignments fit in that bin.  A linear index also gives, for
+ * every 16kb window, the first position in the file holding a read which
+ * overlaps that window, which lets us skip chunks which end before it.
+ */
+class BAMIndex {
+
+	// This bin holds statistics rather than reads
+	private static final int PSEUDO_BIN = 37450;
+	
+	private static final int LINEAR_SHIFT = 14;
+	
+	// The chunks for each bin of each reference, as start and end virtual
+	// offsets one after another
+	private List<HashMap<Integer, long []>> bins;
+	private long [][] linearIndex;
+	
+	// The furthest virtual offset of any placed read
+	private long placedEnd = 0;
+	
+	/**
+	 * Looks for an index alongside a BAM file, either as file.bam.bai or
+	 * file.bai.
+	 * 
+	 * @return The index file, or null if there wasn't one
+	 */
+	public static File findIndex (File bamFile) {
+		File index = new File(bamFile.getPath()+".bai");
+		if (index.exists()) return index;
+		
+		String name = bamFile.getName();
+		if (name.toLowerCase().endsWith(".bam")) {
+			index = new File(bamFile.getParentFile(), name.substring(0, name.length()-4)+".bai");
+			if (index.exists()) return index;
+		}
+		
+		return null;
+	}
+	
+	public BAMIndex (File file) throws IOException, SequenceFormatException {
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		
+		try {
+			byte [] magic = new byte[4];
+			in.readFully(magic);
+			if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+				throw new SequenceFormatException("Index file "+file.getName()+" didn't start with the BAI magic number");
+			}
+			
+			int referenceCount = readCount(in);
+			bins = new ArrayList<HashMap<Integer, long []>>(referenceCount);
+			linearIndex = new long[referenceCount][];
+			
+			for (int r=0;r<referenceCount;r++) {
+				int binCount = readCount(in);
+				HashMap<Integer, long []> referenceBins = new HashMap<Integer, long[]>(binCount*2);
+				bins.add(referenceBins);
+				
+				for (int b=0;b<binCount;b++) {
+					int bin = readInt(in);
+					int chunkCount = readCount(in);
+					long [] chunks = new long[chunkCount*2];
+					for (int c=0;c<chunks.length;c++) {
+						chunks[c] = readLong(in);
+					}
+					
+					if (bin == PSEUDO_BIN) continue;
+					
+					referenceBins.put(bin, chunks);
+					for (int c=1;c<chunks.length;c+=2) {
+						if (chunks[c] > placedEnd) placedEnd = chunks[c];
+					}
+				}
+				
+				int windowCount = readCount(in);
+				linearIndex[r] = new long[windowCount];
+				for (int w=0;w<windowCount;w++) {
+					linearIndex[r][w] = readLong(in);
+				}
+			}
+		}
+		catch (EOFException eof) {
+			throw new SequenceFormatException("Index file "+file.getName()+" was cut short");
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Works out which chunks of the BAM file we need to read to see every
+	 * read in a set of regions.  The chunks are sorted and any which overlap
+	 * are merged, so no part of the file is read twice, but the chunks can
+	 * still hold reads outside the regions which have to be filtered out.
+	 * 
+	 * @param regions Regions whose reference indices have already been set
+	 * @param recordsStart The virtual offset of the first record, which is
+	 * where we start looking for unplaced reads if there are no placed ones.
+	 * @return Start and end virtual offsets for each chunk
+	 */
+	public long [] getChunks (BAMRegion [] regions, long recordsStart) {
+		
+		ArrayList<long []> chunks = new ArrayList<long[]>();
+		
+		for (int r=0;r<regions.length;r++) {
+			
+			// Unplaced reads all come at the end of the file, after
+			// everything which is in a bin.
+			if (regions[r].isUnplaced()) {
+				chunks.add(new long [] {Math.max(placedEnd, recordsStart), Long.MAX_VALUE});
+				continue;
+			}
+			
+			int reference = regions[r].referenceIndex();
+			if (reference < 0 || reference >= bins.size()) continue;
+			
+			int start = regions[r].start();
+			int end = regions[r].end();
+			
+			// Anything ending before the first read overlapping the start of
+			// the region can't be of use to us
+			long minimumOffset = 0;
+			long [] windows = linearIndex[reference];
+			if (windows.length > 0) {
+				minimumOffset = windows[Math.min(start >> LINEAR_SHIFT, windows.length-1)];
+			}
+			
+			int [] regionBins = regionToBins(start, end);
+			for (int b=0;b<regionBins.length;b++) {
+				long [] binChunks = bins.get(reference).get(regionBins[b]);
+				if (binChunks == null) continue;
+				for (int c=0;c<binChunks.length;c+=2) {
+					if (binChunks[c+1] <= minimumOffset) continue;
+					chunks.add(new long [] {binChunks[c], binChunks[c+1]});
+				}
+			}
+		}
+		
+		return merge(chunks);
+	}
+	
+	private static long [] merge (ArrayList<long []> chunks) {
+		
+		Collections.sort(chunks, new Comparator<long[]>() {
+			public int compare(long [] o1, long [] o2) {
+				if (o1[0] < o2[0]) return -1;
+				if (o1[0] > o2[0]) return 1;
+				return 0;
+			}
+		});
+		
+		long [] merged = new long[chunks.size()*2];
+		int count = 0;
+		
+		for (long [] chunk : chunks) {
+			// We also join chunks which meet in the same block, since we'd
+			// only have to inflate that block again
+			if (count > 0 && (chunk[0] >>> 16) <= (merged[count-1] >>> 16)) {
+				merged[count-1] = Math.max(merged[count-1], chunk[1]);
+				continue;
+			}
+			merged[count++] = chunk[0];
+			merged[count++] = chunk[1];
+		}
+		
+		return Arrays.copyOf(merged, count);
+	}
+	
+	/**
+	 * Lists the bins which could hold alignments overlapping a region, as
+	 * described in the SAM specification.
+	 * 
+	 * @param start The zero based start of the region
+	 * @param end The zero based, exclusive, end of the region
+	 */
+	private static int [] regionToBins (int start, int end) {
+		
+		// Bins only cover the first 2^29 bases of a reference
+		start = Math.min(start, (1 << 29)-1);
+		end = Math.min(end, 1 << 29)-1;
+		if (end < start) end = start;
+		
+		int [] list = new int[37450];
+		int count = 0;
+		list[count++] = 0;
+		for (int k=1+(start >> 26);k<=1+(end >> 26);k++) list[count++] = k;
+		for (int k=9+(start >> 23);k<=9+(end >> 23);k++) list[count++] = k;
+		for (int k=73+(start >> 20);k<=73+(end >> 20);k++) list[count++] = k;
+		for (int k=585+(start >> 17);k<=585+(end >> 17);k++) list[count++] = k;
+		for (int k=4681+(start >> 14);k<=4681+(end >> 14);k++) list[count++] = k;
+		
+		return Arrays.copyOf(list, count);
+	}
+	
+	private static int readCount (DataInputStream in) throws IOException, SequenceFormatException {
+		int count = readInt(in);
+		if (count < 0) {
+			throw new SequenceFormatException("BAM index contained a negative count");
+		}
+		return count;
+	}
+	
+	// The index is little endian, unlike DataInputStream
+	private static int readInt (DataInputStream in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+	
+	private static long readLong (DataInputStream in) throws IOException {
+		return Long.reverseBytes(in.readLong());
+	}
+	
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A byte level parser for uncompressed BAM data.  Rather than building a
+ * SAMRecord, with Strings for the name, bases and qualities, we read each
+ * record into a reusable buffer and decode the parts we need into a second
+ * one, with the bases and qualities already turned into the characters a
+ * FastQ file would have used.
+ *
+ * As with BAMFile the bases and qualities of reads on the reverse strand
+ * are turned back round to match the original read, and a read with no
+ * stored bases or qualities gets '*', which is what SAMRecord gives us.
+ *
+ * Records can be skipped on their flags, or on where they're aligned,
+ * before anything in them is decoded.
+ * 
+ * The slices returned for a record are only valid until the next call to
+ * nextRecord().
+ */
+public class BAMRecordParser {
+
+	static final int FLAG_UNMAPPED = 0x4;
+	private static final int FLAG_REVERSE = 0x10;
+	
+	// Position of each field within a record, after its length
+	private static final int REFERENCE = 0;
+	private static final int POSITION = 4;
+	private static final int READ_NAME_LENGTH = 8;
+	private static final int CIGAR_OPERATIONS = 12;
+	private static final int FLAG = 14;
+	private static final int SEQUENCE_LENGTH = 16;
+	private static final int READ_NAME = 32;
+	
+	private static final byte [] BASES = "=ACMGRSVTWYHKDBN".getBytes();
+	
+	// Each packed byte holds two bases, so we decode both at once
+	private static final byte [] HIGH_BASES = new byte[256];
+	private static final byte [] LOW_BASES = new byte[256];
+	
+	private static final byte [] COMPLEMENT = new byte[256];
+	
+	// The CIGAR operations (M, D, N, = and X) which use up reference bases
+	private static final boolean [] CONSUMES_REFERENCE = new boolean [] {true, false, true, true, false, false, false, true, true, false, false, false, false, false, false, false};
+	
+	static {
+		for (int i=0;i<256;i++) {
+			HIGH_BASES[i] = BASES[i >> 4];
+			LOW_BASES[i] = BASES[i & 0xF];
+			COMPLEMENT[i] = (byte)i;
+		}
+		COMPLEMENT['G'] = 'C';
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['T'] = 'A';
+		COMPLEMENT['C'] = 'G';
+	}
+	
+	private InputStream in;
+	
+	// The raw record we're currently looking at
+	private byte [] record = new byte[1024];
+	private int recordLength = 0;
+	
+	// The name, bases and qualities decoded one after another
+	private byte [] decoded = new byte[1024];
+	private int nameLength;
+	private int sequenceLength;
+	private int qualityLength;
+	
+	private int flag;
+	private long recordCount = 0;
+	
+	private String [] referenceNames;
+	
+	// Records with any of these flags set are skipped
+	private int excludedFlags = 0;
+	
+	// If this is set only records overlapping one of these regions are kept
+	private BAMRegion [] regions = null;
+	
+	private byte [] intBuffer = new byte[4];
+	
+	/**
+	 * Reads the header from the start of the data.
+	 * 
+	 * @param in Uncompressed BAM data
+	 */
+	public BAMRecordParser (InputStream in) throws IOException, SequenceFormatException {
+		this.in = in;
+		
+		byte [] magic = new byte[4];
+		if (!readFully(magic, 4)) {
+			throw new SequenceFormatException("BAM file was too short to hold a header");
+		}
+		if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+			throw new SequenceFormatException("BAM file didn't start with the BAM magic number");
+		}
+		
+		// We don't need the header text, so we just skip over it, but we
+		// keep the reference names so we can find regions by name
+		skip(readHeaderInt());
+		int referenceCount = readHeaderInt();
+		referenceNames = new String[referenceCount];
+		for (int r=0;r<referenceCount;r++) {
+			int nameLength = readHeaderInt();
+			byte [] name = new byte[nameLength];
+			if (!readFully(name, nameLength)) {
+				throw new SequenceFormatException("BAM file ended part way through the header");
+			}
+			
+			// The stored name includes a terminating null
+			referenceNames[r] = new String(name, 0, Math.max(nameLength-1, 0), "ISO-8859-1");
+			readHeaderInt();
+		}
+	}
+	
+	/**
+	 * Skips over any record which has one of these flags set.
+	 */
+	public void setExcludedFlags (int excludedFlags) {
+		this.excludedFlags = excludedFlags;
+	}
+	
+	/**
+	 * Only keeps records whose alignments overlap one of these regions.
+	 * 
+	 * @throws SequenceFormatException if a region names a reference which
+	 * isn't in the file.
+	 */
+	void setRegions (BAMRegion [] regions) throws SequenceFormatException {
+		for (int r=0;r<regions.length;r++) {
+			if (regions[r].isUnplaced()) continue;
+			int index = Arrays.asList(referenceNames).indexOf(regions[r].referenceName());
+			if (index < 0) {
+				throw new SequenceFormatException("Region reference '"+regions[r].referenceName()+"' wasn't in the BAM header");
+			}
+			regions[r].setReferenceIndex(index);
+		}
+		this.regions = regions;
+	}
+	
+	/**
+	 * Moves to the next record.
+	 * 
+	 * @return true if a record was read, false if we'd reached the end of
+	 * the data.
+	 * @throws SequenceFormatException if a record was cut short or didn't
+	 * make sense.
+	 */
+	public boolean nextRecord () throws IOException, SequenceFormatException {
+		
+		while (true) {
+			if (!readRecord()) return false;
+			if (isWanted()) break;
+		}
+		
+		decodeRecord();
+		++recordCount;
+		return true;
+	}
+	
+	/**
+	 * Reads the next raw record without decoding any of it.
+	 * 
+	 * @return false if we were at the end of the data
+	 */
+	private boolean readRecord () throws IOException, SequenceFormatException {
+		if (!readFully(intBuffer, 4)) return false;
+		recordLength = readInt(intBuffer, 0);
+		if (recordLength < READ_NAME) {
+			throw new SequenceFormatException("BAM record length "+recordLength+" was too short");
+		}
+		
+		if (record.length < recordLength) {
+			record = new byte[Math.max(recordLength, record.length*2)];
+		}
+		if (!readFully(record, recordLength)) {
+			throw new SequenceFormatException("BAM file ended part way through a record");
+		}
+		
+		flag = readShort(record, FLAG);
+		return true;
+	}
+	
+	/**
+	 * Checks the raw record against the flag and region filters.
+	 */
+	private boolean isWanted () throws SequenceFormatException {
+		if ((flag & excludedFlags) != 0) return false;
+		if (regions == null) return true;
+		
+		int reference = readInt(record, REFERENCE);
+		int position = readInt(record, POSITION);
+		int end = -1;
+		
+		for (int r=0;r<regions.length;r++) {
+			if (regions[r].isUnplaced()) {
+				if (reference < 0) return true;
+				continue;
+			}
+			if (regions[r].referenceIndex() != reference) continue;
+			if (end < 0) end = alignmentEnd(position);
+			if (regions[r].overlaps(position, end)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Works out where the alignment of the current record ends from its
+	 * CIGAR string.  Reads without a CIGAR string, which includes placed
+	 * but unmapped reads, are taken to cover a single base.
+	 */
+	private int alignmentEnd (int position) throws SequenceFormatException {
+		int cigarStart = READ_NAME+(record[READ_NAME_LENGTH] & 0xFF);
+		int operations = readShort(record, CIGAR_OPERATIONS);
+		if (cigarStart+(operations*4) > recordLength) {
+			throw new SequenceFormatException("BAM record CIGAR string didn't fit in the record");
+		}
+		
+		int length = 0;
+		for (int o=0;o<operations;o++) {
+			int operation = readInt(record, cigarStart+(o*4));
+			if (CONSUMES_REFERENCE[operation & 0xF]) {
+				length += operation >>> 4;
+			}
+		}
+		return position+Math.max(length, 1);
+	}
+	
+	/**
+	 * Decodes the name, bases and qualities of the current record.
+	 */
+	private void decodeRecord () throws SequenceFormatException {
+		
+		int nameField = record[READ_NAME_LENGTH] & 0xFF;
+		int cigarLength = readShort(record, CIGAR_OPERATIONS)*4;
+		int storedLength = readInt(record, SEQUENCE_LENGTH);
+		int basesStart = READ_NAME+nameField+cigarLength;
+		int qualitiesStart = basesStart+((storedLength+1)/2);
+		
+		if (storedLength < 0 || qualitiesStart+storedLength > recordLength) {
+			throw new SequenceFormatException("BAM record sequence length "+storedLength+" didn't fit in the record");
+		}
+		
+		// The stored name includes a terminating null
+		nameLength = Math.max(nameField-1, 0);
+		sequenceLength = Math.max(storedLength, 1);
+		qualityLength = storedLength > 0 && record[qualitiesStart] != (byte)0xFF ? storedLength : 1;
+		
+		int needed = nameLength+sequenceLength+qualityLength;
+		if (decoded.length < needed) {
+			decoded = new byte[Math.max(needed, decoded.length*2)];
+		}
+		
+		System.arraycopy(record, READ_NAME, decoded, 0, nameLength);
+		
+		int sequenceStart = nameLength;
+		if (storedLength == 0) {
+			decoded[sequenceStart] = '*';
+		}
+		else {
+			int packed = basesStart;
+			int i = 0;
+			for (;i+1<storedLength;i+=2) {
+				int pair = record[packed++] & 0xFF;
+				decoded[sequenceStart+i] = HIGH_BASES[pair];
+				decoded[sequenceStart+i+1] = LOW_BASES[pair];
+			}
+			if (i < storedLength) {
+				decoded[sequenceStart+i] = HIGH_BASES[record[packed] & 0xFF];
+			}
+		}
+		
+		int qualityStart = sequenceStart+sequenceLength;
+		if (qualityLength == storedLength) {
+			for (int i=0;i<storedLength;i++) {
+				decoded[qualityStart+i] = (byte)(record[qualitiesStart+i]+33);
+			}
+		}
+		else {
+			decoded[qualityStart] = '*';
+		}
+		
+		if ((flag & FLAG_REVERSE) != 0) {
+			reverseComplement(decoded, sequenceStart, sequenceLength);
+			reverse(decoded, qualityStart, qualityLength);
+		}
+	}
+	
+	private static void reverseComplement (byte [] data, int start, int length) {
+		int i = start;
+		int j = start+length-1;
+		while (i < j) {
+			byte swap = COMPLEMENT[data[i] & 0xFF];
+			data[i] = COMPLEMENT[data[j] & 0xFF];
+			data[j] = swap;
+			++i;
+			--j;
+		}
+		if (i == j) {
+			data[i] = COMPLEMENT[data[i] & 0xFF];
+		}
+	}
+	
+	private static void reverse (byte [] data, int start, int length) {
+		int i = start;
+		int j = start+length-1;
+		while (i < j) {
+			byte swap = data[i];
+			data[i] = data[j];
+			data[j] = swap;
+			++i;
+			--j;
+		}
+	}
+	
+	public byte [] buffer () {
+		return decoded;
+	}
+	
+	public int idOffset () {
+		return 0;
+	}
+	
+	public int idLength () {
+		return nameLength;
+	}
+	
+	public int sequenceOffset () {
+		return nameLength;
+	}
+	
+	public int sequenceLength () {
+		return sequenceLength;
+	}
+	
+	public int qualityOffset () {
+		return nameLength+sequenceLength;
+	}
+	
+	public int qualityLength () {
+		return qualityLength;
+	}
+	
+	public long recordCount () {
+		return recordCount;
+	}
+	
+	public void close () throws IOException {
+		in.close();
+	}
+	
+	private int readHeaderInt () throws IOException, SequenceFormatException {
+		if (!readFully(intBuffer, 4)) {
+			throw new SequenceFormatException("BAM file ended part way through the header");
+		}
+		int value = readInt(intBuffer, 0);
+		if (value < 0) {
+			throw new SequenceFormatException("BAM header contained a negative length");
+		}
+		return value;
+	}
+	
+	private void skip (long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				if (in.read() < 0) throw new EOFException("BAM file ended part way through the header");
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+	
+	/**
+	 * @return false if we were already at the end of the data
+	 * @throws EOFException if the data ended part way through
+	 */
+	private boolean readFully (byte [] buffer, int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int count = in.read(buffer, read, length-read);
+			if (count < 0) {
+				if (read == 0) return false;
+				throw new EOFException("BAM file ended part way through a record");
+			}
+			read += count;
+		}
+		return true;
+	}
+	
+	private static int readInt (byte [] data, int position) {
+		return (data[position] & 0xFF) | ((data[position+1] & 0xFF) << 8) | ((data[position+2] & 0xFF) << 16) | ((data[position+3] & 0xFF) << 24);
+	}
+	
+	private static int readShort (byte [] data, int position) {
+		return (data[position] & 0xFF) | ((data[position+1] & 0xFF) << 8);
+	}
+	
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of the reference which we want to limit the analysis of a BAM or
+ * SAM file to.  Regions are written the same way as for samtools, so
+ * 'chr1' is the whole of chr1, 'chr1:1000-2000' is bases 1000 to 2000
+ * (counting from 1, and including both ends) and 'chr1:1000' is from base
+ * 1000 to the end.  As with samtools, positions can have commas between
+ * the thousands, as in 'chr1:1,000-2,000'.  A region of '*' means the
+ * reads which aren't placed on any reference.
+ * 
+ * A read is in a region if any part of its alignment overlaps it.
+ */
+class BAMRegion {
+
+	public static final String UNPLACED = "*";
+	
+	private String referenceName;
+	
+	// Set once we know the references in the file we're reading
+	private int referenceIndex = -1;
+	
+	// Zero based, with the end exclusive
+	private int start;
+	private int end;
+	
+	private BAMRegion (String referenceName, int start, int end) {
+		this.referenceName = referenceName;
+		this.start = start;
+		this.end = end;
+	}
+	
+	/**
+	 * Reads a list of regions separated by commas, semicolons or spaces.
+	 * 
+	 * @return The regions, or null if the list was empty
+	 */
+	public static BAMRegion [] parse (String list) throws SequenceFormatException {
+		
+		ArrayList<BAMRegion> regions = new ArrayList<BAMRegion>();
+		
+		String [] sections = list.split("[\\s;]+");
+		for (int s=0;s<sections.length;s++) {
+			List<String> sectionRegions = splitOnCommas(sections[s]);
+			for (int r=0;r<sectionRegions.size();r++) {
+				String region = sectionRegions.get(r).trim();
+				if (region.length() == 0) continue;
+				regions.add(parseRegion(region));
+			}
+		}
+		
+		if (regions.isEmpty()) return null;
+		return regions.toArray(new BAMRegion[0]);
+	}
+	
+	/**
+	 * Splits on the commas between regions, but not on those between the
+	 * thousands of a position.  A comma is part of a position if it comes
+	 * after the colon of a range, with nothing but the digits of the range
+	 * in between, and is followed by exactly three digits.  This keeps
+	 * lists of numbered references such as '1,2,X' working.
+	 */
+	private static List<String> splitOnCommas (String section) {
+		List<String> regions = new ArrayList<String>();
+		int regionStart = 0;
+		for (int i=0;i<section.length();i++) {
+			if (section.charAt(i) != ',') continue;
+			if (isThousandsSeparator(section, regionStart, i)) continue;
+			regions.add(section.substring(regionStart, i));
+			regionStart = i+1;
+		}
+		regions.add(section.substring(regionStart));
+		return regions;
+	}
+	
+	private static boolean isThousandsSeparator (String section, int regionStart, int comma) {
+		int colon = section.lastIndexOf(':', comma);
+		if (colon < regionStart) return false;
+		return section.substring(colon+1, comma).matches("\\d+(,\\d{3})*(-\\d+(,\\d{3})*)?") && section.substring(comma+1).matches("\\d{3}([-,].*)?");
+	}
+	
+	private static BAMRegion parseRegion (String region) throws SequenceFormatException {
+		
+		// Reference names can contain colons, so we only split off a range
+		// if what follows the last colon looks like one
+		int colon = region.lastIndexOf(':');
+		if (colon > 0 && region.substring(colon+1).matches("\\d+(,\\d{3})*(-\\d+(,\\d{3})*)?")) {
+			String name = region.substring(0, colon);
+			String [] range = region.substring(colon+1).replace(",", "").split("-");
+			try {
+				int start = Integer.parseInt(range[0]);
+				int end = range.length > 1 ? Integer.parseInt(range[1]) : Integer.MAX_VALUE;
+				if (start < 1 || end < start) {
+					throw new SequenceFormatException("Region '"+region+"' didn't have a valid range");
+				}
+				return new BAMRegion(name, start-1, end);
+			}
+			catch (NumberFormatException nfe) {
+				throw new SequenceFormatException("Region '"+region+"' had a position which was too big");
+			}
+		}
+		
+		return new BAMRegion(region, 0, Integer.MAX_VALUE);
+	}
+	
+	public String referenceName () {
+		return referenceName;
+	}
+	
+	public boolean isUnplaced () {
+		return referenceName.equals(UNPLACED);
+	}
+	
+	public int referenceIndex () {
+		return referenceIndex;
+	}
+	
+	void setReferenceIndex (int referenceIndex) {
+		this.referenceIndex = referenceIndex;
+	}
+	
+	public int start () {
+		return start;
+	}
+	
+	public int end () {
+		return end;
+	}
+	
+	/**
+	 * Says whether an alignment overlaps this region.
+	 * 
+	 * @param alignmentStart The zero based start of the alignment
+	 * @param alignmentEnd The zero based, exclusive, end of the alignment
+	 */
+	public boolean overlaps (int alignmentStart, int alignmentEnd) {
+		return alignmentStart < end && alignmentEnd > start;
+	}
+	
+}
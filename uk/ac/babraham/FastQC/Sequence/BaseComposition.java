@@ -0,0 +1,113 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+/**
+ * The bases of a read turned into small codes, along with how many of each
+ * code the read contains.  Several modules need to know what each base is,
+ * so rather than each of them comparing every base against 'G', 'A' and so
+ * on we work it out once for each read with a lookup table, and the modules
+ * then use the codes to index into their own counts.
+ * 
+ * A, C, G and T are given the 2 bit codes used for kmers.  Lower case
+ * bases have already been upper cased by the time we see them.
+ */
+public class BaseComposition {
+
+	public static final byte A = 0;
+	public static final byte C = 1;
+	public static final byte G = 2;
+	public static final byte T = 3;
+	public static final byte N = 4;
+	public static final byte U = 5;
+	public static final byte OTHER = 6;
+	
+	public static final int CODE_COUNT = 7;
+	
+	private static final byte [] CODES = new byte[256];
+	
+	static {
+		for (int i=0;i<CODES.length;i++) {
+			CODES[i] = OTHER;
+		}
+		CODES['A'] = A;
+		CODES['C'] = C;
+		CODES['G'] = G;
+		CODES['T'] = T;
+		CODES['N'] = N;
+		CODES['U'] = U;
+	}
+	
+	private byte [] codes = new byte[0];
+	private int length = 0;
+	private int [] counts = new int[CODE_COUNT];
+	
+	/**
+	 * Works out the composition of a stretch of bases, reusing the arrays
+	 * we already have where we can.
+	 */
+	void calculate (byte [] bases, int offset, int length) {
+		if (codes.length < length) {
+			codes = new byte[length];
+		}
+		for (int c=0;c<CODE_COUNT;c++) {
+			counts[c] = 0;
+		}
+		
+		for (int i=0;i<length;i++) {
+			byte code = CODES[bases[offset+i] & 0xFF];
+			codes[i] = code;
+			++counts[code];
+		}
+		this.length = length;
+	}
+	
+	/**
+	 * @return The code for each base, starting at 0.  Only the first
+	 * length() entries are used, and the array must not be changed.
+	 */
+	public byte [] codes () {
+		return codes;
+	}
+	
+	public int length () {
+		return length;
+	}
+	
+	/**
+	 * @return The size of the code array we're holding on to, which can be
+	 * bigger than the current read.
+	 */
+	int retainedBytes () {
+		return codes.length;
+	}
+	
+	/**
+	 * @return The number of bases in the read with the given code
+	 */
+	public int count (int code) {
+		return counts[code];
+	}
+	
+	public int gcCount () {
+		return counts[G]+counts[C];
+	}
+	
+}
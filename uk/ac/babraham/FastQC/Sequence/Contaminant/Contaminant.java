@@ -97,6 +97,52 @@ public class Contaminant {
 		
 	}
 	
+	/**
+	 * Gives the same result as findMatch(query) but only tries the offsets
+	 * we're given, which must include every offset at which the query
+	 * could hit.  The offsets must be in ascending order so that ties are
+	 * broken in the same way.
+	 */
+	ContaminantHit findMatch (String query, int [] forwardOffsets, int forwardCount, int [] reverseOffsets, int reverseCount) {
+		query = query.toUpperCase();
+		
+		if (query.length()<20 && query.length()>=8) {
+			if ((new String(forward)).contains(query)) {
+				return new ContaminantHit(this, ContaminantHit.FORWARD, query.length(), 100);
+			}
+			if ((new String(reverse)).contains(query)) {
+				return new ContaminantHit(this, ContaminantHit.REVERSE, query.length(), 100);
+			}
+		}
+		
+		char [] q = query.toCharArray();
+		
+		ContaminantHit bestHit = null;
+		
+		int minOffset = 0-(forward.length-20);
+		int maxOffset = q.length-20;
+		
+		for (int o=0;o<forwardCount;o++) {
+			if (forwardOffsets[o] < minOffset || forwardOffsets[o] >= maxOffset) continue;
+			ContaminantHit thisHit = findMatch(forward,q,forwardOffsets[o],ContaminantHit.FORWARD);
+			if (thisHit == null) continue;
+			if (bestHit == null || thisHit.length()>bestHit.length()) {
+				bestHit = thisHit;
+			}
+		}
+
+		for (int o=0;o<reverseCount;o++) {
+			if (reverseOffsets[o] < minOffset || reverseOffsets[o] >= maxOffset) continue;
+			ContaminantHit thisHit = findMatch(reverse,q,reverseOffsets[o],ContaminantHit.REVERSE);
+			if (thisHit == null) continue;
+			if (bestHit == null || thisHit.length()>bestHit.length()) {
+				bestHit = thisHit;
+			}
+		}
+		
+		return bestHit;
+	}
+	
 	private ContaminantHit findMatch (char [] ca, char [] cb, int offset, int direction) {
 		
 		ContaminantHit bestHit = null;
@@ -150,5 +196,13 @@ public class Contaminant {
 		return name;
 	}
 	
+	char [] forward () {
+		return forward;
+	}
+	
+	char [] reverse () {
+		return reverse;
+	}
+	
 	
 }
@@ -0,0 +1,196 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence.Contaminant;
+
+import java.util.Arrays;
+
+/**
+ * An index of the short words found in a set of contaminants, in both
+ * orientations, so that we only need to try the full match against the
+ * contaminants, and the offsets within them, which could possibly hit a
+ * query.
+ * 
+ * Any hit found by Contaminant.findMatch covers at least 21bp with no more
+ * than one mismatch, so it must contain an exact match of at least 10bp,
+ * and short queries need an exact match of at least 8bp.  Every hit
+ * therefore shares at least one 8bp word with the query at the offset of
+ * the hit, which means that checking only those offsets gives exactly the
+ * same answer as sliding the query across every contaminant.
+ */
+public class ContaminantIndex {
+
+	private static final int SEED_LENGTH = 8;
+	private static final int SEED_MASK = (1 << (SEED_LENGTH*2))-1;
+	
+	// Offsets are stored with this added so they sort as positive numbers
+	private static final long OFFSET_BIAS = 1L << 30;
+	
+	private Contaminant [] contaminants;
+	
+	// The places each word occurs are listed from seedStarts[word] to
+	// seedStarts[word+1].  Each place is a contaminant index with the
+	// orientation in the lowest bit, and the position of the word in that
+	// orientation.
+	private int [] seedStarts;
+	private int [] seedContaminants;
+	private int [] seedPositions;
+	
+	public ContaminantIndex (Contaminant [] contaminants) {
+		this.contaminants = contaminants;
+		
+		// We go through twice, first to count the entries for each word
+		// and then to fill them in.
+		int wordCount = SEED_MASK+1;
+		seedStarts = new int[wordCount+1];
+		int [] nextSlot = null;
+		
+		for (int pass=0;pass<2;pass++) {
+			if (pass == 1) {
+				for (int w=0;w<wordCount;w++) {
+					seedStarts[w+1] += seedStarts[w];
+				}
+				seedContaminants = new int[seedStarts[wordCount]];
+				seedPositions = new int[seedStarts[wordCount]];
+				nextSlot = new int[wordCount];
+				System.arraycopy(seedStarts, 0, nextSlot, 0, wordCount);
+			}
+			
+			for (int c=0;c<contaminants.length;c++) {
+				for (int o=0;o<2;o++) {
+					char [] sequence = o == 0 ? contaminants[c].forward() : contaminants[c].reverse();
+					int word = 0;
+					for (int i=0;i<sequence.length;i++) {
+						word = ((word << 2) | baseCode(sequence[i])) & SEED_MASK;
+						if (i < SEED_LENGTH-1) continue;
+						if (pass == 0) {
+							++seedStarts[word+1];
+						}
+						else {
+							seedContaminants[nextSlot[word]] = (c << 1) | o;
+							seedPositions[nextSlot[word]] = (i-SEED_LENGTH)+1;
+							++nextSlot[word];
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Contaminants only ever contain GATC so we don't need a code for
+	 * anything else.
+	 */
+	private static int baseCode (char c) {
+		switch (c) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			default: return 3;
+		}
+	}
+	
+	public int size () {
+		return contaminants.length;
+	}
+	
+	public ContaminantHit findContaminantHit (String sequence) {
+		
+		String query = sequence.toUpperCase();
+		
+		// We collect every contaminant, orientation and offset where a word
+		// from the query lines up with the same word in a contaminant.  These
+		// are packed so that sorting them puts them in contaminant order,
+		// with forward before reverse and ascending offsets within that.
+		long [] places = new long[64];
+		int placeCount = 0;
+		
+		// Words containing anything other than GATC can't be in any
+		// contaminant, so we only look up words made from valid bases
+		int word = 0;
+		int validLength = 0;
+		for (int i=0;i<query.length();i++) {
+			char c = query.charAt(i);
+			if (c == 'A' || c == 'C' || c == 'G' || c == 'T') {
+				word = ((word << 2) | baseCode(c)) & SEED_MASK;
+				++validLength;
+			}
+			else {
+				validLength = 0;
+			}
+			
+			if (validLength < SEED_LENGTH) continue;
+			
+			int queryPosition = (i-SEED_LENGTH)+1;
+			
+			for (int s=seedStarts[word];s<seedStarts[word+1];s++) {
+				if (placeCount == places.length) {
+					places = Arrays.copyOf(places, places.length*2);
+				}
+				long offset = (queryPosition-seedPositions[s])+OFFSET_BIAS;
+				places[placeCount++] = (((long)seedContaminants[s]) << 31) | offset;
+			}
+		}
+		
+		Arrays.sort(places, 0, placeCount);
+		
+		ContaminantHit bestHit = null;
+		
+		int [] forwardOffsets = new int[16];
+		int [] reverseOffsets = new int[16];
+		
+		int p = 0;
+		while (p < placeCount) {
+			int contaminant = (int)(places[p] >>> 32);
+			int forwardCount = 0;
+			int reverseCount = 0;
+			
+			while (p < placeCount && (int)(places[p] >>> 32) == contaminant) {
+				int orientation = (int)(places[p] >>> 31) & 1;
+				int offset = (int)((places[p] & ((1L << 31)-1))-OFFSET_BIAS);
+				
+				if (orientation == 0) {
+					if (forwardCount == 0 || forwardOffsets[forwardCount-1] != offset) {
+						if (forwardCount == forwardOffsets.length) forwardOffsets = Arrays.copyOf(forwardOffsets, forwardCount*2);
+						forwardOffsets[forwardCount++] = offset;
+					}
+				}
+				else {
+					if (reverseCount == 0 || reverseOffsets[reverseCount-1] != offset) {
+						if (reverseCount == reverseOffsets.length) reverseOffsets = Arrays.copyOf(reverseOffsets, reverseCount*2);
+						reverseOffsets[reverseCount++] = offset;
+					}
+				}
+				++p;
+			}
+			
+			ContaminantHit thisHit = contaminants[contaminant].findMatch(sequence, forwardOffsets, forwardCount, reverseOffsets, reverseCount);
+			
+			if (thisHit == null) continue; // No hit
+			
+			// We keep the same tie breaking as going through the whole list
+			if (bestHit == null || thisHit.length() > bestHit.length()) {
+				bestHit = thisHit;
+			}
+		}
+		
+		return bestHit;
+	}
+	
+}
@@ -28,29 +28,24 @@ import java.util.Vector;
 
 public class ContaminentFinder {
 
-	private static Contaminant [] contaminants;
+	private static volatile ContaminantIndex contaminants;
 	
-	public static ContaminantHit findContaminantHit (String sequence) {
+	/**
+	 * Reads and indexes the contaminant list now rather than when the
+	 * first hit is looked up.
+	 */
+	public static synchronized void loadContaminants () {
 		if (contaminants == null) {
-			contaminants = makeContaminantList();
+			contaminants = new ContaminantIndex(makeContaminantList());
 		}
-		
-		ContaminantHit bestHit = null;
-		
-		for (int c=0;c<contaminants.length;c++) {
-			ContaminantHit thisHit = contaminants[c].findMatch(sequence);
-			
-//			System.out.println("Best hit from "+c+" is "+thisHit);
-			
-			if (thisHit == null) continue; // No hit
-			
-			if (bestHit == null || thisHit.length() > bestHit.length()) {
-				bestHit = thisHit;
-			}
-			
+	}
+	
+	public static ContaminantHit findContaminantHit (String sequence) {
+		if (contaminants == null) {
+			loadContaminants();
 		}
 		
-		return bestHit;
+		return contaminants.findContaminantHit(sequence);
 		
 	}
 	
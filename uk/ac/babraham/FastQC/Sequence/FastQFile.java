@@ -19,33 +19,45 @@
  */
 package uk.ac.babraham.FastQC.Sequence;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.itadaki.bzip2.BZip2InputStream;
 
-import uk.ac.babraham.FastQC.Utilities.MultiMemberGZIPInputStream;
+import uk.ac.babraham.FastQC.Utilities.ByteBufferInputStream;
+import uk.ac.babraham.FastQC.Utilities.CountingInputStream;
+import uk.ac.babraham.FastQC.Utilities.ParallelGZIPInputStream;
 
 public class FastQFile implements SequenceFile {
 
 	private Sequence nextSequence = null;
+	private SequencePool pool = new SequencePool();
 	private File file;
 	private long fileSize = 0;
 	
 	private boolean casavaMode = false;
 	
-	// We actually read our final data from this buffered reader
-	private BufferedReader br;
+	// FastQ files are plain ascii, and a single byte charset lets us turn
+	// slices of the parser buffer straight into Strings.
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
 	
-	// We keep the file stream around just so we can see how far through
-	// the file we've got.  We don't read from this directly, but it's the
-	// only way to access the file pointer.
-	private FileInputStream fis;
+	// We actually read our final data from this parser
+	private FastQParser parser;
+	
+	// We see how far through the file we've got by counting the bytes we
+	// read from it, or for gzip files by asking the decompressor which part
+	// of the file the data it's given us came from.
+	private CountingInputStream counter = null;
+	private ParallelGZIPInputStream gzip = null;
+	
+	// When we're only reading part of a file this is where the data comes
+	// from, and it's what we use to see how far we've got.
+	private ByteBufferInputStream range = null;
 	
 	private String name;
 	private boolean isColorspace = false;
@@ -59,18 +71,63 @@ public class FastQFile implements SequenceFile {
 			casavaMode = true;
 		}
 		
-		fis = new FileInputStream(file);
+		parser = new FastQParser(openStream(new FileInputStream(file)));
+		readNext();
+	}
+	
+	/**
+	 * Reads the records in one part of an uncompressed file.  The range
+	 * must start at the beginning of a record and end at the end of one.
+	 */
+	FastQFile(File file, ByteBufferInputStream range) throws SequenceFormatException {
+		this.file = file;
+		this.range = range;
+		fileSize = range.length();
+		name = file.getName();
+		
+		if (System.getProperty("fastqc.casava") != null && System.getProperty("fastqc.casava").equals("true")) {
+			casavaMode = true;
+		}
+		
+		// Small ranges don't need the full sized buffer, which would
+		// otherwise cost more to allocate than to fill
+		parser = new FastQParser(range, (int)Math.min(FastQParser.DEFAULT_BUFFER_SIZE, range.length()+1L));
+		readNext();
+	}
+	
+	/**
+	 * Reads records from a stream of uncompressed data which must start at
+	 * the beginning of a record.  We can't tell how far through the data we
+	 * are so the percentage complete only changes at the end.
+	 */
+	FastQFile(File file, InputStream in) throws SequenceFormatException {
+		this.file = file;
+		name = file.getName();
+		
+		if (System.getProperty("fastqc.casava") != null && System.getProperty("fastqc.casava").equals("true")) {
+			casavaMode = true;
+		}
+		
+		parser = new FastQParser(in);
+		readNext();
+	}
+	
+	/**
+	 * Adds whatever decompression layer is needed on top of the raw file stream
+	 */
+	private InputStream openStream (FileInputStream fis) throws IOException {
 		if (file.getName().toLowerCase().endsWith(".gz")) {
-			br = new BufferedReader(new InputStreamReader(new MultiMemberGZIPInputStream(fis)));
-		} 
-		else if (file.getName().toLowerCase().endsWith(".bz2")) {
-			br = new BufferedReader(new InputStreamReader(new BZip2InputStream(fis,false)));
+			gzip = ParallelGZIPInputStream.open(fis);
+			return gzip;
 		} 
 		
+		counter = new CountingInputStream(fis);
+		if (file.getName().toLowerCase().endsWith(".bz2")) {
+			return new BZip2InputStream(counter,false);
+		} 
 		else {
-			br = new BufferedReader(new InputStreamReader(fis));
+			return counter;
 		}
-		readNext();
 	}
 
 	public String name() {
@@ -78,16 +135,37 @@ public class FastQFile implements SequenceFile {
 	}
 
 	public int getPercentComplete() {
-		try {
-			int percent = (int) (((double)fis.getChannel().position()/ fileSize)*100);
-			return percent;
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		// The file is closed once we've read the last record
+		if (!hasNext()) return 100;
+		if (fileSize == 0) return 0;
+		return (int)((100d*bytesRead())/fileSize);
+	}
+	
+	private long bytesRead () {
+		if (range != null) return range.position();
+		if (gzip != null) return gzip.compressedPosition();
+		if (counter != null) return counter.position();
 		return 0;
 	}
 
+	/**
+	 * @return How much of the raw file (or range) we've read, which gives a
+	 * finer measure of progress than getPercentComplete.
+	 */
+	double fractionRead () {
+		if (!hasNext()) return 1;
+		if (fileSize == 0) return 0;
+		return bytesRead()/(double)fileSize;
+	}
+
+	/**
+	 * Stops reading early, for when we find we don't need the data after all.
+	 */
+	public void close () throws IOException {
+		nextSequence = null;
+		parser.close();
+	}
+
 	public boolean isColorspace() {
 		return isColorspace;
 	}
@@ -108,73 +186,46 @@ public class FastQFile implements SequenceFile {
 
 	private void readNext() throws SequenceFormatException {
 		try {
-			// First line should be the id
+			boolean firstRecord = parser.recordCount() == 0;
 			
-			// We might have blank lines between entries or at the end
-			// so allow for this
-			String id;
-			
-			while (true) {
-				id = br.readLine();
-
-				if (id == null) {
-					nextSequence = null;
-					return;
-				}
-				if (id.length()==0) {
-					continue;
-				}				
-				
-				break;
-			}
-			
-
-			if (!id.startsWith("@")) {
+			if (!parser.nextRecord()) {
 				nextSequence = null;
-				throw new SequenceFormatException("ID line didn't start with '@'");
+				parser.close();
+				return;
 			}
+			
+			byte [] buffer = parser.buffer();
+			
+			// We upper case the sequence in the buffer so we don't need to
+			// make any extra copies of it.
+			parser.upperCaseSequence();
 
-			// Then the sequence
-			String seq = br.readLine();
-			// Then another id which we don't need
-			String midLine = br.readLine();
-			if (!midLine.startsWith("+")) {
-				throw new SequenceFormatException("Midline '"+midLine+"' didn't start with '+'");
-			}
-			// Then the quality string
-			String quality = br.readLine();
-
-			if (nextSequence == null && seq != null) {
-				checkColorspace(seq);
+			if (firstRecord) {
+				checkColorspace(new String(buffer, parser.sequenceOffset(), parser.sequenceLength(), ASCII));
 			}
 
-			if (quality == null) {
-				nextSequence = null;
-				br.close();
+			if (isColorspace()) {
+				String id = new String(buffer, parser.idOffset(), parser.idLength(), ASCII);
+				String quality = new String(buffer, parser.qualityOffset(), parser.qualityLength(), ASCII);
+				String seq = new String(buffer, parser.sequenceOffset(), parser.sequenceLength(), ASCII);
+				nextSequence = new Sequence(this, convertColorspaceToBases(seq), seq, quality, id);
 			} 
 			else {
-				if (isColorspace()) {
-					nextSequence = new Sequence(this,
-							convertColorspaceToBases(seq.toUpperCase()), seq.toUpperCase(), quality, id);
-				} 
-				else {
-					nextSequence = new Sequence(this, seq.toUpperCase(),quality, id);
-				}
+				nextSequence = pool.get();
+				nextSequence.setRecord(this, buffer, parser.idOffset(), parser.idLength(), parser.sequenceOffset(), parser.sequenceLength(), parser.qualityOffset(), parser.qualityLength());
+			}
 				
-				// If we're running in --casava mode then we will flag any sequences which
-				// are marked as being filtered.
-				if (casavaMode) {
-					
-					// This is the test illumina suggest, but it's a bit flakey, and I'm not
-					// sure it's not going to catch things it shouldn't.
-					if (id.indexOf(":Y:") > 0) {
-						nextSequence.setIsFiltered(true);
-					}
+			// If we're running in --casava mode then we will flag any sequences which
+			// are marked as being filtered.
+			if (casavaMode) {
+				
+				// This is the test illumina suggest, but it's a bit flakey, and I'm not
+				// sure it's not going to catch things it shouldn't.
+				if (parser.idContains(":Y:")) {
+					nextSequence.setIsFiltered(true);
 				}
-
 			}
 
-
 		} 
 		catch (IOException ioe) {
 			nextSequence = null;
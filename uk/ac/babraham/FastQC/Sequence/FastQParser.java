@@ -0,0 +1,270 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A byte level parser for FastQ data.  Rather than going through a Reader
+ * and creating Strings for every line we read raw bytes into a single large
+ * buffer, find the record boundaries ourselves and expose the parts of each
+ * record as slices of that buffer.
+ *
+ * The slices returned for a record are only valid until the next call to
+ * nextRecord(), after which the buffer contents may be moved or overwritten.
+ */
+public class FastQParser {
+
+	static final int DEFAULT_BUFFER_SIZE = 1024*1024;
+
+	// Lookup table used to upper case sequence bytes in place
+	private static final byte [] UPPER_CASE = new byte[256];
+
+	static {
+		for (int i=0;i<UPPER_CASE.length;i++) {
+			UPPER_CASE[i] = (byte)i;
+		}
+		for (int i='a';i<='z';i++) {
+			UPPER_CASE[i] = (byte)(i-('a'-'A'));
+		}
+	}
+
+	private InputStream in;
+	private byte [] buffer;
+
+	// The position of the first unconsumed byte in the buffer
+	private int position = 0;
+
+	// The position after the last valid byte in the buffer
+	private int limit = 0;
+
+	private boolean endOfStream = false;
+
+	// The start positions and lengths of the lines of the current record.
+	// Lengths exclude any line terminators.
+	private int [] lineStarts = new int[4];
+	private int [] lineLengths = new int[4];
+	private int [] lineEnds = new int[4];
+
+	private long recordCount = 0;
+
+	public FastQParser (InputStream in) {
+		this(in,DEFAULT_BUFFER_SIZE);
+	}
+
+	public FastQParser (InputStream in, int bufferSize) {
+		this.in = in;
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Moves to the next record in the stream.
+	 *
+	 * @return true if a complete record was read, false if we hit the end of
+	 * the data before finding one.
+	 * @throws IOException
+	 * @throws SequenceFormatException if the record structure was invalid
+	 */
+	public boolean nextRecord () throws IOException, SequenceFormatException {
+
+		// We might have blank lines between entries or at the end
+		// so allow for this
+		while (true) {
+			if (!findLine(position,0)) return false;
+			if (lineLengths[0] > 0) break;
+			position = nextLineStart(0);
+		}
+
+		if (buffer[lineStarts[0]] != '@') {
+			throw new SequenceFormatException("ID line didn't start with '@'");
+		}
+
+		// A truncated final record is treated as the end of the file
+		for (int line=1;line<4;line++) {
+			if (!findLine(nextLineStart(line-1),line)) return false;
+		}
+
+		if (lineLengths[2] == 0 || buffer[lineStarts[2]] != '+') {
+			throw new SequenceFormatException("Midline '"+new String(buffer,lineStarts[2],lineLengths[2],"ISO-8859-1")+"' didn't start with '+'");
+		}
+
+		position = nextLineStart(3);
+		++recordCount;
+		return true;
+	}
+
+	/**
+	 * Finds the end of the line starting at the given position, reading more
+	 * data into the buffer if required.  Since a refill can move data within
+	 * the buffer, the positions of any lines already found for the current
+	 * record are adjusted as well.
+	 */
+	private boolean findLine (int start, int line) throws IOException {
+
+		int scanFrom = start;
+
+		while (true) {
+			for (int i=scanFrom;i<limit;i++) {
+				if (buffer[i] == '\n') {
+					setLine(line, start, i);
+					return true;
+				}
+			}
+
+			if (endOfStream) {
+				if (start < limit) {
+					// The last line in the file had no terminator
+					setLine(line, start, limit);
+					return true;
+				}
+				return false;
+			}
+
+			// We need more data.  We'll keep everything from the start
+			// of the current record.
+			int keepFrom = line == 0 ? start : lineStarts[0];
+			int scannedTo = limit;
+			int shift = refill(keepFrom);
+			start -= shift;
+			scanFrom = scannedTo-shift;
+			for (int l=0;l<line;l++) {
+				lineStarts[l] -= shift;
+				lineEnds[l] -= shift;
+			}
+		}
+	}
+
+	private void setLine (int line, int start, int end) {
+		lineStarts[line] = start;
+
+		// We keep the terminator position so we know where the next line
+		// starts, but we don't count it (or any windows \r) in the length
+		int length = end-start;
+		if (length > 0 && buffer[end-1] == '\r') {
+			--length;
+		}
+		lineLengths[line] = length;
+		lineEnds[line] = end;
+	}
+
+	private int nextLineStart (int line) {
+		return lineEnds[line]+1;
+	}
+
+	/**
+	 * Moves the data we want to keep to the start of the buffer, growing it
+	 * if a single record doesn't fit, and then fills the rest of the buffer
+	 * from the stream.
+	 *
+	 * @param keepFrom The first position in the buffer we need to retain
+	 * @return The distance by which retained data was moved back
+	 * @throws IOException
+	 */
+	private int refill (int keepFrom) throws IOException {
+
+		int retained = limit-keepFrom;
+
+		if (retained == buffer.length) {
+			byte [] newBuffer = new byte[buffer.length*2];
+			System.arraycopy(buffer, keepFrom, newBuffer, 0, retained);
+			buffer = newBuffer;
+		}
+		else if (keepFrom > 0) {
+			System.arraycopy(buffer, keepFrom, buffer, 0, retained);
+		}
+
+		limit = retained;
+
+		while (limit < buffer.length) {
+			int read = in.read(buffer, limit, buffer.length-limit);
+			if (read == -1) {
+				endOfStream = true;
+				break;
+			}
+			limit += read;
+		}
+
+		return keepFrom;
+	}
+
+	/**
+	 * Converts the sequence of the current record to upper case in place.
+	 */
+	public void upperCaseSequence () {
+		int end = lineStarts[1]+lineLengths[1];
+		for (int i=lineStarts[1];i<end;i++) {
+			buffer[i] = UPPER_CASE[buffer[i] & 0xFF];
+		}
+	}
+
+	/**
+	 * Says whether the ID of the current record contains the given ascii
+	 * text somewhere after its first character.
+	 */
+	public boolean idContains (String text) {
+		int length = text.length();
+		int end = lineStarts[0]+lineLengths[0]-length;
+		OUTER: for (int i=lineStarts[0]+1;i<=end;i++) {
+			for (int j=0;j<length;j++) {
+				if (buffer[i+j] != text.charAt(j)) continue OUTER;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public byte [] buffer () {
+		return buffer;
+	}
+
+	public int idOffset () {
+		return lineStarts[0];
+	}
+
+	public int idLength () {
+		return lineLengths[0];
+	}
+
+	public int sequenceOffset () {
+		return lineStarts[1];
+	}
+
+	public int sequenceLength () {
+		return lineLengths[1];
+	}
+
+	public int qualityOffset () {
+		return lineStarts[3];
+	}
+
+	public int qualityLength () {
+		return lineLengths[3];
+	}
+
+	public long recordCount () {
+		return recordCount;
+	}
+
+	public void close () throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.babraham.FastQC.Utilities.ByteBufferInputStream;
+
+/**
+ * Cuts an uncompressed FastQ or SAM file into byte ranges which each hold
+ * a whole number of records, so that each range can be memory mapped and
+ * parsed by a different thread.
+ * 
+ * Finding where a FastQ record starts is awkward since '@' can also start
+ * a quality line.  From each cut point we look for the first line which
+ * starts with '@', is followed two lines later by a line starting with
+ * '+', has a sequence the same length as its quality, and is followed by
+ * either another '@' line or the end of the file.  A quality line starting
+ * with '@' fails this since the line two after it is a sequence.
+ * 
+ * For SAM files the header is kept separately and put in front of every
+ * range so that each one can be read as a complete file.
+ */
+public class MappedFileSplitter {
+
+	// Java can't map more than 2GB at once so ranges are never bigger than this
+	private static final long MAX_RANGE_SIZE = 1024*1024*1024;
+	
+	private static final int INITIAL_WINDOW = 64*1024;
+	
+	// If we can't find a record start in this much data we give up and
+	// merge the range with the next one
+	private static final int MAX_WINDOW = 64*1024*1024;
+	
+	private File file;
+	private boolean sam;
+	private boolean onlyMapped = false;
+	private ByteBuffer header = null;
+	private long [] starts;
+	
+	/**
+	 * Says whether we can split a file.  This is the case for FastQ and SAM
+	 * files which aren't compressed.
+	 */
+	public static boolean canSplit (SequenceFile file) {
+		if (file instanceof FastQFile) {
+			String name = file.getFile().getName().toLowerCase();
+			return !name.endsWith(".gz") && !name.endsWith(".bz2");
+		}
+		if (file instanceof BAMFile) {
+			return !isCompressed(file.getFile());
+		}
+		return false;
+	}
+	
+	/**
+	 * BAM files, and any gzipped SAM files, start with the gzip magic number.
+	 */
+	private static boolean isCompressed (File file) {
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				return in.read() == 0x1f && in.read() == 0x8b;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * @param file A file for which canSplit is true
+	 * @param ranges The number of ranges we'd like.  We can end up with
+	 * fewer for small files, or more if the ranges would be too big to map.
+	 */
+	public MappedFileSplitter (SequenceFile file, int ranges) throws IOException {
+		this.file = file.getFile();
+		sam = file instanceof BAMFile;
+		if (sam) {
+			onlyMapped = ((BAMFile)file).onlyMapped();
+		}
+		
+		FileInputStream fis = new FileInputStream(this.file);
+		try {
+			FileChannel channel = fis.getChannel();
+			long length = channel.size();
+			
+			long bodyStart = 0;
+			if (sam) {
+				bodyStart = findSAMBodyStart(channel);
+				header = channel.map(FileChannel.MapMode.READ_ONLY, 0, bodyStart);
+			}
+			
+			long bodyLength = length-bodyStart;
+			ranges = (int)Math.max(ranges, (bodyLength+MAX_RANGE_SIZE-1)/MAX_RANGE_SIZE);
+			ranges = (int)Math.max(1, Math.min(ranges, bodyLength/INITIAL_WINDOW));
+			
+			List<Long> startList = new ArrayList<Long>();
+			startList.add(bodyStart);
+			
+			for (int r=1;r<ranges;r++) {
+				long cut = bodyStart+((bodyLength*r)/ranges);
+				if (cut <= startList.get(startList.size()-1)) continue;
+				
+				long start = sam ? findLineStart(channel, cut) : findFastQRecordStart(channel, cut);
+				
+				// If the start is too far from the last one to map we'll keep
+				// looking on from the next cut instead
+				if (start < 0 || start <= startList.get(startList.size()-1) || start >= length) continue;
+				startList.add(start);
+			}
+			startList.add(length);
+			
+			starts = new long[startList.size()];
+			for (int i=0;i<starts.length;i++) {
+				starts[i] = startList.get(i);
+				if (i > 0 && starts[i]-starts[i-1] > Integer.MAX_VALUE) {
+					throw new IOException("Couldn't find record boundaries close enough together to split "+this.file.getName());
+				}
+			}
+		}
+		finally {
+			fis.close();
+		}
+	}
+	
+	public int rangeCount () {
+		return starts.length-1;
+	}
+	
+	/**
+	 * @return Where the first record in the file starts
+	 */
+	long bodyStart () {
+		return starts[0];
+	}
+	
+	long bodyEnd () {
+		return starts[starts.length-1];
+	}
+	
+	public long rangeStart (int range) {
+		return starts[range];
+	}
+	
+	public long rangeLength (int range) {
+		return starts[range+1]-starts[range];
+	}
+	
+	/**
+	 * Maps a range into memory and opens it for reading.  The sequences it
+	 * gives out say they come from the whole file.
+	 */
+	public SequenceFile openRange (int range) throws IOException, SequenceFormatException {
+		return open(starts[range], starts[range+1]);
+	}
+	
+	/**
+	 * Finds the first record which starts at or after a position in the
+	 * body of the file.
+	 * 
+	 * @return The start of the record, the length of the file if there are
+	 * no more records, or -1 if we couldn't find one close enough.
+	 */
+	long findRecordStart (long position) throws IOException {
+		if (position <= starts[0]) return starts[0];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			if (position >= channel.size()) return channel.size();
+			return sam ? findLineStart(channel, position) : findFastQRecordStart(channel, position);
+		}
+		finally {
+			fis.close();
+		}
+	}
+	
+	/**
+	 * Maps part of the file into memory and opens it for reading.  Both ends
+	 * must be record boundaries, and any part must be less than 2GB long.
+	 */
+	SequenceFile open (long start, long end) throws IOException, SequenceFormatException {
+		MappedByteBuffer data;
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			data = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end-start);
+		}
+		finally {
+			// The mapping stays valid after the channel is closed
+			fis.close();
+		}
+		
+		if (sam) {
+			return new BAMFile(file, onlyMapped, new ByteBufferInputStream(header.duplicate()), new ByteBufferInputStream(data));
+		}
+		return new FastQFile(file, new ByteBufferInputStream(data));
+	}
+	
+	private static long findSAMBodyStart (FileChannel channel) throws IOException {
+		long position = 0;
+		long length = channel.size();
+		int windowSize = INITIAL_WINDOW;
+		
+		// Header lines all start with '@' so the body starts at the first
+		// line which doesn't
+		while (position < length) {
+			ByteBuffer window = readWindow(channel, position, windowSize);
+			
+			int lineStart = 0;
+			for (int i=0;i<window.limit();i++) {
+				if (i == lineStart && window.get(i) != '@') return position+i;
+				if (window.get(i) == '\n') lineStart = i+1;
+			}
+			
+			if (window.limit() < windowSize) return length;
+			
+			if (lineStart == 0) {
+				// A single header line filled the whole window
+				windowSize *= 2;
+			}
+			else {
+				position += lineStart;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Finds the start of the first line which starts at or after a position.
+	 * 
+	 * @return The start of the line, or -1 if there wasn't one within the
+	 * largest window we're prepared to search.
+	 */
+	private static long findLineStart (FileChannel channel, long position) throws IOException {
+		int windowSize = INITIAL_WINDOW;
+		while (windowSize <= MAX_WINDOW) {
+			ByteBuffer window = readWindow(channel, position-1, windowSize);
+			for (int i=0;i<window.limit();i++) {
+				if (window.get(i) == '\n') return position+i;
+			}
+			if (window.limit() < windowSize) return channel.size();
+			windowSize *= 2;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Finds the start of the first FastQ record at or after a position.
+	 * 
+	 * @return The start of the record, or -1 if there wasn't one within the
+	 * largest window we're prepared to search.
+	 */
+	private static long findFastQRecordStart (FileChannel channel, long position) throws IOException {
+		
+		int windowSize = INITIAL_WINDOW;
+		
+		while (windowSize <= MAX_WINDOW) {
+			
+			// We start one byte early so that we can tell whether the
+			// position itself is the start of a line
+			ByteBuffer window = readWindow(channel, position-1, windowSize);
+			boolean endOfFile = window.limit() < windowSize;
+			
+			int id = findFastQRecordStart(window, endOfFile);
+			if (id >= 0) return (position-1)+id;
+			
+			if (endOfFile) return channel.size();
+			windowSize *= 2;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Finds the first FastQ record which starts on a line after the first
+	 * one in a block of data.  The first line is skipped since we can't tell
+	 * whether it's complete.
+	 * 
+	 * @param endOfFile Whether the data runs up to the end of the file
+	 * @return The position of the start of the record, or -1 if we'd need
+	 * more data to find one.  At the end of the file this is the limit of
+	 * the data if there are no more records.
+	 */
+	static int findFastQRecordStart (ByteBuffer window, boolean endOfFile) {
+		
+		List<Integer> lineStarts = new ArrayList<Integer>();
+		for (int i=0;i<window.limit();i++) {
+			if (window.get(i) == '\n') lineStarts.add(i+1);
+		}
+		if (endOfFile && (lineStarts.isEmpty() || lineStarts.get(lineStarts.size()-1) < window.limit())) {
+			// The last line has no terminator so it ends at the end of the file
+			lineStarts.add(window.limit()+1);
+		}
+		
+		for (int l=0;l+4<lineStarts.size();l++) {
+			
+			int id = lineStarts.get(l);
+			if (id >= window.limit()) break;
+			if (window.get(id) != '@') continue;
+			
+			int plus = lineStarts.get(l+2);
+			if (plus >= window.limit() || window.get(plus) != '+') continue;
+			
+			int sequenceLength = lineLength(window, lineStarts.get(l+1), plus);
+			int qualityLength = lineLength(window, lineStarts.get(l+3), lineStarts.get(l+4));
+			if (sequenceLength != qualityLength) continue;
+			
+			// The next record should start straight after this one
+			int next = lineStarts.get(l+4);
+			if (next >= window.limit()) {
+				if (!endOfFile) break;
+			}
+			else if (window.get(next) != '@' && window.get(next) != '\n' && window.get(next) != '\r') {
+				continue;
+			}
+			
+			return id;
+		}
+		
+		return endOfFile ? window.limit() : -1;
+	}
+	
+	/**
+	 * Gets the length of a line without its terminator.
+	 * 
+	 * @param start The start of the line
+	 * @param nextStart The start of the line after it
+	 */
+	private static int lineLength (ByteBuffer window, int start, int nextStart) {
+		int end = nextStart-1;
+		if (end > start && end-1 < window.limit() && window.get(end-1) == '\r') --end;
+		return end-start;
+	}
+	
+	private static ByteBuffer readWindow (FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer window = ByteBuffer.allocate(size);
+		while (window.hasRemaining()) {
+			if (channel.read(window, position+window.position()) < 0) break;
+		}
+		window.flip();
+		return window;
+	}
+	
+}
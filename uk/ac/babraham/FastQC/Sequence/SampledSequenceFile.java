@@ -0,0 +1,491 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import uk.ac.babraham.FastQC.Utilities.MultiMemberGZIPInputStream;
+import uk.ac.babraham.FastQC.Utilities.ParallelGZIPInputStream;
+
+/**
+ * Passes on a sample of the records in a file rather than all of them, so
+ * that a quick look at a very large file doesn't mean reading all of it.
+ *
+ * Records are taken in chunks of consecutive reads.  For uncompressed FastQ
+ * and SAM files, and for FastQ files compressed with bgzip, we divide the
+ * file into one stride per chunk, seek to a point in the first half of each
+ * stride and read a chunk from the first whole record after it, so we only
+ * ever touch the parts of the file we use.
+ *
+ * Other files (plain gzip, bzip2 and BAM) can't be entered part way through,
+ * so we read them from start to end but only pass on one chunk from each
+ * stride.  Since we don't know how many reads these files hold we estimate
+ * the length of each stride from how far through the file we've got.
+ *
+ * Where we seek to in each stride, and which chunk we keep from it, comes
+ * from a random number generator with a fixed seed, so the same file and
+ * options always give the same sample.
+ *
+ * Sampling is turned on by setting fastqc.sample_reads to the number of
+ * reads wanted.  fastqc.sample_chunk sets the number of reads in each chunk
+ * and fastqc.sample_seed sets the seed.
+ */
+public class SampledSequenceFile implements SequenceFile {
+
+	private static final int DEFAULT_CHUNK_SIZE = 1000;
+	private static final long DEFAULT_SEED = 0;
+
+	// How much of an uncompressed file we look at to see whether it's big
+	// enough to be worth sampling
+	private static final int PROBE_SIZE = 1024*1024;
+
+	// Chunks of uncompressed files are mapped in windows which we size from
+	// the average record length, but never make bigger than this
+	private static final int MAX_WINDOW = 64*1024*1024;
+
+	// When we enter bgzip data part way through a record we'll look this far
+	// for the start of the next one
+	private static final int INITIAL_RESYNC_SIZE = 64*1024;
+	private static final int MAX_RESYNC_SIZE = 64*1024*1024;
+
+	private static final int MAPPED = 0;
+	private static final int BGZF = 1;
+	private static final int STRIDE = 2;
+
+	private SequenceFile source;
+	private int mode;
+	private long targetReads;
+	private int chunkSize;
+	private long seed;
+	private Random random;
+
+	private Sequence nextSequence = null;
+
+	// The chunk we're currently reading, and how many more reads we want from it
+	private SequenceFile chunk = null;
+	private int chunkRemaining = 0;
+
+	// When seeking, the strides we divide the file into and how far we've got
+	private long bodyStart;
+	private long bodyEnd;
+	private int chunkCount;
+	private int chunkIndex = 0;
+	private long stride;
+
+	// Nothing before this point in the file can be used for a new chunk
+	// since we've already read past it
+	private long previousEnd = 0;
+
+	// For uncompressed files, the end of the current window, how many
+	// records we've had from it, and our estimate of the size of a record
+	private MappedFileSplitter splitter = null;
+	private long windowStart;
+	private long windowEnd;
+	private int windowRecords;
+	private double recordBytes;
+
+	// For bgzip files, the raw file underneath the current chunk
+	private FileInputStream bgzfFile = null;
+
+	// For stride sampling, how many reads we've been through, where the
+	// current stride started, how many chunks it holds and which one we keep
+	private long sourceRecords = 0;
+	private long strideStart = 0;
+	private long strideLength = 0;
+	private long keptChunk = -1;
+
+	/**
+	 * @return The number of reads asked for with fastqc.sample_reads, or 0
+	 * if we're not sampling.
+	 */
+	public static long getTargetReads () {
+		if (System.getProperty("fastqc.sample_reads") == null) return 0;
+		try {
+			return Math.max(0, Long.parseLong(System.getProperty("fastqc.sample_reads")));
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("Sample size '"+System.getProperty("fastqc.sample_reads")+"' wasn't a number");
+			return 0;
+		}
+	}
+
+	private static int getChunkSize () {
+		if (System.getProperty("fastqc.sample_chunk") != null) {
+			try {
+				int chunkSize = Integer.parseInt(System.getProperty("fastqc.sample_chunk"));
+				if (chunkSize > 0) return chunkSize;
+			}
+			catch (NumberFormatException nfe) {}
+			System.err.println("Sample chunk size '"+System.getProperty("fastqc.sample_chunk")+"' wasn't a positive number");
+		}
+		return DEFAULT_CHUNK_SIZE;
+	}
+
+	private static long getSeed () {
+		if (System.getProperty("fastqc.sample_seed") != null) {
+			try {
+				return Long.parseLong(System.getProperty("fastqc.sample_seed"));
+			}
+			catch (NumberFormatException nfe) {
+				System.err.println("Sample seed '"+System.getProperty("fastqc.sample_seed")+"' wasn't a number");
+			}
+		}
+		return DEFAULT_SEED;
+	}
+
+	/**
+	 * Wraps a file so that only a sample of it is read, if sampling has
+	 * been turned on.  Uncompressed files which we can see hold fewer reads
+	 * than we'd sample are returned unchanged.
+	 */
+	public static SequenceFile sample (SequenceFile file) throws SequenceFormatException, IOException {
+		long targetReads = getTargetReads();
+		if (targetReads == 0) return file;
+
+		SampledSequenceFile sampled = new SampledSequenceFile(file, targetReads, getChunkSize(), getSeed());
+		if (sampled.mode == MAPPED && sampled.estimateRecords() <= targetReads) {
+			sampled.splitter = null;
+			return file;
+		}
+		sampled.start();
+		return sampled;
+	}
+
+	private SampledSequenceFile (SequenceFile source, long targetReads, int chunkSize, long seed) throws IOException {
+		this.source = source;
+		this.targetReads = targetReads;
+		this.chunkSize = chunkSize;
+		this.seed = seed;
+		random = new Random(seed);
+
+		chunkCount = (int)Math.min(Integer.MAX_VALUE, (targetReads+chunkSize-1)/chunkSize);
+
+		if (MappedFileSplitter.canSplit(source)) {
+			mode = MAPPED;
+			splitter = new MappedFileSplitter(source, 1);
+			bodyStart = splitter.bodyStart();
+			bodyEnd = splitter.bodyEnd();
+		}
+		else if (source instanceof FastQFile && source.getFile().getName().toLowerCase().endsWith(".gz") && isBGZF(source.getFile())) {
+			mode = BGZF;
+			bodyStart = 0;
+			bodyEnd = source.getFile().length();
+		}
+		else {
+			mode = STRIDE;
+		}
+		stride = (bodyEnd-bodyStart)/chunkCount;
+	}
+
+	private static boolean isBGZF (File file) throws IOException {
+		return findBGZFBlock(file, 0) == 0;
+	}
+
+	private static long findBGZFBlock (File file, long position) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return ParallelGZIPInputStream.findBGZFBlock(fis.getChannel(), position);
+		}
+		finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Counts the records at the start of an uncompressed file to estimate
+	 * how many there are in total.  This also gives us our first idea of how
+	 * big each record is.
+	 */
+	private long estimateRecords () throws IOException, SequenceFormatException {
+		long probeEnd = splitter.findRecordStart(Math.min(bodyEnd, bodyStart+PROBE_SIZE));
+		if (probeEnd < 0) probeEnd = bodyEnd;
+
+		SequenceFile probe = splitter.open(bodyStart, probeEnd);
+		long records = 0;
+		try {
+			while (probe.hasNext()) {
+				probe.next().release();
+				++records;
+			}
+		}
+		finally {
+			probe.close();
+		}
+
+		if (records == 0) {
+			recordBytes = probeEnd-bodyStart;
+			return probeEnd == bodyEnd ? 0 : Long.MAX_VALUE;
+		}
+		recordBytes = (probeEnd-bodyStart)/(double)records;
+		return (long)((bodyEnd-bodyStart)/recordBytes);
+	}
+
+	private void start () throws SequenceFormatException, IOException {
+		if (mode != STRIDE) {
+			// We don't need the stream the source file opened
+			source.close();
+		}
+		readNext();
+	}
+
+	/**
+	 * @return A description of how the file was sampled to go in the report
+	 */
+	public String description () {
+		if (mode == STRIDE) {
+			return "Chunks of "+chunkSize+" reads, one from each stride through the file, aiming for "+targetReads+" reads (seed "+seed+")";
+		}
+		return chunkCount+" chunks of "+chunkSize+" reads from evenly spaced offsets (seed "+seed+")";
+	}
+
+	public boolean hasNext () {
+		return nextSequence != null;
+	}
+
+	public Sequence next () throws SequenceFormatException {
+		Sequence seq = nextSequence;
+		readNext();
+		return seq;
+	}
+
+	private void readNext () throws SequenceFormatException {
+		try {
+			nextSequence = mode == STRIDE ? nextStrideSequence() : nextChunkSequence();
+		}
+		catch (IOException ioe) {
+			throw new SequenceFormatException("Couldn't read a sample from "+name()+": "+ioe.getMessage());
+		}
+
+		if (nextSequence != null) {
+			nextSequence.setFile(this);
+		}
+	}
+
+	private Sequence nextChunkSequence () throws IOException, SequenceFormatException {
+		while (true) {
+			if (chunk != null && chunkRemaining > 0) {
+				if (chunk.hasNext()) {
+					--chunkRemaining;
+					++windowRecords;
+					return chunk.next();
+				}
+
+				// An uncompressed chunk can go on into another window
+				if (mode == MAPPED && windowEnd < bodyEnd) {
+					if (windowRecords > 0) {
+						recordBytes = (windowEnd-windowStart)/(double)windowRecords;
+					}
+					if (openWindow(windowEnd)) continue;
+				}
+			}
+
+			closeChunk();
+			if (!openChunk()) {
+				chunkIndex = chunkCount;
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Opens the chunk for the next stride which has any records left in it.
+	 *
+	 * @return false if we've reached the end of the file
+	 */
+	private boolean openChunk () throws IOException, SequenceFormatException {
+		while (chunkIndex < chunkCount) {
+			long offset = bodyStart+(chunkIndex*stride)+(long)(random.nextDouble()*(stride/2));
+			++chunkIndex;
+
+			offset = Math.max(offset, previousEnd);
+			if (offset >= bodyEnd) return false;
+
+			chunkRemaining = chunkSize;
+			if (mode == MAPPED) {
+				long start = splitter.findRecordStart(offset);
+				if (start < 0) continue;
+				if (start >= bodyEnd) return false;
+				if (openWindow(start)) return true;
+			}
+			else {
+				long block = offset == 0 ? 0 : findBGZFBlock(source.getFile(), offset);
+				if (block < 0) continue;
+				if (block >= bodyEnd) return false;
+				if (openBGZFChunk(block)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Maps the part of an uncompressed file which we expect to hold the
+	 * rest of the current chunk.
+	 *
+	 * @return false if we couldn't find a record boundary to end the window
+	 */
+	private boolean openWindow (long start) throws IOException, SequenceFormatException {
+		long size = Math.max(1, Math.min(MAX_WINDOW, (long)(chunkRemaining*recordBytes*1.1)));
+		long end = splitter.findRecordStart(Math.min(bodyEnd, start+size));
+		if (end < 0) {
+			previousEnd = start+size;
+			return false;
+		}
+
+		windowStart = start;
+		windowEnd = end;
+		windowRecords = 0;
+		previousEnd = end;
+		chunk = splitter.open(start, end);
+		return true;
+	}
+
+	/**
+	 * Starts inflating a bgzip file from the start of a block, and then
+	 * skips forward to the first complete record.
+	 *
+	 * @return false if we couldn't find a record in this part of the file
+	 */
+	private boolean openBGZFChunk (long block) throws IOException, SequenceFormatException {
+		bgzfFile = new FileInputStream(source.getFile());
+		bgzfFile.getChannel().position(block);
+		InputStream in = new MultiMemberGZIPInputStream(bgzfFile);
+
+		byte [] data = new byte[INITIAL_RESYNC_SIZE];
+		int length = 0;
+		boolean endOfFile = false;
+
+		while (true) {
+			while (length < data.length) {
+				int read = in.read(data, length, data.length-length);
+				if (read < 0) {
+					endOfFile = true;
+					break;
+				}
+				length += read;
+			}
+
+			// The start of the file is the only place we know a line starts
+			int recordStart = block == 0 ? 0 : MappedFileSplitter.findFastQRecordStart(ByteBuffer.wrap(data, 0, length), endOfFile);
+			if (recordStart >= 0) {
+				chunk = new FastQFile(source.getFile(), new SequenceInputStream(new ByteArrayInputStream(data, recordStart, length-recordStart), in));
+				return true;
+			}
+
+			if (endOfFile || data.length >= MAX_RESYNC_SIZE) {
+				closeChunk();
+				return false;
+			}
+
+			byte [] newData = new byte[data.length*2];
+			System.arraycopy(data, 0, newData, 0, length);
+			data = newData;
+		}
+	}
+
+	public void close () throws IOException {
+		nextSequence = null;
+		source.close();
+		if (chunk != null) {
+			chunk.close();
+		}
+		closeChunk();
+	}
+
+	private void closeChunk () throws IOException {
+		chunk = null;
+		if (bgzfFile != null) {
+			// The inflater reads ahead a little, so this is slightly past
+			// the end of what we used.  If the chunk has already closed the
+			// file it read to the end of it.
+			FileChannel channel = bgzfFile.getChannel();
+			previousEnd = channel.isOpen() ? channel.position() : source.getFile().length();
+			bgzfFile.close();
+			bgzfFile = null;
+		}
+	}
+
+	/**
+	 * Reads on through the whole file, passing on the reads in the chunk
+	 * we've picked from each stride.
+	 */
+	private Sequence nextStrideSequence () throws IOException, SequenceFormatException {
+		while (source.hasNext()) {
+			long chunkNumber = sourceRecords/chunkSize;
+			if (chunkNumber >= strideStart+strideLength) {
+				startStride(chunkNumber);
+			}
+
+			Sequence seq = source.next();
+			++sourceRecords;
+			if (chunkNumber == keptChunk) return seq;
+			
+			// Nobody else sees the reads we skip, so they can be reused
+			seq.release();
+		}
+		return null;
+	}
+
+	private void startStride (long chunkNumber) throws IOException {
+		strideStart = chunkNumber;
+		strideLength = 1;
+
+		double fractionRead = fractionRead();
+		if (fractionRead > 0) {
+			double estimatedChunks = (sourceRecords/fractionRead)/chunkSize;
+			strideLength = Math.max(1, (long)(estimatedChunks/chunkCount));
+		}
+
+		keptChunk = strideStart+(long)(random.nextDouble()*strideLength);
+	}
+
+	private double fractionRead () {
+		if (source instanceof FastQFile) return ((FastQFile)source).fractionRead();
+		if (source instanceof BAMFile) return ((BAMFile)source).fractionRead();
+		return source.getPercentComplete()/100d;
+	}
+
+	public int getPercentComplete () {
+		if (mode == STRIDE) return source.getPercentComplete();
+		if (!hasNext()) return 100;
+		return (int)((100L*Math.max(0, chunkIndex-1))/chunkCount);
+	}
+
+	public boolean isColorspace () {
+		if (chunk != null) return chunk.isColorspace();
+		return source.isColorspace();
+	}
+
+	public String name () {
+		return source.name();
+	}
+
+	public File getFile () {
+		return source.getFile();
+	}
+
+}
@@ -19,30 +19,169 @@
  */
 package uk.ac.babraham.FastQC.Sequence;
 
+/**
+ * A single read.  The id, sequence and quality are held as bytes, one after
+ * another in a single array, and modules should read them through the byte
+ * views (getSequenceBytes and friends) rather than making Strings or char
+ * arrays of their own.  The String getters are still there for anything
+ * which needs them, and only make their Strings the first time they're
+ * called.
+ * 
+ * The composition of the bases (see BaseComposition) is also worked out
+ * the first time anyone asks for it and then shared by all of the modules.
+ * 
+ * Bytes map straight on to characters 0-255.  Characters outside that range
+ * can only come in through the String constructors, and come out of the
+ * byte views as '?'.
+ * 
+ * Readers can hand out sequences from a SequencePool.  Once whoever asked
+ * for a sequence has finished with it they can call release so the reader
+ * can use it again for a later record.  Nothing should hold on to a
+ * sequence, or its byte arrays, after releasing it.
+ */
 public class Sequence {
 
-	private String sequence;
-	private String quality;
-	private String id;
+	private byte [] data = new byte[0];
+	private int idOffset;
+	private int idLength;
+	private int sequenceOffset;
+	private int sequenceLength;
+	private int qualityOffset;
+	private int qualityLength;
+	
+	private String sequence = null;
+	private String quality = null;
+	private String id = null;
+	private CharSequence sequenceChars = null;
+	
+	private BaseComposition composition = null;
+	private boolean compositionValid = false;
+	
 	private SequenceFile file;
 	private String colorspace;
 	private boolean isFiltered;
 	
+	// Set if this sequence came from a pool, and whether it's currently
+	// been handed out
+	private SequencePool pool = null;
+	private boolean inUse = false;
+	
 	public Sequence (SequenceFile file,String sequence, String quality, String id) {
-		this.id = id;
 		this.file = file;
-		this.sequence = sequence.toUpperCase();
-		this.quality = quality;
 		this.colorspace = null;
 		this.isFiltered = false;
+		setStrings(sequence.toUpperCase(), quality, id);
 	}
 	
 	public Sequence (SequenceFile file,String sequence, String colorspace, String quality, String id) {
-		this.id = id;
 		this.file = file;
+		this.colorspace = colorspace;
+		setStrings(sequence, quality, id);
+	}
+	
+	/**
+	 * Makes an empty sequence for a pool to fill in.
+	 */
+	Sequence (SequencePool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Fills in a pooled sequence from a record held in a buffer.  The bytes
+	 * are copied, so the buffer can be reused straight away.  The sequence
+	 * must already be upper case.
+	 */
+	void setRecord (SequenceFile file, byte [] buffer, int idOffset, int idLength, int sequenceOffset, int sequenceLength, int qualityOffset, int qualityLength) {
+		this.file = file;
+		colorspace = null;
+		isFiltered = false;
+		sequence = null;
+		quality = null;
+		id = null;
+		invalidateComposition();
+		
+		int length = idLength+sequenceLength+qualityLength;
+		if (data.length < length) {
+			data = new byte[length];
+		}
+		
+		System.arraycopy(buffer, idOffset, data, 0, idLength);
+		System.arraycopy(buffer, sequenceOffset, data, idLength, sequenceLength);
+		System.arraycopy(buffer, qualityOffset, data, idLength+sequenceLength, qualityLength);
+		
+		this.idOffset = 0;
+		this.idLength = idLength;
+		this.sequenceOffset = idLength;
+		this.sequenceLength = sequenceLength;
+		this.qualityOffset = idLength+sequenceLength;
+		this.qualityLength = qualityLength;
+	}
+	
+	/**
+	 * Sets the contents from Strings.  We fill in the bytes straight away
+	 * since several module threads can be looking at the same sequence and
+	 * they mustn't see a half filled array.
+	 */
+	private void setStrings (String sequence, String quality, String id) {
 		this.sequence = sequence;
 		this.quality = quality;
-		this.colorspace = colorspace;
+		this.id = id;
+		
+		idOffset = 0;
+		idLength = id.length();
+		sequenceOffset = idLength;
+		sequenceLength = sequence.length();
+		qualityOffset = sequenceOffset+sequenceLength;
+		qualityLength = quality.length();
+		
+		data = new byte[idLength+sequenceLength+qualityLength];
+		copyChars(id, idOffset);
+		copyChars(sequence, sequenceOffset);
+		copyChars(quality, qualityOffset);
+	}
+	
+	private synchronized void invalidateComposition () {
+		compositionValid = false;
+	}
+	
+	private void copyChars (String s, int offset) {
+		for (int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			data[offset+i] = c > 255 ? (byte)'?' : (byte)c;
+		}
+	}
+	
+	private String makeString (int offset, int length) {
+		char [] chars = new char[length];
+		for (int i=0;i<length;i++) {
+			chars[i] = (char)(data[offset+i] & 0xFF);
+		}
+		return new String(chars);
+	}
+	
+	/**
+	 * Hands the sequence back to the pool it came from so it can be reused.
+	 * This does nothing for sequences which weren't made by a pool.
+	 */
+	public void release () {
+		if (pool == null) return;
+		synchronized (this) {
+			if (!inUse) return;
+			inUse = false;
+		}
+		pool.recycle(this);
+	}
+	
+	synchronized void setInUse () {
+		inUse = true;
+	}
+	
+	/**
+	 * @return How many bytes of arrays this sequence keeps between reads,
+	 * which is set by the longest read it has held.
+	 */
+	synchronized int retainedBytes () {
+		return data.length+(composition == null ? 0 : composition.retainedBytes());
 	}
 	
 	public void setIsFiltered (boolean isFiltered) {
@@ -57,7 +196,78 @@ public class Sequence {
 		return file;
 	}
 	
+	/**
+	 * Used by files which wrap another file so that the sequences say they
+	 * come from the wrapper.
+	 */
+	void setFile (SequenceFile file) {
+		this.file = file;
+	}
+	
+	/**
+	 * @return The array holding the bases, starting at getSequenceOffset.
+	 * This must not be changed.
+	 */
+	public byte [] getSequenceBytes () {
+		return data;
+	}
+	
+	public int getSequenceOffset () {
+		return sequenceOffset;
+	}
+	
+	public int getSequenceLength () {
+		return sequenceLength;
+	}
+	
+	/**
+	 * @return The array holding the quality characters, starting at
+	 * getQualityOffset.  This must not be changed.
+	 */
+	public byte [] getQualityBytes () {
+		return data;
+	}
+	
+	public int getQualityOffset () {
+		return qualityOffset;
+	}
+	
+	public int getQualityLength () {
+		return qualityLength;
+	}
+	
+	/**
+	 * @return The bases as a CharSequence which reads straight from the
+	 * bytes, for things which need characters but not a String.
+	 */
+	public CharSequence getSequenceChars () {
+		if (sequenceChars == null) {
+			sequenceChars = new BaseChars();
+		}
+		return sequenceChars;
+	}
+	
+	/**
+	 * @return The composition of the bases.  This is only worked out once
+	 * for each read, however many modules ask for it, and must not be
+	 * changed.  Several module threads can ask at the same time so this is
+	 * synchronized.
+	 */
+	public synchronized BaseComposition getComposition () {
+		if (!compositionValid) {
+			if (composition == null) {
+				composition = new BaseComposition();
+			}
+			composition.calculate(data, sequenceOffset, sequenceLength);
+			compositionValid = true;
+		}
+		return composition;
+	}
+	
 	public String getSequence () {
+		if (sequence == null) {
+			sequence = makeString(sequenceOffset, sequenceLength);
+		}
 		return sequence;
 	}
 	
@@ -66,11 +276,36 @@ public class Sequence {
 	}
 	
 	public String getQualityString () {
+		if (quality == null) {
+			quality = makeString(qualityOffset, qualityLength);
+		}
 		return quality;
 	}
 	
 	public String getID () {
+		if (id == null) {
+			id = makeString(idOffset, idLength);
+		}
 		return id;
 	}
 	
+	private class BaseChars implements CharSequence {
+		
+		public int length () {
+			return sequenceLength;
+		}
+		
+		public char charAt (int index) {
+			return (char)(data[sequenceOffset+index] & 0xFF);
+		}
+		
+		public CharSequence subSequence (int start, int end) {
+			return makeString(sequenceOffset+start, end-start);
+		}
+		
+		public String toString () {
+			return getSequence();
+		}
+	}
+	
 }
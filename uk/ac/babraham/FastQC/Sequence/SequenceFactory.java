@@ -39,14 +39,21 @@ public class SequenceFactory {
 		SequenceFile [] sequenceFiles = new SequenceFile[files.length];
 		
 		for (int f=0;f<files.length;f++) {
-			sequenceFiles[f] = getSequenceFile(files[f]);
+			sequenceFiles[f] = openSequenceFile(files[f]);
 		}
 		
-		return new SequenceFileGroup(sequenceFiles);
+		return SampledSequenceFile.sample(new SequenceFileGroup(sequenceFiles));
 		
 	}
 	
+	/**
+	 * Opens a file, only reading a sample of it if fastqc.sample_reads is set.
+	 */
 	public static SequenceFile getSequenceFile (File file) throws SequenceFormatException, IOException {
+		return SampledSequenceFile.sample(openSequenceFile(file));
+	}
+	
+	private static SequenceFile openSequenceFile (File file) throws SequenceFormatException, IOException {
 		
 		if (System.getProperty("fastqc.sequence_format") != null) {
 			// We're not autodetecting the format, but taking whatever they said
@@ -20,6 +20,7 @@
 package uk.ac.babraham.FastQC.Sequence;
 
 import java.io.File;
+import java.io.IOException;
 
 public interface SequenceFile {
 
@@ -30,4 +31,12 @@ public interface SequenceFile {
 	public int getPercentComplete();
 	public File getFile();
 	
+	/**
+	 * Releases the file and anything reading ahead from it.  This must be
+	 * safe to call more than once, and after the last sequence has been
+	 * read, since the mapped pipeline closes the file it was given before
+	 * it reads the ranges and AnalysisRunner always closes it afterwards.
+	 */
+	public void close() throws IOException;
+	
 }
@@ -1,6 +1,7 @@
 package uk.ac.babraham.FastQC.Sequence;
 
 import java.io.File;
+import java.io.IOException;
 
 import uk.ac.babraham.FastQC.Utilities.CasavaBasename;
 import uk.ac.babraham.FastQC.Utilities.NameFormatException;
@@ -11,8 +12,18 @@ public class SequenceFileGroup implements SequenceFile {
 	private File groupFile;
 	private int currentIndex = 0;
 	
+	// Progress goes by how much of the data we've read, so a small file
+	// doesn't count for as much as a large one.
+	private long [] fileSizes;
+	private long totalSize = 0;
+	
 	public SequenceFileGroup (SequenceFile [] files) {
 		this.files = files;
+		fileSizes = new long[files.length];
+		for (int f=0;f<files.length;f++) {
+			fileSizes[f] = files[f].getFile().length();
+			totalSize += fileSizes[f];
+		}
 		try {
 			String baseName = CasavaBasename.getCasavaBasename(files[0].name());
 			if (files[0].getFile().getParent() == null) {
@@ -32,7 +43,16 @@ public class SequenceFileGroup implements SequenceFile {
 	}
 
 	public int getPercentComplete() {
-		return ((100*currentIndex)/files.length)+(files[currentIndex].getPercentComplete()/files.length);
+		if (totalSize == 0) {
+			return ((100*currentIndex)/files.length)+(files[currentIndex].getPercentComplete()/files.length);
+		}
+		
+		long read = 0;
+		for (int f=0;f<currentIndex;f++) {
+			read += fileSizes[f];
+		}
+		read += (fileSizes[currentIndex]*files[currentIndex].getPercentComplete())/100;
+		return (int)((100*read)/totalSize);
 	}
 
 	public boolean hasNext() {
@@ -59,4 +79,11 @@ public class SequenceFileGroup implements SequenceFile {
 		return files[currentIndex].next();
 	}
 
+	public void close() throws IOException {
+		// All of the files were opened up front
+		for (int f=0;f<files.length;f++) {
+			files[f].close();
+		}
+	}
+
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Sequence;
+
+import java.util.ArrayList;
+
+import uk.ac.babraham.FastQC.Analysis.AnalysisRunner;
+
+/**
+ * Keeps sequences which have been released so a reader can fill them in
+ * again rather than making new ones.  Sequences can be released from any
+ * thread.  If nobody releases them the pool just makes new ones and the
+ * old ones are garbage collected as usual.
+ * 
+ * A pooled sequence keeps arrays big enough for the longest read it has
+ * held, so we don't keep sequences which have held very long reads, and
+ * only keep as many as an analysis can have in flight with the current
+ * settings (see AnalysisRunner.maxSequencesInFlight).
+ */
+class SequencePool {
+
+	// Sequences holding more than this are left for the garbage collector
+	private static final int MAX_RETAINED_BYTES = 64*1024;
+	
+	private int maxSize = AnalysisRunner.maxSequencesInFlight();
+	
+	private ArrayList<Sequence> free = new ArrayList<Sequence>();
+	
+	public Sequence get () {
+		Sequence sequence = null;
+		synchronized (this) {
+			if (!free.isEmpty()) {
+				sequence = free.remove(free.size()-1);
+			}
+		}
+		if (sequence == null) {
+			sequence = new Sequence(this);
+		}
+		sequence.setInUse();
+		return sequence;
+	}
+	
+	void recycle (Sequence sequence) {
+		if (sequence.retainedBytes() > MAX_RETAINED_BYTES) return;
+		synchronized (this) {
+			if (free.size() < maxSize) {
+				free.add(sequence);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Keeps exact counts for the distinct values with the k smallest hashes.
+ * Since the hashes are effectively random this is a uniform sample of the
+ * distinct values in a stream, whatever their frequencies, and because the
+ * cutoff only ever falls a value which ends up in the sample has been
+ * counted every time it was seen.
+ *
+ * Sketches can be merged, and the merged counts are still exact.
+ */
+public class BottomKSketch {
+
+	private int capacity;
+
+	// Hashes are kept in ascending order so the cutoff is the last one
+	private long [] hashes;
+	private int [] counts;
+	private int size = 0;
+
+	public BottomKSketch (int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		hashes = new long[capacity];
+		counts = new int[capacity];
+	}
+
+	public int capacity () {
+		return capacity;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @return true if we've seen more distinct values than we can keep, so
+	 * the sample no longer holds all of them.
+	 */
+	public boolean isFull () {
+		return size == capacity;
+	}
+
+	public int getCount (int index) {
+		return counts[index];
+	}
+
+	public void offer (long hash) {
+		add(hash, 1);
+	}
+
+	private void add (long hash, int count) {
+
+		// Most values are above the cutoff once we're full so we check
+		// that before searching
+		if (size == capacity && hash > hashes[size-1]) return;
+
+		int index = binarySearch(hash);
+		if (index >= 0) {
+			counts[index] += count;
+			return;
+		}
+
+		int insertAt = -(index+1);
+		if (size == capacity) {
+			--size;
+		}
+		System.arraycopy(hashes, insertAt, hashes, insertAt+1, size-insertAt);
+		System.arraycopy(counts, insertAt, counts, insertAt+1, size-insertAt);
+		hashes[insertAt] = hash;
+		counts[insertAt] = count;
+		++size;
+	}
+
+	private int binarySearch (long hash) {
+		int low = 0;
+		int high = size-1;
+		while (low <= high) {
+			int mid = (low+high) >>> 1;
+			if (hashes[mid] < hash) low = mid+1;
+			else if (hashes[mid] > hash) high = mid-1;
+			else return mid;
+		}
+		return -(low+1);
+	}
+
+	public void merge (BottomKSketch other) {
+		for (int i=0;i<other.size;i++) {
+			add(other.hashes[i], other.counts[i]);
+		}
+	}
+
+	public void clear () {
+		size = 0;
+	}
+
+	public void writeState (DataOutput out) throws IOException {
+		out.writeInt(capacity);
+		out.writeInt(size);
+		for (int i=0;i<size;i++) {
+			out.writeLong(hashes[i]);
+			out.writeInt(counts[i]);
+		}
+	}
+
+	/**
+	 * Replaces the sketch, including its capacity, with one saved by
+	 * writeState.
+	 */
+	public void readState (DataInput in) throws IOException {
+		capacity = in.readInt();
+		size = in.readInt();
+		if (capacity < 1 || size > capacity) {
+			throw new IOException("Saved sketch had "+size+" values in a capacity of "+capacity);
+		}
+		hashes = new long[capacity];
+		counts = new int[capacity];
+		for (int i=0;i<size;i++) {
+			hashes[i] = in.readLong();
+			counts[i] = in.readInt();
+		}
+	}
+
+}
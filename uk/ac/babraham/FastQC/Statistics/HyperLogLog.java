@@ -0,0 +1,134 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Estimates the number of distinct values in a stream using the
+ * HyperLogLog algorithm.  Values are offered as 64 bit hashes, and the
+ * estimate has a relative standard error of about 1.04/sqrt(2^precision).
+ *
+ * Two sketches with the same precision can be merged, giving the same
+ * result as if one sketch had seen both streams.
+ */
+public class HyperLogLog {
+
+	private int precision;
+	private byte [] registers;
+
+	public HyperLogLog (int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("Precision must be between 4 and 18");
+		}
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Makes a well mixed 64 bit hash for the first length characters of a
+	 * sequence.
+	 */
+	public static long hash (CharSequence seq, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0;i<length;i++) {
+			h ^= seq.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		// FNV on its own doesn't spread short keys well enough so we finish
+		// with the murmur3 mixing function
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public void offer (long hash) {
+		int index = (int)(hash >>> (64-precision));
+
+		// The rank is the position of the first set bit in what's left,
+		// which we cap so that it always fits
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision-1)))+1;
+
+		if (rank > registers[index]) {
+			registers[index] = (byte)rank;
+		}
+	}
+
+	public double estimate () {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (int i=0;i<m;i++) {
+			sum += 1d / (1L << registers[i]);
+			if (registers[i] == 0) ++zeros;
+		}
+
+		double alpha = 0.7213/(1+(1.079/m));
+		double estimate = (alpha*m*m)/sum;
+
+		// For small numbers of values linear counting does much better
+		if (estimate <= 2.5*m && zeros > 0) {
+			estimate = m*Math.log((double)m/zeros);
+		}
+
+		return estimate;
+	}
+
+	public void merge (HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Can't merge sketches with different precisions");
+		}
+		for (int i=0;i<registers.length;i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	public void clear () {
+		registers = new byte[registers.length];
+	}
+
+	public void writeState (DataOutput out) throws IOException {
+		out.writeInt(precision);
+		out.write(registers);
+	}
+
+	/**
+	 * Replaces the sketch, including its precision, with one saved by
+	 * writeState.
+	 */
+	public void readState (DataInput in) throws IOException {
+		int savedPrecision = in.readInt();
+		if (savedPrecision < 4 || savedPrecision > 18) {
+			throw new IOException("Saved precision "+savedPrecision+" wasn't between 4 and 18");
+		}
+		precision = savedPrecision;
+		registers = new byte[1 << precision];
+		in.readFully(registers);
+	}
+
+}
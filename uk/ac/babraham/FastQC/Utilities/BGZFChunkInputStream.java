@@ -0,0 +1,281 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the uncompressed data from a set of chunks of a BGZF file, as
+ * found through a BAM index.  Each chunk runs between two virtual offsets,
+ * which hold the position of a BGZF block in the file in their top 48
+ * bits and a position within the uncompressed block in their bottom 16.
+ * Only the blocks which make up the chunks are read from the file, so
+ * reading a few small regions of a large file is quick.
+ *
+ * When the stream is first opened it holds a single chunk running from
+ * the start of the file to the end, so the header can be read from it
+ * before the chunks we actually want are set.
+ */
+public class BGZFChunkInputStream extends InputStream {
+
+	// No BGZF block, compressed or not, can be bigger than this
+	private static final int MAX_BLOCK_SIZE = 65536;
+
+	// The fixed part of a gzip header, up to and including XLEN
+	private static final int HEADER_SIZE = 12;
+
+	private FileInputStream fis;
+	private FileChannel channel;
+	private long fileLength;
+
+	// The chunks as start and end virtual offsets one after another
+	private long [] chunks;
+	private int chunk = -1;
+	private long chunkEnd = 0;
+
+	private byte [] block = new byte[MAX_BLOCK_SIZE];
+	private ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+	private Inflater inflater = new Inflater(true);
+	private CRC32 crc = new CRC32();
+
+	// The block we currently hold, and its uncompressed data
+	private long blockAddress = -1;
+	private int blockSize = 0;
+	private byte [] data = new byte[MAX_BLOCK_SIZE];
+	private int dataLength = 0;
+	private int dataPosition = 0;
+	private int dataLimit = 0;
+
+	// How much compressed data the chunks cover, and how much of it we've read
+	private long totalLength = 0;
+	private long compressedRead = 0;
+
+	private byte [] singleByte = new byte[1];
+
+	/**
+	 * @param fis The raw file stream, which is read by absolute position
+	 * so it doesn't matter where it's positioned.
+	 */
+	public BGZFChunkInputStream (FileInputStream fis) throws IOException {
+		this.fis = fis;
+		channel = fis.getChannel();
+		fileLength = channel.size();
+		setChunks(new long [] {0, Long.MAX_VALUE});
+	}
+
+	/**
+	 * Replaces whatever is left of the current chunks with a new set.
+	 *
+	 * @param chunks Start and end virtual offsets for each chunk, one after
+	 * another.  Chunks should be in file order and not overlap.
+	 */
+	public void setChunks (long [] chunks) {
+		if (chunks.length % 2 != 0) {
+			throw new IllegalArgumentException("Chunks must have a start and an end");
+		}
+		this.chunks = chunks;
+		chunk = -1;
+		dataPosition = 0;
+		dataLimit = 0;
+
+		totalLength = 0;
+		compressedRead = 0;
+		for (int c=0;c<chunks.length;c+=2) {
+			long start = chunks[c] >>> 16;
+			long end = Math.min(chunks[c+1] >>> 16, fileLength);
+			if (end > start) totalLength += end-start;
+		}
+	}
+
+	/**
+	 * @return The virtual offset of the next byte we would return
+	 */
+	public long virtualPosition () {
+		if (blockAddress < 0) return 0;
+		if (dataPosition == dataLength) return (blockAddress+blockSize) << 16;
+		return (blockAddress << 16) | dataPosition;
+	}
+
+	/**
+	 * @return How much compressed data is covered by the current chunks
+	 */
+	public long length () {
+		return totalLength;
+	}
+
+	/**
+	 * @return Roughly how much of the compressed data covered by the chunks
+	 * we've read so far.
+	 */
+	public long position () {
+		return Math.min(compressedRead, totalLength);
+	}
+
+	public int read () throws IOException {
+		int read = read(singleByte,0,1);
+		if (read == -1) return -1;
+		return singleByte[0] & 0xFF;
+	}
+
+	public int read (byte [] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+
+		while (chunk < 0 || dataPosition == dataLimit) {
+			if (chunk >= 0 && !chunkFinished() && loadBlock(blockAddress+blockSize)) {
+				dataPosition = 0;
+				setLimit();
+				continue;
+			}
+			if (!nextChunk()) return -1;
+		}
+
+		int toCopy = Math.min(len, dataLimit-dataPosition);
+		System.arraycopy(data, dataPosition, b, off, toCopy);
+		dataPosition += toCopy;
+		return toCopy;
+	}
+
+	public int available () {
+		return dataLimit-dataPosition;
+	}
+
+	public void close () throws IOException {
+		inflater.end();
+		fis.close();
+	}
+
+	/**
+	 * Says whether we've reached the end of the current chunk, either in
+	 * the block we hold or at the start of the next one.
+	 */
+	private boolean chunkFinished () {
+		if (((blockAddress << 16) | dataPosition) >= chunkEnd) return true;
+		return dataPosition == dataLength && ((blockAddress+blockSize) << 16) >= chunkEnd;
+	}
+
+	private boolean nextChunk () throws IOException {
+		while (true) {
+			++chunk;
+			if (chunk*2 >= chunks.length) {
+				chunk = chunks.length/2;
+				dataPosition = 0;
+				dataLimit = 0;
+				return false;
+			}
+
+			long start = chunks[chunk*2];
+			chunkEnd = chunks[(chunk*2)+1];
+			if (start >= chunkEnd) continue;
+
+			long address = start >>> 16;
+			if (address != blockAddress && !loadBlock(address)) continue;
+
+			dataPosition = (int)(start & 0xFFFF);
+			if (dataPosition > dataLength) {
+				throw new IOException("Virtual offset "+start+" was past the end of its BGZF block");
+			}
+			setLimit();
+			return true;
+		}
+	}
+
+	private void setLimit () {
+		dataLimit = dataLength;
+		if (blockAddress == chunkEnd >>> 16) {
+			dataLimit = Math.min(dataLength, (int)(chunkEnd & 0xFFFF));
+		}
+		if (dataLimit < dataPosition) dataLimit = dataPosition;
+	}
+
+	/**
+	 * Reads and inflates the block at the given position in the file.
+	 *
+	 * @return false if this is the end of the file
+	 */
+	private boolean loadBlock (long address) throws IOException {
+		if (address >= fileLength) return false;
+
+		readBlock(address, 0, HEADER_SIZE);
+		int extraLength = (block[10] & 0xFF) | ((block[11] & 0xFF) << 8);
+		readBlock(address, HEADER_SIZE, extraLength);
+
+		int size = ParallelGZIPInputStream.bgzfBlockSize(block, 0, HEADER_SIZE+extraLength);
+		if (size < HEADER_SIZE+extraLength+8 || size > MAX_BLOCK_SIZE) {
+			throw new IOException("No valid BGZF block at position "+address);
+		}
+		readBlock(address, HEADER_SIZE+extraLength, size-(HEADER_SIZE+extraLength));
+
+		int expectedLength = ParallelGZIPInputStream.readInt(block, size-4);
+		if (expectedLength < 0 || expectedLength > MAX_BLOCK_SIZE) {
+			throw new IOException("BGZF block at position "+address+" was too big");
+		}
+
+		try {
+			inflater.reset();
+			inflater.setInput(block, HEADER_SIZE+extraLength, size-(HEADER_SIZE+extraLength+8));
+			int length = 0;
+			while (length < expectedLength) {
+				int inflated = inflater.inflate(data, length, expectedLength-length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+				length += inflated;
+			}
+			if (length != expectedLength) {
+				throw new IOException("BGZF block at position "+address+" was shorter than its stated size");
+			}
+			dataLength = length;
+		}
+		catch (DataFormatException dfe) {
+			throw new IOException("BGZF block at position "+address+" was corrupt: "+dfe.getMessage());
+		}
+
+		crc.reset();
+		crc.update(data, 0, dataLength);
+		if (ParallelGZIPInputStream.readInt(block, size-8) != (int)crc.getValue()) {
+			throw new IOException("BGZF block at position "+address+" failed its CRC check");
+		}
+
+		blockAddress = address;
+		blockSize = size;
+		compressedRead += size;
+		return true;
+	}
+
+	private void readBlock (long address, int offset, int length) throws IOException {
+		if (offset+length > block.length) {
+			throw new IOException("BGZF block at position "+address+" was too big");
+		}
+		blockBuffer.clear();
+		blockBuffer.position(offset);
+		blockBuffer.limit(offset+length);
+		while (blockBuffer.hasRemaining()) {
+			if (channel.read(blockBuffer, address+blockBuffer.position()) < 0) {
+				throw new IOException("BGZF file ended part way through the block at position "+address);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a ByteBuffer, usually part of a file which has been mapped
+ * into memory, and keeps track of how far through it we are.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buffer;
+	private int length;
+
+	public ByteBufferInputStream (ByteBuffer buffer) {
+		this.buffer = buffer;
+		length = buffer.remaining();
+	}
+
+	/**
+	 * @return The number of bytes read so far
+	 */
+	public int position () {
+		return length-buffer.remaining();
+	}
+
+	/**
+	 * @return The total number of bytes which can be read
+	 */
+	public int length () {
+		return length;
+	}
+
+	public int read () {
+		if (!buffer.hasRemaining()) return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	public int read (byte [] b, int offset, int len) {
+		if (len == 0) return 0;
+		if (!buffer.hasRemaining()) return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, offset, len);
+		return len;
+	}
+
+	public long skip (long n) {
+		int skipped = (int)Math.min(Math.max(n, 0), buffer.remaining());
+		buffer.position(buffer.position()+skipped);
+		return skipped;
+	}
+
+	public int available () {
+		return buffer.remaining();
+	}
+
+}
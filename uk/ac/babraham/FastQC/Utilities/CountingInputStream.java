@@ -0,0 +1,85 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes data straight through from another stream and keeps track of how
+ * many bytes have been read from it.  This lets us see how far through a
+ * file we are without asking the file channel, which costs a system call
+ * every time.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private long position;
+
+	public CountingInputStream (InputStream in) {
+		this(in, 0);
+	}
+
+	/**
+	 * @param in The stream to read from
+	 * @param start How far into the file the stream already is
+	 */
+	public CountingInputStream (InputStream in, long start) {
+		super(in);
+		position = start;
+	}
+
+	/**
+	 * @return The number of bytes read or skipped, plus the start position
+	 */
+	public long position () {
+		return position;
+	}
+
+	public int read () throws IOException {
+		int read = in.read();
+		if (read >= 0) ++position;
+		return read;
+	}
+
+	public int read (byte [] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) position += read;
+		return read;
+	}
+
+	public long skip (long n) throws IOException {
+		long skipped = in.skip(n);
+		position += skipped;
+		return skipped;
+	}
+
+	// We can't keep count if the stream is reset
+	public boolean markSupported () {
+		return false;
+	}
+
+	public void mark (int readlimit) {}
+
+	public void reset () throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+}
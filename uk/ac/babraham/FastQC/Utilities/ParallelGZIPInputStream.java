@@ -0,0 +1,724 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A gzip input stream which inflates several gzip members at the same time
+ * on a pool of worker threads, and then returns the uncompressed data in
+ * the original order.
+ *
+ * For BGZF files (as used for BAM and by bgzip) every member header records
+ * the size of the member so we can find the boundaries exactly.  For other
+ * files made by concatenating gzip members we look for the gzip magic number
+ * to guess where members start.  Every member is checked against the CRC and
+ * length in its trailer, so a false guess is always caught, at which point
+ * we drop back to inflating the rest of the file sequentially.
+ *
+ * Files with only a single gzip member can't be split at all, so for these
+ * you just get a normal MultiMemberGZIPInputStream.
+ *
+ * The number of worker threads can be set with fastqc.decompression_threads
+ * and defaults to the number of available processors.  A value of 1 turns
+ * off parallel decompression altogether.
+ *
+ * For BGZF we also know from each block trailer exactly how much data the
+ * block holds, so we can give each worker an output buffer of just the
+ * right size.  The buffers for compressed and uncompressed data are
+ * recycled once we've finished with them, so a long BAM or bgzipped file
+ * doesn't allocate a new pair of buffers for every region.
+ *
+ * Either way compressedPosition says how far through the compressed file
+ * the data we've returned so far came from, which is a better measure of
+ * progress than the position of the file, since that runs ahead of the data
+ * we've actually returned by however much is queued up for the workers.
+ *
+ * We keep twice as many regions queued as there are workers so that none of
+ * them sit idle, but never more than MAX_PENDING_REGIONS, since each region
+ * holds its compressed and uncompressed data and a machine with a lot of
+ * processors would otherwise hold hundreds of megabytes for every file.
+ * bufferMemory() says how much a stream can hold at once so that the
+ * analysis queue can allow for it.  For the same reason we never hold more
+ * than MAX_RAW_SIZE of compressed data while looking for the end of a
+ * member, so a file which starts with small members but goes on to a huge
+ * one is read sequentially from the huge one onwards.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+	// The amount of compressed data we try to give to each worker
+	private static final int REGION_SIZE = 1024*1024;
+
+	// The amount of compressed data we read from the file at a time
+	private static final int READ_SIZE = 4*1024*1024;
+
+	// The most compressed data we'll hold while looking for the end of a
+	// member.  Anything bigger is read sequentially.
+	private static final int MAX_RAW_SIZE = 2*READ_SIZE;
+
+	// Members with less than this much data in total aren't worth splitting
+	private static final int MINIMUM_PARALLEL_SIZE = 2*REGION_SIZE;
+
+	// New buffers are rounded up to a multiple of this so that a buffer from
+	// one region will usually fit the next, which will be a similar size
+	private static final int BUFFER_GRANULARITY = 256*1024;
+
+	// The most regions we queue up for the workers at once, however many
+	// workers there are
+	private static final int MAX_PENDING_REGIONS = 8;
+
+	// How much bigger we expect the uncompressed data to be than the
+	// compressed data in a region
+	private static final int EXPANSION = 4;
+
+	private static final byte [] EMPTY = new byte[0];
+
+	private static ExecutorService pool = null;
+	private static int threadCount = -1;
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private FileInputStream fis;
+
+	// The raw compressed data we've read but not yet handed to a worker
+	private byte [] raw;
+	private int rawStart = 0;
+	private int rawLimit = 0;
+	private long rawFileOffset = 0;
+	private boolean rawEOF = false;
+
+	// Set when we find a member too big to hold, so that we read the file
+	// sequentially from there once the regions before it have been returned
+	private long oversizedMemberOffset = -1;
+
+	// Regions which have been sent off to be inflated, in file order
+	private LinkedList<Future<Region>> pending = new LinkedList<Future<Region>>();
+
+	// The uncompressed data we're currently returning
+	private byte [] current = EMPTY;
+	private int currentPosition = 0;
+	private int currentLimit = 0;
+
+	// Where the compressed data for the current region came from
+	private long currentFileOffset = 0;
+	private int currentCompressedLength = 0;
+
+	// If we find we guessed a member boundary wrongly we carry on reading
+	// sequentially from the last good boundary using this stream.
+	private InputStream fallback = null;
+	private CountingInputStream fallbackCounter = null;
+
+	private byte [] singleByte = new byte[1];
+
+	// Buffers we've finished with which can be given to new regions.  These
+	// are only ever touched from the thread doing the reading.
+	private ArrayList<byte []> spareCompressed = new ArrayList<byte[]>();
+	private ArrayList<byte []> spareOutput = new ArrayList<byte[]>();
+
+	/**
+	 * Opens a gzip stream on the given file stream, which must be positioned
+	 * at the start of the file.  If the file can be split into members we
+	 * inflate it in parallel, otherwise we read it sequentially.
+	 *
+	 * @param fis The raw file stream
+	 * @return A stream of uncompressed data
+	 * @throws IOException
+	 */
+	public static ParallelGZIPInputStream open (FileInputStream fis) throws IOException {
+
+		ParallelGZIPInputStream stream = new ParallelGZIPInputStream(fis);
+		if (getThreadCount() > 1) {
+			stream.fillRaw();
+			if (stream.canSplit()) {
+				return stream;
+			}
+		}
+
+		stream.startFallback(0);
+		return stream;
+	}
+
+	private static synchronized int getThreadCount () {
+		if (threadCount < 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+
+			if (System.getProperty("fastqc.decompression_threads") != null) {
+				try {
+					threadCount = Integer.parseInt(System.getProperty("fastqc.decompression_threads"));
+				}
+				catch (NumberFormatException nfe) {
+					System.err.println("Decompression thread limit '"+System.getProperty("fastqc.decompression_threads")+"' wasn't a number");
+				}
+			}
+		}
+		return threadCount;
+	}
+
+	private static int getMaxPendingRegions () {
+		return Math.min(getThreadCount()*2, MAX_PENDING_REGIONS);
+	}
+
+	/**
+	 * Says roughly how much memory a single stream holds in buffers at
+	 * once: the raw data read from the file, and the compressed and
+	 * uncompressed data for every region which is queued, being returned
+	 * or kept spare for reuse.  This is an upper bound for typical data,
+	 * since a region which inflates to more than we expect grows its buffer.
+	 *
+	 * @return The number of bytes, or 0 if streams aren't inflated in
+	 * parallel
+	 */
+	public static long bufferMemory () {
+		if (getThreadCount() <= 1) return 0;
+		long regions = (getMaxPendingRegions()*2)+1;
+		return MAX_RAW_SIZE+(regions*REGION_SIZE*(1+EXPANSION));
+	}
+
+	private static synchronized ExecutorService getPool () {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Gzip decompression");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	private ParallelGZIPInputStream (FileInputStream fis) {
+		this.fis = fis;
+	}
+
+	/**
+	 * Says whether the data at the start of the file contains more than one
+	 * member, and enough data to be worth splitting up.
+	 */
+	private boolean canSplit () {
+		if (rawLimit < MINIMUM_PARALLEL_SIZE && rawEOF) return false;
+		if (!isMemberStart(raw, 0, rawLimit)) return false;
+		return nextMemberStart(0) > 0;
+	}
+
+	/**
+	 * Finds where the member starting at the given position in the raw
+	 * buffer ends.
+	 *
+	 * @return The start of the next member, or -1 if we can't find it in
+	 * the data we currently hold.
+	 */
+	private int nextMemberStart (int memberStart) {
+
+		int blockSize = bgzfBlockSize(raw, memberStart, rawLimit);
+		if (blockSize > 0) {
+			if (memberStart+blockSize <= rawLimit) return memberStart+blockSize;
+			return -1;
+		}
+
+		// A gzip header is at least 10 bytes and the smallest possible
+		// deflate stream plus trailer is another 10.
+		for (int i=memberStart+20;i<rawLimit-10;i++) {
+			if (raw[i] == (byte)0x1f && isMemberStart(raw, i, rawLimit)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the first BGZF block which starts at or after a position in a
+	 * file.  To avoid being fooled by compressed data which happens to look
+	 * like a block header we also check that another block, or the end of
+	 * the file, follows straight on from it.
+	 * 
+	 * @return The offset of the block, the length of the file if there are
+	 * no more blocks, or -1 if this doesn't look like a BGZF file.
+	 */
+	public static long findBGZFBlock (FileChannel channel, long position) throws IOException {
+		
+		long length = channel.size();
+		if (position >= length) return length;
+		
+		// Blocks are at most 64kb so one must start in the first 64kb of
+		// the window, and we need to be able to see the header of the next
+		ByteBuffer buffer = ByteBuffer.allocate((3*65536)+18);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position+buffer.position()) < 0) break;
+		}
+		byte [] window = buffer.array();
+		int limit = buffer.position();
+		
+		for (int i=0;i<limit && i<=65536;i++) {
+			if (window[i] != (byte)0x1f) continue;
+			int blockSize = bgzfBlockSize(window, i, limit);
+			if (blockSize < 0) continue;
+			
+			long next = position+i+blockSize;
+			if (next == length || bgzfBlockSize(window, i+blockSize, limit) > 0) {
+				return position+i;
+			}
+		}
+		
+		// We could be part way through the last block
+		if (position+limit == length && limit <= 65536) return length;
+		
+		return -1;
+	}
+
+	/**
+	 * Checks for something which looks like a gzip header.  Since we use this
+	 * to scan compressed data we check all of the fixed parts of the header
+	 * to keep down the number of false positives.
+	 */
+	private static boolean isMemberStart (byte [] data, int position, int limit) {
+		if (position+10 > limit) return false;
+		if (data[position] != (byte)0x1f || data[position+1] != (byte)0x8b || data[position+2] != 8) return false;
+
+		// Reserved flag bits must be zero
+		if ((data[position+3] & 0xE0) != 0) return false;
+
+		// Extra flags are 0, 2 or 4
+		int xfl = data[position+8] & 0xFF;
+		if (xfl != 0 && xfl != 2 && xfl != 4) return false;
+
+		// Operating system is 0-13 or 255
+		int os = data[position+9] & 0xFF;
+		if (os > 13 && os != 255) return false;
+
+		return true;
+	}
+
+	/**
+	 * If the member at this position is a BGZF block this returns the total
+	 * size of the block, otherwise it returns -1.
+	 */
+	static int bgzfBlockSize (byte [] data, int position, int limit) {
+		if (position+18 > limit) return -1;
+		if (!isMemberStart(data, position, limit)) return -1;
+		if ((data[position+3] & 0x04) == 0) return -1;
+		int xlen = (data[position+10] & 0xFF) | ((data[position+11] & 0xFF) << 8);
+		if (xlen < 6) return -1;
+
+		// Look through the extra subfields for the BC field
+		int subfield = position+12;
+		int end = position+12+xlen;
+		if (end > limit) return -1;
+		while (subfield+4 <= end) {
+			int length = (data[subfield+2] & 0xFF) | ((data[subfield+3] & 0xFF) << 8);
+			if (data[subfield] == 'B' && data[subfield+1] == 'C' && length == 2 && subfield+6 <= end) {
+				return ((data[subfield+4] & 0xFF) | ((data[subfield+5] & 0xFF) << 8))+1;
+			}
+			subfield += 4+length;
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves any unused raw data to the start of the buffer and fills the
+	 * remainder from the file.
+	 */
+	private void fillRaw () throws IOException {
+		int remaining = rawLimit-rawStart;
+
+		if (raw == null) {
+			raw = new byte[READ_SIZE];
+		}
+		else if (rawStart == 0 && rawLimit == raw.length) {
+			// A single member is bigger than our buffer
+			if (raw.length >= MAX_RAW_SIZE) {
+				oversizedMemberOffset = rawFileOffset;
+				return;
+			}
+			raw = Arrays.copyOf(raw, Math.min(raw.length*2, MAX_RAW_SIZE));
+		}
+		else if (rawStart > 0) {
+			System.arraycopy(raw, rawStart, raw, 0, remaining);
+		}
+		rawFileOffset += rawStart;
+		rawStart = 0;
+		rawLimit = remaining;
+
+		while (rawLimit < raw.length) {
+			int read = fis.read(raw, rawLimit, raw.length-rawLimit);
+			if (read == -1) {
+				rawEOF = true;
+				break;
+			}
+			rawLimit += read;
+		}
+	}
+
+	/**
+	 * Sends the next region of whole members off to be inflated.
+	 *
+	 * @return false if there was no more data to send
+	 */
+	private boolean submitRegion () throws IOException {
+
+		while (true) {
+			if (oversizedMemberOffset >= 0) return false;
+
+			if (rawStart == rawLimit) {
+				if (rawEOF) return false;
+				fillRaw();
+				continue;
+			}
+
+			int end = rawStart;
+
+			// If every member is a BGZF block we can add up their sizes
+			// to get the exact size of the uncompressed data
+			long uncompressedSize = 0;
+			boolean exactSize = true;
+
+			while (end-rawStart < REGION_SIZE) {
+				int next = nextMemberStart(end);
+				if (next < 0) {
+					// The last member in the file runs to the end
+					if (rawEOF) {
+						end = rawLimit;
+						exactSize = false;
+					}
+					break;
+				}
+				if (exactSize && bgzfBlockSize(raw, end, rawLimit) > 0) {
+					uncompressedSize += readInt(raw, next-4) & 0xFFFFFFFFL;
+				}
+				else {
+					exactSize = false;
+				}
+				end = next;
+			}
+
+			if (end == rawStart) {
+				// We don't hold a complete member so we need more data
+				fillRaw();
+				continue;
+			}
+
+			final long fileOffset = rawFileOffset+rawStart;
+			final int compressedLength = end-rawStart;
+			final byte [] compressed = takeBuffer(spareCompressed, compressedLength);
+			System.arraycopy(raw, rawStart, compressed, 0, compressedLength);
+			rawStart = end;
+
+			// Anything we can't size exactly gets a guess, and the worker
+			// will grow the buffer if it needs to
+			int outSize = compressedLength*EXPANSION;
+			if (exactSize && uncompressedSize < Integer.MAX_VALUE-8) {
+				// The extra byte lets the inflater see the end of the last
+				// member without us having to grow the buffer.
+				outSize = (int)uncompressedSize+1;
+			}
+			final byte [] out = takeBuffer(spareOutput, outSize);
+
+			pending.add(getPool().submit(new Callable<Region>() {
+				public Region call() {
+					Region region = inflate(fileOffset, compressed, compressedLength, out);
+					region.compressed = compressed;
+					region.compressedLength = compressedLength;
+					return region;
+				}
+			}));
+			return true;
+		}
+	}
+
+	/**
+	 * Gets a buffer of at least the given size, reusing one we've finished
+	 * with if there's one big enough.
+	 */
+	private static byte [] takeBuffer (ArrayList<byte []> spares, int size) {
+		for (int i=spares.size()-1;i>=0;i--) {
+			if (spares.get(i).length >= size) {
+				return spares.remove(i);
+			}
+		}
+		if (size < Integer.MAX_VALUE-BUFFER_GRANULARITY) {
+			size = ((size+BUFFER_GRANULARITY-1)/BUFFER_GRANULARITY)*BUFFER_GRANULARITY;
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Hands back a buffer we've finished with.  We never hold more spares
+	 * than we could have regions in use at once, and if we have too many
+	 * we drop the smallest.
+	 */
+	private static void recycleBuffer (ArrayList<byte []> spares, byte [] buffer) {
+		if (buffer == null || buffer.length == 0) return;
+		spares.add(buffer);
+		if (spares.size() > getMaxPendingRegions()) {
+			int smallest = 0;
+			for (int i=1;i<spares.size();i++) {
+				if (spares.get(i).length < spares.get(smallest).length) smallest = i;
+			}
+			spares.remove(smallest);
+		}
+	}
+
+	/**
+	 * Inflates all of the members in a region.  This runs on a worker thread.
+	 *
+	 * @param compressedLength How much of the compressed buffer is in use
+	 * @param out The buffer to inflate into, which is replaced by a bigger
+	 * one if it turns out to be too small
+	 */
+	private static Region inflate (long fileOffset, byte [] compressed, int compressedLength, byte [] out) {
+
+		Region region = new Region(fileOffset);
+		region.data = out;
+		Inflater inflater = inflaters.get();
+		CRC32 crc = new CRC32();
+		int outLength = 0;
+		int position = 0;
+
+		try {
+			while (position < compressedLength) {
+				int dataStart = skipHeader(compressed, position, compressedLength);
+				if (dataStart < 0) return region;
+
+				inflater.reset();
+				inflater.setInput(compressed, dataStart, compressedLength-dataStart);
+				int memberStart = outLength;
+
+				while (!inflater.finished()) {
+					if (outLength == out.length) {
+						out = Arrays.copyOf(out, out.length*2);
+						region.data = out;
+					}
+					int inflated = inflater.inflate(out, outLength, out.length-outLength);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						// This member carries on past the end of the region so
+						// we must have guessed the boundary wrongly.
+						return region;
+					}
+					outLength += inflated;
+				}
+
+				position = compressedLength-inflater.getRemaining();
+				if (position+8 > compressedLength) return region;
+
+				crc.reset();
+				crc.update(out, memberStart, outLength-memberStart);
+				if (readInt(compressed, position) != (int)crc.getValue()) return region;
+				if (readInt(compressed, position+4) != outLength-memberStart) return region;
+				position += 8;
+			}
+		}
+		catch (DataFormatException dfe) {
+			return region;
+		}
+
+		region.length = outLength;
+		region.valid = true;
+		return region;
+	}
+
+	/**
+	 * Works out where the compressed data starts after a gzip header.
+	 *
+	 * @return The position of the compressed data, or -1 if this wasn't a
+	 * valid header.
+	 */
+	private static int skipHeader (byte [] data, int position, int limit) {
+		if (!isMemberStart(data, position, limit)) return -1;
+		int flags = data[position+3];
+		position += 10;
+
+		// FEXTRA
+		if ((flags & 0x04) != 0) {
+			if (position+2 > limit) return -1;
+			position += 2 + ((data[position] & 0xFF) | ((data[position+1] & 0xFF) << 8));
+		}
+
+		// FNAME and FCOMMENT are zero terminated
+		for (int flag=0x08;flag<=0x10;flag<<=1) {
+			if ((flags & flag) != 0) {
+				while (position < limit && data[position] != 0) position++;
+				position++;
+			}
+		}
+
+		// FHCRC
+		if ((flags & 0x02) != 0) position += 2;
+
+		if (position >= limit) return -1;
+		return position;
+	}
+
+	static int readInt (byte [] data, int position) {
+		return (data[position] & 0xFF) | ((data[position+1] & 0xFF) << 8) | ((data[position+2] & 0xFF) << 16) | ((data[position+3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Moves on to the next region of uncompressed data.
+	 *
+	 * @return false if there's no more data
+	 */
+	private boolean nextRegion () throws IOException {
+
+		// Nobody else holds on to the data we've already returned
+		recycleBuffer(spareOutput, current);
+		current = EMPTY;
+		currentPosition = 0;
+		currentLimit = 0;
+		currentFileOffset += currentCompressedLength;
+		currentCompressedLength = 0;
+
+		// Keep enough work queued to keep all of the workers busy
+		while (pending.size() < getMaxPendingRegions()) {
+			if (!submitRegion()) break;
+		}
+
+		if (pending.isEmpty()) {
+			if (oversizedMemberOffset >= 0) {
+				startFallback(oversizedMemberOffset);
+				return true;
+			}
+			return false;
+		}
+
+		Region region;
+		try {
+			region = pending.removeFirst().get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for decompression");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Decompression failed: "+e.getCause());
+		}
+
+		recycleBuffer(spareCompressed, region.compressed);
+
+		if (!region.valid) {
+			startFallback(region.fileOffset);
+			return true;
+		}
+
+		current = region.data;
+		currentPosition = 0;
+		currentLimit = region.length;
+		currentFileOffset = region.fileOffset;
+		currentCompressedLength = region.compressedLength;
+		return true;
+	}
+
+	/**
+	 * Abandons parallel decompression and reads the rest of the file
+	 * sequentially from the given offset, which must be a member start.
+	 */
+	private void startFallback (long fileOffset) throws IOException {
+		while (!pending.isEmpty()) {
+			pending.removeFirst().cancel(true);
+		}
+		raw = null;
+		spareCompressed.clear();
+		spareOutput.clear();
+		fis.getChannel().position(fileOffset);
+		fallbackCounter = new CountingInputStream(fis, fileOffset);
+		fallback = new MultiMemberGZIPInputStream(fallbackCounter);
+	}
+
+	/**
+	 * @return How far through the compressed file the data we've returned
+	 * so far came from.  Regions are inflated as a whole so within a region
+	 * we go by how much of its uncompressed data we've returned.
+	 */
+	public long compressedPosition () {
+		if (fallbackCounter != null) return fallbackCounter.position();
+		if (currentLimit == 0) return currentFileOffset;
+		return currentFileOffset+((long)currentCompressedLength*currentPosition)/currentLimit;
+	}
+
+	public int read () throws IOException {
+		int read = read(singleByte,0,1);
+		if (read == -1) return -1;
+		return singleByte[0] & 0xFF;
+	}
+
+	public int read (byte [] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+
+		while (fallback == null && currentPosition == currentLimit) {
+			if (!nextRegion()) return -1;
+		}
+
+		if (fallback != null) {
+			return fallback.read(b, off, len);
+		}
+
+		int toCopy = Math.min(len, currentLimit-currentPosition);
+		System.arraycopy(current, currentPosition, b, off, toCopy);
+		currentPosition += toCopy;
+		return toCopy;
+	}
+
+	public int available () throws IOException {
+		if (fallback != null) return fallback.available();
+		return currentLimit-currentPosition;
+	}
+
+	public void close () throws IOException {
+		while (!pending.isEmpty()) {
+			pending.removeFirst().cancel(true);
+		}
+		if (fallback != null) {
+			fallback.close();
+		}
+		fis.close();
+	}
+
+	private static class Region {
+		private long fileOffset;
+		private int compressedLength;
+		private byte [] compressed;
+		private boolean valid = false;
+		private byte [] data;
+		private int length;
+
+		public Region (long fileOffset) {
+			this.fileOffset = fileOffset;
+		}
+	}
+
+}
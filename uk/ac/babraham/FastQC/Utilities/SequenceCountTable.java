@@ -0,0 +1,371 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact table of counts keyed by sequence.  Rather than keeping a
+ * String and a boxed Integer for every distinct sequence we pack the
+ * sequences into a single shared byte arena and keep everything else in
+ * primitive arrays, using open addressing to find entries.
+ *
+ * Sequences made up only of ACGT are stored at 2 bits per base.  Anything
+ * else is stored a byte per character, or two bytes per character if it
+ * falls outside latin-1.
+ *
+ * Entries are numbered from 0 to size()-1 in the order in which they were
+ * added, so they can be walked without creating any Strings.
+ */
+public class SequenceCountTable {
+
+	private static final int INITIAL_ENTRIES = 1024;
+	private static final int INITIAL_ARENA_SIZE = 64*1024;
+
+	private static final byte PACKED = 0;
+	private static final byte LATIN = 1;
+	private static final byte WIDE = 2;
+
+	private static final char [] BASES = new char [] {'A','C','G','T'};
+
+	// Lookup from a character to its 2 bit code, or -1 if it isn't ACGT
+	private static final byte [] BASE_CODES = new byte[128];
+
+	static {
+		for (int i=0;i<BASE_CODES.length;i++) {
+			BASE_CODES[i] = -1;
+		}
+		for (int i=0;i<BASES.length;i++) {
+			BASE_CODES[BASES[i]] = (byte)i;
+		}
+	}
+
+	// The hash slots hold entry index + 1, with 0 meaning empty
+	private int [] slots;
+
+	private int [] hashes;
+	private int [] counts;
+	private int [] offsets;
+	private int [] lengths;
+	private byte [] encodings;
+	private int size;
+
+	private byte [] arena;
+	private int arenaUsed;
+
+	public SequenceCountTable () {
+		clear();
+	}
+
+	/**
+	 * Removes all entries and releases the space they used.
+	 */
+	public void clear () {
+		slots = new int[INITIAL_ENTRIES*2];
+		hashes = new int[INITIAL_ENTRIES];
+		counts = new int[INITIAL_ENTRIES];
+		offsets = new int[INITIAL_ENTRIES];
+		lengths = new int[INITIAL_ENTRIES];
+		encodings = new byte[INITIAL_ENTRIES];
+		size = 0;
+		arena = new byte[INITIAL_ARENA_SIZE];
+		arenaUsed = 0;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Gets the count for an entry
+	 *
+	 * @param entry The index of the entry, between 0 and size()-1
+	 */
+	public int getCount (int entry) {
+		return counts[entry];
+	}
+
+	/**
+	 * Builds the sequence for an entry.  This creates a new String so should
+	 * only be used for entries we actually want to report.
+	 *
+	 * @param entry The index of the entry, between 0 and size()-1
+	 */
+	public String getSequence (int entry) {
+		StringBuilder sb = new StringBuilder(lengths[entry]);
+		appendSequence(entry, sb);
+		return sb.toString();
+	}
+
+	private void appendSequence (int entry, StringBuilder sb) {
+		int length = lengths[entry];
+		for (int i=0;i<length;i++) {
+			sb.append(charAt(entry, i));
+		}
+	}
+
+	/**
+	 * Adds to the count for a sequence.
+	 *
+	 * @param seq The sequence containing the key
+	 * @param length How many characters from the start of seq make up the key
+	 * @param amount How much to add to the count
+	 * @param addIfAbsent Whether to create a new entry if the key isn't
+	 * already present
+	 * @return The index of the entry for this key, or -1 if it wasn't present
+	 * and addIfAbsent was false
+	 */
+	public int add (CharSequence seq, int length, int amount, boolean addIfAbsent) {
+
+		int hash = hash(seq, length);
+		int mask = slots.length-1;
+		int slot = hash & mask;
+
+		while (slots[slot] != 0) {
+			int entry = slots[slot]-1;
+			if (hashes[entry] == hash && matches(entry, seq, length)) {
+				counts[entry] += amount;
+				return entry;
+			}
+			slot = (slot+1) & mask;
+		}
+
+		if (!addIfAbsent) return -1;
+
+		int entry = store(seq, length, hash);
+		counts[entry] = amount;
+		slots[slot] = entry+1;
+
+		// We keep the load on the slots at no more than a half so that
+		// probe sequences stay short
+		if (size*2 > slots.length) {
+			rehash(slots.length*2);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Adds all of the counts from another table into this one, creating
+	 * entries where required.
+	 */
+	public void addAll (SequenceCountTable other) {
+		StringBuilder sb = new StringBuilder();
+		for (int entry=0;entry<other.size;entry++) {
+			sb.setLength(0);
+			other.appendSequence(entry, sb);
+			add(sb, sb.length(), other.counts[entry], true);
+		}
+	}
+
+	/**
+	 * Writes out the table with the sequences still in their packed form.
+	 */
+	public void writeState (DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(arenaUsed);
+		out.write(arena, 0, arenaUsed);
+		for (int entry=0;entry<size;entry++) {
+			out.writeByte(encodings[entry]);
+			out.writeInt(lengths[entry]);
+			out.writeInt(counts[entry]);
+		}
+	}
+
+	/**
+	 * Replaces the contents of the table with those saved by writeState.
+	 */
+	public void readState (DataInput in) throws IOException {
+		int entries = in.readInt();
+		int bytes = in.readInt();
+
+		int capacity = INITIAL_ENTRIES;
+		while (capacity < entries) capacity *= 2;
+
+		hashes = new int[capacity];
+		counts = new int[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		encodings = new byte[capacity];
+
+		arena = new byte[Math.max(INITIAL_ARENA_SIZE, bytes)];
+		in.readFully(arena, 0, bytes);
+		arenaUsed = bytes;
+
+		// Entries were stored in order so their offsets follow on from
+		// each other, and we can work the hashes out again from the data
+		int offset = 0;
+		StringBuilder sb = new StringBuilder();
+		for (int entry=0;entry<entries;entry++) {
+			encodings[entry] = in.readByte();
+			lengths[entry] = in.readInt();
+			counts[entry] = in.readInt();
+			offsets[entry] = offset;
+			offset += byteLength(encodings[entry], lengths[entry]);
+			if (offset > bytes) {
+				throw new IOException("Saved sequences were longer than their stored data");
+			}
+
+			sb.setLength(0);
+			appendSequence(entry, sb);
+			hashes[entry] = hash(sb, sb.length());
+		}
+		size = entries;
+
+		int slotCount = INITIAL_ENTRIES*2;
+		while (size*2 > slotCount) slotCount *= 2;
+		rehash(slotCount);
+	}
+
+	static int hash (CharSequence seq, int length) {
+		int h = length;
+		for (int i=0;i<length;i++) {
+			h = 31*h + seq.charAt(i);
+		}
+
+		// Spread the bits out since we only use the low ones to pick a slot
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private char charAt (int entry, int index) {
+		int offset = offsets[entry];
+		switch (encodings[entry]) {
+			case PACKED: return BASES[(arena[offset+(index>>2)] >> ((index & 3)*2)) & 3];
+			case LATIN: return (char)(arena[offset+index] & 0xFF);
+			default: return (char)(((arena[offset+(index*2)] & 0xFF) << 8) | (arena[offset+(index*2)+1] & 0xFF));
+		}
+	}
+
+	private boolean matches (int entry, CharSequence seq, int length) {
+		if (lengths[entry] != length) return false;
+		for (int i=0;i<length;i++) {
+			if (charAt(entry, i) != seq.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private int store (CharSequence seq, int length, int hash) {
+
+		byte encoding = PACKED;
+		for (int i=0;i<length;i++) {
+			char c = seq.charAt(i);
+			if (c > 255) {
+				encoding = WIDE;
+				break;
+			}
+			if (c >= 128 || BASE_CODES[c] < 0) {
+				encoding = LATIN;
+			}
+		}
+
+		int bytes = byteLength(encoding, length);
+
+		ensureArenaSpace(bytes);
+		int offset = arenaUsed;
+
+		switch (encoding) {
+			case PACKED:
+				for (int i=0;i<length;i++) {
+					arena[offset+(i>>2)] |= BASE_CODES[seq.charAt(i)] << ((i & 3)*2);
+				}
+				break;
+			case LATIN:
+				for (int i=0;i<length;i++) {
+					arena[offset+i] = (byte)seq.charAt(i);
+				}
+				break;
+			default:
+				for (int i=0;i<length;i++) {
+					char c = seq.charAt(i);
+					arena[offset+(i*2)] = (byte)(c >> 8);
+					arena[offset+(i*2)+1] = (byte)c;
+				}
+		}
+		arenaUsed += bytes;
+
+		if (size == counts.length) {
+			growEntries();
+		}
+
+		int entry = size++;
+		hashes[entry] = hash;
+		offsets[entry] = offset;
+		lengths[entry] = length;
+		encodings[entry] = encoding;
+		return entry;
+	}
+
+	private static int byteLength (byte encoding, int length) {
+		switch (encoding) {
+			case PACKED: return (length+3)/4;
+			case LATIN: return length;
+			default: return length*2;
+		}
+	}
+
+	private void ensureArenaSpace (int bytes) {
+		if (arenaUsed+bytes <= arena.length) return;
+
+		int newLength = arena.length*2;
+		while (newLength < arenaUsed+bytes) newLength *= 2;
+
+		byte [] newArena = new byte[newLength];
+		System.arraycopy(arena, 0, newArena, 0, arenaUsed);
+		arena = newArena;
+	}
+
+	private void growEntries () {
+		int newLength = counts.length*2;
+		hashes = copyOf(hashes, newLength);
+		counts = copyOf(counts, newLength);
+		offsets = copyOf(offsets, newLength);
+		lengths = copyOf(lengths, newLength);
+
+		byte [] newEncodings = new byte[newLength];
+		System.arraycopy(encodings, 0, newEncodings, 0, size);
+		encodings = newEncodings;
+	}
+
+	private int [] copyOf (int [] array, int newLength) {
+		int [] newArray = new int[newLength];
+		System.arraycopy(array, 0, newArray, 0, size);
+		return newArray;
+	}
+
+	private void rehash (int newSlotCount) {
+		slots = new int[newSlotCount];
+		int mask = newSlotCount-1;
+		for (int entry=0;entry<size;entry++) {
+			int slot = hashes[entry] & mask;
+			while (slots[slot] != 0) {
+				slot = (slot+1) & mask;
+			}
+			slots[slot] = entry+1;
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright Copyright 2010-12 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.FastQC.Utilities;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the most frequent sequences in a stream using the Space-Saving
+ * algorithm.  We track a fixed number of sequences.  When a sequence we're
+ * not tracking turns up and the table is full it takes over the entry with
+ * the lowest count, inheriting that count as its possible error.
+ *
+ * Every count is an overestimate by at most its error, and any sequence
+ * making up more than total/capacity of the stream is guaranteed to be in
+ * the table, however late in the stream it first appears.
+ */
+public class SpaceSavingCounter {
+
+	private int capacity;
+
+	private String [] sequences;
+	private int [] hashes;
+	private long [] counts;
+	private long [] errors;
+	private int size = 0;
+
+	// The hash slots hold entry index + 1, with 0 meaning empty
+	private int [] slots;
+
+	// A min heap of entry indices ordered by count, along with the position
+	// of each entry within the heap
+	private int [] heap;
+	private int [] heapPositions;
+
+	private long total = 0;
+
+	public SpaceSavingCounter (int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		clear();
+	}
+
+	public void clear () {
+		sequences = new String[capacity];
+		hashes = new int[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		heap = new int[capacity];
+		heapPositions = new int[capacity];
+
+		int slotCount = 1;
+		while (slotCount < capacity*2) slotCount *= 2;
+		slots = new int[slotCount];
+
+		size = 0;
+		total = 0;
+	}
+
+	public int capacity () {
+		return capacity;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @return The number of sequences which have been offered
+	 */
+	public long total () {
+		return total;
+	}
+
+	public String getSequence (int entry) {
+		return sequences[entry];
+	}
+
+	/**
+	 * @return The estimated count for an entry, which is never lower than
+	 * the true count.
+	 */
+	public long getCount (int entry) {
+		return counts[entry];
+	}
+
+	/**
+	 * @return The most by which the count for an entry may be too high.
+	 */
+	public long getError (int entry) {
+		return errors[entry];
+	}
+
+	/**
+	 * Counts one occurrence of a sequence.
+	 *
+	 * @param seq The sequence containing the key
+	 * @param length How many characters from the start of seq make up the key
+	 */
+	public void offer (CharSequence seq, int length) {
+
+		++total;
+
+		int hash = SequenceCountTable.hash(seq, length);
+		int slot = findSlot(seq, length, hash);
+
+		if (slots[slot] != 0) {
+			int entry = slots[slot]-1;
+			++counts[entry];
+			siftDown(heapPositions[entry]);
+			return;
+		}
+
+		if (size < capacity) {
+			int entry = size++;
+			setEntry(entry, seq.subSequence(0, length).toString(), hash);
+			slots[slot] = entry+1;
+			counts[entry] = 1;
+			errors[entry] = 0;
+			heap[entry] = entry;
+			heapPositions[entry] = entry;
+			siftUp(entry);
+			return;
+		}
+
+		// We take over the entry with the smallest count
+		int entry = heap[0];
+		removeSlot(entry);
+		setEntry(entry, seq.subSequence(0, length).toString(), hash);
+		slots[findSlot(seq, length, hash)] = entry+1;
+		errors[entry] = counts[entry];
+		++counts[entry];
+		siftDown(0);
+	}
+
+	/**
+	 * Adds the results from another counter to this one.  A sequence which
+	 * is missing from a full counter could have been seen up to that
+	 * counter's minimum number of times, so that's what we add to both its
+	 * count and its error.  We then keep the entries with the highest
+	 * counts.
+	 */
+	public void merge (SpaceSavingCounter other) {
+
+		long thisMinimum = size == capacity ? counts[heap[0]] : 0;
+		long otherMinimum = other.size == other.capacity ? other.counts[other.heap[0]] : 0;
+
+		HashMap<String, long []> merged = new HashMap<String, long[]>();
+
+		for (int i=0;i<size;i++) {
+			merged.put(sequences[i], new long [] {counts[i]+otherMinimum, errors[i]+otherMinimum});
+		}
+
+		for (int i=0;i<other.size;i++) {
+			long [] values = merged.get(other.sequences[i]);
+			if (values == null) {
+				merged.put(other.sequences[i], new long [] {other.counts[i]+thisMinimum, other.errors[i]+thisMinimum});
+			}
+			else {
+				values[0] += other.counts[i]-otherMinimum;
+				values[1] += other.errors[i]-otherMinimum;
+			}
+		}
+
+		List<String> keys = new ArrayList<String>(merged.keySet());
+		final HashMap<String, long[]> values = merged;
+		Collections.sort(keys, new Comparator<String>() {
+			public int compare(String o1, String o2) {
+				long c1 = values.get(o1)[0];
+				long c2 = values.get(o2)[0];
+				if (c1 < c2) return 1;
+				if (c1 > c2) return -1;
+				return 0;
+			}
+		});
+
+		long mergedTotal = total+other.total;
+		clear();
+		total = mergedTotal;
+
+		for (int i=0;i<keys.size() && i<capacity;i++) {
+			String key = keys.get(i);
+			addEntry(key, values.get(key)[0], values.get(key)[1]);
+		}
+	}
+
+	public void writeState (DataOutput out) throws IOException {
+		out.writeInt(capacity);
+		out.writeLong(total);
+		out.writeInt(size);
+		for (int entry=0;entry<size;entry++) {
+			out.writeUTF(sequences[entry]);
+			out.writeLong(counts[entry]);
+			out.writeLong(errors[entry]);
+		}
+	}
+
+	/**
+	 * Replaces the contents of the counter, including its capacity, with
+	 * those saved by writeState.
+	 */
+	public void readState (DataInput in) throws IOException {
+		capacity = in.readInt();
+		if (capacity < 1) {
+			throw new IOException("Saved capacity "+capacity+" was less than 1");
+		}
+		clear();
+		total = in.readLong();
+		int entries = in.readInt();
+		for (int i=0;i<entries;i++) {
+			String key = in.readUTF();
+			long count = in.readLong();
+			addEntry(key, count, in.readLong());
+		}
+	}
+
+	/**
+	 * Adds a new entry to a counter which isn't full and doesn't already
+	 * contain the key.
+	 */
+	private void addEntry (String key, long count, long error) {
+		int hash = SequenceCountTable.hash(key, key.length());
+		int entry = size++;
+		setEntry(entry, key, hash);
+		slots[findSlot(key, key.length(), hash)] = entry+1;
+		counts[entry] = count;
+		errors[entry] = error;
+		heap[entry] = entry;
+		heapPositions[entry] = entry;
+		siftUp(entry);
+	}
+
+	private void setEntry (int entry, String sequence, int hash) {
+		sequences[entry] = sequence;
+		hashes[entry] = hash;
+	}
+
+	/**
+	 * Finds the slot holding the given key, or the empty slot where it
+	 * would go.
+	 */
+	private int findSlot (CharSequence seq, int length, int hash) {
+		int mask = slots.length-1;
+		int slot = hash & mask;
+		while (slots[slot] != 0) {
+			int entry = slots[slot]-1;
+			if (hashes[entry] == hash && matches(sequences[entry], seq, length)) {
+				return slot;
+			}
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private static boolean matches (String stored, CharSequence seq, int length) {
+		if (stored.length() != length) return false;
+		for (int i=0;i<length;i++) {
+			if (stored.charAt(i) != seq.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes an entry out of the hash slots, moving later entries in the
+	 * same probe run back so that lookups don't need tombstones.
+	 */
+	private void removeSlot (int entry) {
+		int mask = slots.length-1;
+		int slot = hashes[entry] & mask;
+		while (slots[slot] != entry+1) {
+			slot = (slot+1) & mask;
+		}
+
+		int next = slot;
+		while (true) {
+			next = (next+1) & mask;
+			if (slots[next] == 0) break;
+
+			int home = hashes[slots[next]-1] & mask;
+
+			// We can move the entry at next back into the gap if its home
+			// slot isn't cyclically between the gap and where it is now
+			boolean homeInRange = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+			if (!homeInRange) {
+				slots[slot] = slots[next];
+				slot = next;
+			}
+		}
+		slots[slot] = 0;
+	}
+
+	private void siftUp (int position) {
+		int entry = heap[position];
+		while (position > 0) {
+			int parent = (position-1)/2;
+			if (counts[heap[parent]] <= counts[entry]) break;
+			heap[position] = heap[parent];
+			heapPositions[heap[position]] = position;
+			position = parent;
+		}
+		heap[position] = entry;
+		heapPositions[entry] = position;
+	}
+
+	private void siftDown (int position) {
+		int entry = heap[position];
+		while (true) {
+			int child = (position*2)+1;
+			if (child >= size) break;
+			if (child+1 < size && counts[heap[child+1]] < counts[heap[child]]) {
+				++child;
+			}
+			if (counts[heap[child]] >= counts[entry]) break;
+			heap[position] = heap[child];
+			heapPositions[heap[position]] = position;
+			position = child;
+		}
+		heap[position] = entry;
+		heapPositions[entry] = position;
+	}
+
+}